@@ -16,29 +16,49 @@
 
 package com.teleca.jamendo;
 
+import java.io.File;
+import java.util.ArrayList;
+
 import android.app.Application;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.media.MediaPlayer;
 import android.media.audiofx.Equalizer;
 import android.media.audiofx.Equalizer.Settings;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.teleca.jamendo.activity.EqualizerActivity;
+import com.teleca.jamendo.activity.RadioActivity.RadioChannel;
 import com.teleca.jamendo.api.JamendoGet2Api;
 import com.teleca.jamendo.api.Playlist;
+import com.teleca.jamendo.api.PlaylistEntry;
 import com.teleca.jamendo.api.Playlist.PlaylistPlaybackMode;
 import com.teleca.jamendo.api.util.Caller;
 import com.teleca.jamendo.api.util.RequestCache;
+import com.teleca.jamendo.db.Database;
+import com.teleca.jamendo.db.DatabaseImpl;
+import com.teleca.jamendo.db.DatabaseWriter;
+import com.teleca.jamendo.db.WriteBehindDatabase;
 import com.teleca.jamendo.gestures.GesturesHandler;
 import com.teleca.jamendo.gestures.PlayerGestureCommandRegiser;
+import com.teleca.jamendo.media.AudioCache;
+import com.teleca.jamendo.media.StreamQualityPolicy;
 import com.teleca.jamendo.media.PlayerEngine;
 import com.teleca.jamendo.media.PlayerEngineListener;
+import com.teleca.jamendo.media.PlayerEventBus;
+import com.teleca.jamendo.media.PlaylistJournal;
+import com.teleca.jamendo.service.PlayerEngineBinder;
 import com.teleca.jamendo.service.PlayerService;
 import com.teleca.jamendo.service.RadioPlayerService;
+import com.teleca.jamendo.util.BandwidthMeter;
+import com.teleca.jamendo.util.CircuitBreaker;
 import com.teleca.jamendo.util.ImageCache;
 import com.teleca.jamendo.util.download.DownloadManager;
 import com.teleca.jamendo.util.download.DownloadManagerImpl;
@@ -71,6 +91,26 @@ public class JamendoApplication extends Application {
 	 */
 	private ImageCache mImageCache;
 
+	/**
+	 * Cache of streamed tracks
+	 */
+	private AudioCache mAudioCache;
+
+	/**
+	 * Throughput measured by the streams and downloads
+	 */
+	private BandwidthMeter mBandwidthMeter;
+
+	/**
+	 * Chooses stream encoding from the throughput
+	 */
+	private StreamQualityPolicy mStreamQualityPolicy;
+
+	/**
+	 * Refuses requests to hosts failing lately
+	 */
+	private CircuitBreaker mCircuitBreaker;
+
 	/**
 	 * Web request cache, one for all activities and orientations
 	 */
@@ -102,15 +142,43 @@ public class JamendoApplication extends Application {
 	private PlayerEngine mPlayerEngine;
 
 	/**
-	 * Player engine listener
+	 * Listener set through the intent player engine
 	 */
 	private PlayerEngineListener mPlayerEngineListener;
 
+	/**
+	 * Passes events of the concrete player engine to all listeners
+	 */
+	private PlayerEventBus mPlayerEventBus = new PlayerEventBus();
+
 	/**
 	 * Stored in Application instance in case we destroy Player service
 	 */
 
 	private Playlist mPlaylist;
+
+	/**
+	 * Keeps mPlaylist in case the process is killed
+	 */
+	private PlaylistJournal mPlaylistJournal;
+
+	/**
+	 * Track of the restored playlist and position (in seconds) at which
+	 * its playback should be resumed
+	 */
+	private int mResumeTrackId = -1;
+
+	private int mResumePosition;
+
+	/**
+	 * Single thread performing all database writes
+	 */
+	private DatabaseWriter mDatabaseWriter;
+
+	/**
+	 * Application database, writes are performed in the background
+	 */
+	private Database mDatabase;
 
 	/**
 	 * Provides interface for download related actions.
@@ -130,15 +198,61 @@ public class JamendoApplication extends Application {
 	public void onCreate() {
 		super.onCreate();
 		mImageCache = new ImageCache();
+		mAudioCache = new AudioCache(this);
 		mRequestCache = new RequestCache();
+		mBandwidthMeter = new BandwidthMeter();
+		mStreamQualityPolicy = new StreamQualityPolicy(mBandwidthMeter);
+		mCircuitBreaker = new CircuitBreaker();
 
 		Caller.setRequestCache(mRequestCache);
+		Caller.setBandwidthMeter(mBandwidthMeter);
 		instance = this;
 
+		mDatabaseWriter = new DatabaseWriter();
+		mDatabase = new WriteBehindDatabase(new DatabaseImpl(this), mDatabaseWriter);
+		restorePlaylist();
+
 		mDownloadManager = new DownloadManagerImpl(this);
 		restoreEqualizerSettings();
 	}
 
+	/**
+	 * Restores the play queue of the previous session, so that it is
+	 * available before anything is loaded from the network
+	 */
+	private void restorePlaylist() {
+		mPlaylistJournal = new PlaylistJournal(new File(getFilesDir(), "playlist.journal"), mDatabaseWriter);
+		mPlaylist = mPlaylistJournal.restore();
+		if (mPlaylist != null && mPlaylistJournal.getPosition() > 0) {
+			mResumeTrackId = mPlaylist.getSelectedTrack().getTrack().getId();
+			mResumePosition = mPlaylistJournal.getPosition();
+		}
+	}
+
+	/**
+	 * Gives position at which playback of the restored track should start,
+	 * can be taken only once
+	 * 
+	 * @param playlistEntry
+	 * @return position in seconds, 0 if playback should start from the beginning
+	 */
+	public int takeResumePosition(PlaylistEntry playlistEntry) {
+		if (playlistEntry == null || playlistEntry.getTrack().getId() != mResumeTrackId) {
+			return 0;
+		}
+		mResumeTrackId = -1;
+		return mResumePosition;
+	}
+
+	/**
+	 * Records changes of the current playlist
+	 * 
+	 * @return
+	 */
+	public PlaylistJournal getPlaylistJournal() {
+		return mPlaylistJournal;
+	}
+
 	/**
 	 * Access to global image cache across Activity instances
 	 * 
@@ -148,6 +262,61 @@ public class JamendoApplication extends Application {
 		return mImageCache;
 	}
 
+	/**
+	 * Access to the cache of streamed tracks
+	 * 
+	 * @return
+	 */
+	public AudioCache getAudioCache() {
+		return mAudioCache;
+	}
+
+	/**
+	 * Access to the throughput estimate of the network
+	 * 
+	 * @return
+	 */
+	public BandwidthMeter getBandwidthMeter() {
+		return mBandwidthMeter;
+	}
+
+	/**
+	 * Access to the policy choosing stream encoding and prefetch depth
+	 * 
+	 * @return
+	 */
+	public StreamQualityPolicy getStreamQualityPolicy() {
+		return mStreamQualityPolicy;
+	}
+
+	/**
+	 * Access to the circuit breaker shared by players and downloads
+	 * 
+	 * @return
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return mCircuitBreaker;
+	}
+
+	/**
+	 * Access to the application database, safe to be used from UI thread
+	 * as writes do not block
+	 * 
+	 * @return
+	 */
+	public Database getDatabase() {
+		return mDatabase;
+	}
+
+	/**
+	 * Thread on which all database writes should be performed
+	 * 
+	 * @return
+	 */
+	public DatabaseWriter getDatabaseWriter() {
+		return mDatabaseWriter;
+	}
+
 	/**
 	 * This setter should be only used for setting real player engine interface,
 	 * e.g. used to pass Player Service's engine
@@ -273,7 +442,24 @@ public class JamendoApplication extends Application {
 	}
 
 	/**
-	 * This function allows to add listener to the concrete player engine
+	 * Starts playback of a radio channel in the radio player service
+	 * 
+	 * @param radio
+	 */
+	public void playRadio(final RadioChannel radio) {
+		setPlayerClass(PlayerClass.RADIO);
+		final IntentPlayerEngine playerEngine = (IntentPlayerEngine) getPlayerEngineInterface();
+		playerEngine.execute(new Runnable() {
+			@Override
+			public void run() {
+				((RadioPlayerService) playerEngine.mBinder.getService()).play(radio);
+			}
+		});
+	}
+
+	/**
+	 * This function allows to add listener to the concrete player engine,
+	 * replacing the one added before by this function
 	 * 
 	 * @param l
 	 */
@@ -281,6 +467,16 @@ public class JamendoApplication extends Application {
 		getPlayerEngineInterface().setListener(l);
 	}
 
+	/**
+	 * Listeners of the concrete player engine subscribe here, any number
+	 * of them may listen at the same time
+	 * 
+	 * @return
+	 */
+	public PlayerEventBus getPlayerEventBus() {
+		return mPlayerEventBus;
+	}
+
 	/**
 	 * This function is used by PlayerService on ACTION_BIND_LISTENER in order
 	 * to get to Application's exposed listener.
@@ -288,7 +484,7 @@ public class JamendoApplication extends Application {
 	 * @return
 	 */
 	public PlayerEngineListener fetchPlayerEngineListener() {
-		return mPlayerEngineListener;
+		return mPlayerEventBus;
 	}
 
 	/**
@@ -328,22 +524,75 @@ public class JamendoApplication extends Application {
 	public String getStreamEncoding() {
 		// http://groups.google.com/group/android-developers/msg/c546760177b22197
 		// According to JBQ: ogg files are supported but not streamable
-		return JamendoGet2Api.ENCODING_MP3;
+		return mStreamQualityPolicy.getStreamEncoding();
 	}
 
 	public DownloadManager getDownloadManager() {
 		return mDownloadManager;
 	}
 
+	/**
+	 * Command waiting for the player service to be bound
+	 */
+	private static class PendingCommand {
+		final Runnable command;
+		final long time;
+
+		PendingCommand(Runnable command) {
+			this.command = command;
+			this.time = SystemClock.uptimeMillis();
+		}
+	}
+
 	/**
 	 * Since 0.9.8.7 we embrace "bindless" PlayerService thus this adapter. No
 	 * big need of code refactoring, we just wrap sending intents around defined
 	 * interface
+	 * <br><br>
+	 * Commands which may start the service are passed through a binding
+	 * to the service of the current player class, those given while it is
+	 * being bound are queued and run in order once it is bound.
 	 * 
 	 * @author Lukasz Wisniewski
 	 */
 	private class IntentPlayerEngine implements PlayerEngine {
 
+		/**
+		 * Binder of the service bound, null while binding
+		 */
+		private PlayerEngineBinder mBinder;
+
+		/**
+		 * Class of the service bound or being bound
+		 */
+		private Class<?> mBoundClass;
+
+		private long mBindTime;
+
+		private ArrayList<PendingCommand> mPendingCommands = new ArrayList<PendingCommand>();
+
+		private ServiceConnection mConnection = new ServiceConnection() {
+
+			@Override
+			public void onServiceConnected(ComponentName name, IBinder service) {
+				long now = SystemClock.uptimeMillis();
+				Log.v(TAG, "Player service bound in " + (now - mBindTime) + " ms");
+				mBinder = (PlayerEngineBinder) service;
+				while (!mPendingCommands.isEmpty() && mBinder != null) {
+					PendingCommand pending = mPendingCommands.remove(0);
+					Log.v(TAG, "Player command run after " + (now - pending.time) + " ms");
+					pending.command.run();
+				}
+			}
+
+			@Override
+			public void onServiceDisconnected(ComponentName name) {
+				// bound again by the system once the service is recreated
+				mBinder = null;
+			}
+
+		};
+
 		@Override
 		public Playlist getPlaylist() {
 			return mPlaylist;
@@ -362,22 +611,29 @@ public class JamendoApplication extends Application {
 
 		@Override
 		public void next() {
-			if (mServicePlayerEngine != null) {
-				playlistCheck();
-				mServicePlayerEngine.next();
-			} else {
-				startAction(PlayerService.ACTION_NEXT);
-			}
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					playlistCheck();
+					mBinder.getPlayerEngine().next();
+				}
+			});
 		}
 
 		@Override
-		public void openPlaylist(Playlist playlist) {
+		public void openPlaylist(final Playlist playlist) {
 			mPlaylist = playlist;
+			mPlaylistJournal.open(playlist);
+			mResumeTrackId = -1;
 			if(mServicePlayerEngine != null){
 			    mServicePlayerEngine.stop();
-//				mServicePlayerEngine.openPlaylist(playlist);
 			}
-			startAction(PlayerService.ACTION_OPENPLAYLIST);
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					mBinder.getPlayerEngine().openPlaylist(playlist);
+				}
+			});
 		}
 
 		@Override
@@ -389,31 +645,36 @@ public class JamendoApplication extends Application {
 
 		@Override
 		public void play() {
-			if (mServicePlayerEngine != null) {
-				playlistCheck();
-				mServicePlayerEngine.play();
-			} else {
-				startAction(PlayerService.ACTION_PLAY);
-			}
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					playlistCheck();
+					mBinder.getPlayerEngine().play();
+				}
+			});
 		}
 
 		@Override
 		public void prev() {
-			if (mServicePlayerEngine != null) {
-				playlistCheck();
-				mServicePlayerEngine.prev();
-			} else {
-				startAction(PlayerService.ACTION_PREV);
-			}
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					playlistCheck();
+					mBinder.getPlayerEngine().prev();
+				}
+			});
 		}
 
 		@Override
 		public void setListener(PlayerEngineListener playerEngineListener) {
+			// services are bound to the event bus, they pick
+			// the listener up from there
+			if (mPlayerEngineListener != null) {
+				mPlayerEventBus.unsubscribe(mPlayerEngineListener);
+			}
 			mPlayerEngineListener = playerEngineListener;
-			// we do not want to set this listener if Service
-			// is not up and a new listener is null
 			if (playerEngineListener != null) {
-				startAction(PlayerService.ACTION_BIND_LISTENER);
+				mPlayerEventBus.subscribe(playerEngineListener, PlayerEventBus.EVENT_ALL);
 			}
 		}
 
@@ -426,29 +687,66 @@ public class JamendoApplication extends Application {
 
 		@Override
 		public void stop() {
-			startAction(PlayerService.ACTION_STOP);
-			// stopService(new Intent(JamendoApplication.this,
-			// PlayerService.class));
+			Class<?> c = getServiceClass();
+			if (mBoundClass == c) {
+				unbind();
+			}
+			// the service is destroyed once it is neither started nor bound
+			stopService(new Intent(JamendoApplication.this, c));
+		}
+
+		/**
+		 * Runs command on the engine of the service of the current player
+		 * class, binding to the service first if needed
+		 * 
+		 * @param command
+		 */
+		void execute(Runnable command) {
+			Class<?> c = getServiceClass();
+			if (mBoundClass != c) {
+				bind(c);
+			}
+			if (mBinder != null) {
+				command.run();
+			} else {
+				mPendingCommands.add(new PendingCommand(command));
+			}
+		}
+
+		private void bind(Class<?> c) {
+			unbind();
+			Intent intent = new Intent(JamendoApplication.this, c);
+			// started too, so that it keeps playing once unbound
+			startService(intent);
+			bindService(intent, mConnection, BIND_AUTO_CREATE);
+			mBoundClass = c;
+			mBindTime = SystemClock.uptimeMillis();
+		}
+
+		/**
+		 * Unbinds service, commands not run yet are dropped
+		 */
+		private void unbind() {
+			if (mBoundClass != null) {
+				unbindService(mConnection);
+				mBoundClass = null;
+				mBinder = null;
+				mPendingCommands.clear();
+			}
 		}
 
-		private void startAction(String action) {
-		    Class<?> c;
-		    
+		private Class<?> getServiceClass() {
 		    if (playerClass == null) {
 		        throw new IllegalStateException("Player class cannot be null");
 		    }
 		    switch (playerClass) {
 		    case TRACK:
-		        c = PlayerService.class; break;
+		        return PlayerService.class;
 		    case RADIO:
-		        c = RadioPlayerService.class; break;
+		        return RadioPlayerService.class;
 		    default:
 		        throw new IllegalStateException("Unknown player class");
 		    }
-		    
-			Intent intent = new Intent(JamendoApplication.this, c);
-			intent.setAction(action);
-			startService(intent);
 		}
 
 		/**
@@ -457,11 +755,9 @@ public class JamendoApplication extends Application {
 		 * prev is pressed
 		 */
 		private void playlistCheck() {
-			if (mServicePlayerEngine != null) {
-				if (mServicePlayerEngine.getPlaylist() == null
-						&& mPlaylist != null) {
-					mServicePlayerEngine.openPlaylist(mPlaylist);
-				}
+			PlayerEngine playerEngine = mBinder.getPlayerEngine();
+			if (playerEngine.getPlaylist() == null && mPlaylist != null) {
+				playerEngine.openPlaylist(mPlaylist);
 			}
 		}
 
@@ -491,6 +787,21 @@ public class JamendoApplication extends Application {
 			
 		}
 
+		@Override
+		public void seekTo(int position) {
+			if(mServicePlayerEngine != null){
+				mServicePlayerEngine.seekTo( position );
+			}
+		}
+
+		@Override
+		public int getCurrentPosition() {
+			if(mServicePlayerEngine != null){
+				return mServicePlayerEngine.getCurrentPosition();
+			}
+			return -1;
+		}
+
 		@Override
 		public void prevList() {
 			if(mServicePlayerEngine != null){
@@ -56,6 +56,7 @@ import com.teleca.jamendo.api.Track;
 import com.teleca.jamendo.dialog.AlbumLoadingDialog;
 import com.teleca.jamendo.util.DrawableAccessor;
 import com.teleca.jamendo.util.Helper;
+import com.teleca.jamendo.util.ObjectRegistry;
 import com.teleca.jamendo.util.download.DownloadManager;
 
 // TODO context menu for tracks
@@ -105,7 +106,7 @@ public class AlbumActivity extends TabActivity{
 		
 		mBetterRes = getResources().getString(R.string.better_res);
 
-		mAlbum = (Album) getIntent().getSerializableExtra("album");
+		mAlbum = getIntent().getParcelableExtra("album");
 
 		mReviewAlbumListView = (ListView)findViewById(R.id.AlbumListView);
 		mAlbumTrackListView = (ListView)findViewById(R.id.AlbumTrackListView);
@@ -202,7 +203,11 @@ public class AlbumActivity extends TabActivity{
 
 	@SuppressWarnings("unchecked")
 	private void loadReviews() {
-		ArrayList<Review> reviews = (ArrayList<Review>)getIntent().getSerializableExtra("reviews");
+		ArrayList<Review> reviews = (ArrayList<Review>)ObjectRegistry.getExtra(getIntent(), "reviews");
+		if(reviews == null){
+			// handle is gone after the process was restarted
+			reviews = new ArrayList<Review>();
+		}
 		mReviewAdapter.setList(reviews);
 
 		final ArrayList<String> langs = Helper.getLanguageCodes(reviews);
@@ -274,12 +279,14 @@ public class AlbumActivity extends TabActivity{
 			public void onClick(DialogInterface dialog, int whichButton) {
 				
 				DownloadManager downloadManager = JamendoApplication.getInstance().getDownloadManager();
+				ArrayList<PlaylistEntry> entries = new ArrayList<PlaylistEntry>();
 				for(Track track : mAlbum.getTracks()) {
 					PlaylistEntry entry = new PlaylistEntry();
 					entry.setAlbum(mAlbum);
 					entry.setTrack(track);
-					downloadManager.download(entry);
+					entries.add(entry);
 				}
+				downloadManager.download(entries);
 				
 			}
 		})
@@ -31,8 +31,8 @@ import com.teleca.jamendo.api.PlaylistRemote;
 import com.teleca.jamendo.api.WSError;
 import com.teleca.jamendo.api.impl.JamendoGet2ApiImpl;
 import com.teleca.jamendo.db.Database;
-import com.teleca.jamendo.db.DatabaseImpl;
 import com.teleca.jamendo.service.PlayerService;
+import com.teleca.jamendo.util.ObjectRegistry;
 import com.teleca.jamendo.R;
 
 import android.app.Activity;
@@ -110,7 +110,7 @@ public class BrowsePlaylistActivity extends Activity {
 	public static void launchSave(Activity a, Playlist playlist){
 		Intent intent = new Intent(a, BrowsePlaylistActivity.class);
 		intent.putExtra("mode", Mode.Save);
-		intent.putExtra("playlist", playlist);
+		ObjectRegistry.putExtra(intent, "playlist", playlist);
 		a.startActivityForResult(intent, SAVE_REQUEST_CODE);
 	}
 
@@ -177,7 +177,7 @@ public class BrowsePlaylistActivity extends Activity {
 				PlaylistActivity.launch(BrowsePlaylistActivity.this, ((PlaylistPurpleEntry)entry).getPlaylistRemote());
 			} else {
 				String playlistName = entry.getText();
-				Playlist playlist = new DatabaseImpl(BrowsePlaylistActivity.this).loadPlaylist(playlistName);
+				Playlist playlist = JamendoApplication.getInstance().getDatabase().loadPlaylist(playlistName);
 				JamendoApplication.getInstance().getPlayerEngineInterface().openPlaylist(playlist);
 				JamendoApplication.getInstance().getPlayerEngineInterface().stop();
 				// leave the activity on the stack
@@ -234,7 +234,7 @@ public class BrowsePlaylistActivity extends Activity {
 			if(playlistName.length() == 0 || playlistName.startsWith(" "))
 				return;
 			
-			Database db = new DatabaseImpl(BrowsePlaylistActivity.this);
+			Database db = JamendoApplication.getInstance().getDatabase();
 			
 			if(db.loadPlaylist(playlistName) != null ){
 				Toast.makeText(BrowsePlaylistActivity.this, R.string.playlist_exists, Toast.LENGTH_SHORT).show();
@@ -257,7 +257,17 @@ public class BrowsePlaylistActivity extends Activity {
 		this.mCurrentMode = mode;
 
 		if(mCurrentMode == Mode.Save){
-			mPlaylist = (Playlist)getIntent().getSerializableExtra("playlist");
+			mPlaylist = (Playlist)ObjectRegistry.getExtra(getIntent(), "playlist");
+			if(mPlaylist == null){
+				// handle is gone after the process was restarted, the playlist
+				// shown then is the one restored by PlaylistJournal
+				mPlaylist = JamendoApplication.getInstance().getPlayerEngineInterface().getPlaylist();
+			}
+			if(mPlaylist == null){
+				// nothing to save
+				finish();
+				return;
+			}
 			mButton.setText(R.string.save);
 			mButton.setOnClickListener(mSaveButtonListener );
 			mPlaylistsListView.setOnItemClickListener(mSaveListListener);
@@ -284,7 +294,7 @@ public class BrowsePlaylistActivity extends Activity {
 		PurpleAdapter purpleAdapter = new PurpleAdapter(this);
 		ArrayList<PurpleEntry> list = new ArrayList<PurpleEntry>();
 
-		ArrayList<String> playlists = new DatabaseImpl(this).getAvailablePlaylists();
+		ArrayList<String> playlists = JamendoApplication.getInstance().getDatabase().getAvailablePlaylists();
 
 		for(String playlistName : playlists){
 			PurpleEntry entry = new PurpleEntry(null, playlistName);
@@ -312,7 +322,7 @@ public class BrowsePlaylistActivity extends Activity {
 	 * @param playlistName
 	 */
 	private void savePlaylist(String playlistName){
-		Database db = new DatabaseImpl(this);
+		Database db = JamendoApplication.getInstance().getDatabase();
 		if(db.playlistExists(playlistName)){
 			mPlaylistName = playlistName;
 			showDialog(OVERWRITE_YES_NO_MESSAGE);
@@ -340,7 +350,7 @@ public class BrowsePlaylistActivity extends Activity {
 						whichButton) {
 
 					// User clicked OK, overwrite the playlist
-					Database db = new DatabaseImpl(BrowsePlaylistActivity.this);
+					Database db = JamendoApplication.getInstance().getDatabase();
 					db.savePlaylist(mPlaylist, mPlaylistName);
 					setResult(RESULT_OK, null); 
 					finish();
@@ -356,7 +366,7 @@ public class BrowsePlaylistActivity extends Activity {
 						whichButton) {
 
 					// User clicked OK, delete the playlist
-					Database db = new DatabaseImpl(BrowsePlaylistActivity.this);
+					Database db = JamendoApplication.getInstance().getDatabase();
 					db.deletePlaylist(mPlaylistName);
 					loadPlaylists();
 				}
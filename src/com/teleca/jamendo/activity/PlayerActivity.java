@@ -68,7 +68,10 @@ import com.teleca.jamendo.dialog.PlayerAlbumLoadingDialog;
 import com.teleca.jamendo.dialog.PlaylistRemoteLoadingDialog;
 import com.teleca.jamendo.media.PlayerEngine;
 import com.teleca.jamendo.media.PlayerEngineListener;
+import com.teleca.jamendo.media.PlayerEventBus;
 import com.teleca.jamendo.media.RadioPlayerEngineImpl;
+import com.teleca.jamendo.util.CircuitBreaker;
+import com.teleca.jamendo.util.ObjectRegistry;
 import com.teleca.jamendo.util.Helper;
 import com.teleca.jamendo.util.OnSeekToListenerImp;
 import com.teleca.jamendo.util.SeekToMode;
@@ -129,6 +132,11 @@ public class PlayerActivity extends Activity {
     private LoadingDialog mUriLoadingDialog;
 
     SeekToMode seekToMode;
+    /**
+     * Set while a seek position is previewed, progress reported
+     * by the engine is not shown then
+     */
+    private boolean mSeekPreview;
     Handler mHandlerOfFadeOutAnimation;
     Runnable mRunnableOfFadeOutAnimation;
 
@@ -142,7 +150,7 @@ public class PlayerActivity extends Activity {
      */
     public static void launch(Context c, Playlist playlist) {
         Intent intent = new Intent(c, PlayerActivity.class);
-        intent.putExtra("playlist", playlist);
+        ObjectRegistry.putExtra(intent, "playlist", playlist);
 
         /*
          * For example, consider a task consisting of the activities: A, B, C, D. If D calls startActivity() with an
@@ -310,7 +318,7 @@ public class PlayerActivity extends Activity {
         Log.i(JamendoApplication.TAG, "PlayerActivity.onResume");
 
         // register UI listener
-        JamendoApplication.getInstance().setPlayerEngineListener(mPlayerEngineListener);
+        JamendoApplication.getInstance().getPlayerEventBus().subscribe(mPlayerEngineListener, PlayerEventBus.EVENT_ALL);
 
         // refresh UI
         if (getPlayerEngine() != null) {
@@ -370,7 +378,7 @@ public class PlayerActivity extends Activity {
         Log.i(JamendoApplication.TAG, "PlayerActivity.onPause");
 
         // unregister UI listener
-        JamendoApplication.getInstance().setPlayerEngineListener(null);
+        JamendoApplication.getInstance().getPlayerEventBus().unsubscribe(mPlayerEngineListener);
     }
 
     /**
@@ -588,6 +596,9 @@ public class PlayerActivity extends Activity {
 
         @Override
         public void onTrackProgress(int seconds) {
+            if (mSeekPreview) {
+                return;
+            }
             mCurrentTimeTextView.setText(Helper.secondsToString(seconds));
             mProgressBar.setProgress(seconds);
         }
@@ -616,7 +627,20 @@ public class PlayerActivity extends Activity {
 
         @Override
         public void onTrackStreamError() {
-            Toast.makeText(PlayerActivity.this, R.string.stream_error, Toast.LENGTH_LONG).show();
+            String url = null;
+            Playlist playlist = getPlayerEngine().getPlaylist();
+            if (playlist != null && playlist.getSelectedTrack() != null) {
+                url = playlist.getSelectedTrack().getTrack().getStream();
+            }
+            CircuitBreaker circuitBreaker = JamendoApplication.getInstance().getCircuitBreaker();
+            if (circuitBreaker.isOpen(url)) {
+                // the server is down, not just this track
+                long seconds = Math.max((circuitBreaker.getRetryDelay(url) + 999) / 1000, 1);
+                Toast.makeText(PlayerActivity.this, getString(R.string.stream_host_unavailable, seconds),
+                        Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(PlayerActivity.this, R.string.stream_error, Toast.LENGTH_LONG).show();
+            }
         }
 
     };
@@ -643,7 +667,12 @@ public class PlayerActivity extends Activity {
             }
 
         } else {
-            playlist = (Playlist) getIntent().getSerializableExtra("playlist");
+            playlist = (Playlist) ObjectRegistry.getExtra(getIntent(), "playlist");
+            if (playlist == null) {
+                // handle is gone after the process was restarted, the playlist
+                // was opened before and PlaylistJournal restored it
+                playlist = getPlayerEngine().getPlaylist();
+            }
             loadPlaylist(playlist);
         }
     }
@@ -946,9 +975,22 @@ public class PlayerActivity extends Activity {
 
     public void onStartSeekToProcess() {
         mHandlerOfFadeOutAnimation.removeCallbacks(mRunnableOfFadeOutAnimation);
+        mSeekPreview = true;
+    }
+
+    /**
+     * Shows position the song is going to be sought to
+     * 
+     * @param position in miliseconds
+     */
+    public void onSeekToPreview(int position) {
+        int seconds = position / 1000;
+        mCurrentTimeTextView.setText(Helper.secondsToString(seconds));
+        mProgressBar.setProgress(seconds);
     }
 
     public void onFinishSeekToProcess() {
+        mSeekPreview = false;
         mHandlerOfFadeOutAnimation.removeCallbacks(mRunnableOfFadeOutAnimation);
         mHandlerOfFadeOutAnimation.postDelayed(mRunnableOfFadeOutAnimation, 7500);
     }
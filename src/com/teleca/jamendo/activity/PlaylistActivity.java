@@ -44,9 +44,9 @@ import com.teleca.jamendo.api.Playlist;
 import com.teleca.jamendo.api.PlaylistEntry;
 import com.teleca.jamendo.api.PlaylistRemote;
 import com.teleca.jamendo.db.Database;
-import com.teleca.jamendo.db.DatabaseImpl;
 import com.teleca.jamendo.dialog.PlaylistRemoteLoadingDialog;
 import com.teleca.jamendo.util.Helper;
+import com.teleca.jamendo.util.ObjectRegistry;
 import com.teleca.jamendo.widget.AlbumBar;
 
 // TODO autosave or save question on playlist modification
@@ -174,7 +174,7 @@ public class PlaylistActivity extends Activity {
 
 		case CONTEXT_REMOVE:
 			if(mFavorites){
-				Database db = new DatabaseImpl(this);
+				Database db = JamendoApplication.getInstance().getDatabase();
 				db.removeFromFavorites(mPlaylist.getTrack(menuInfo.position));
 			}
 			mPlaylist.remove(menuInfo.position);
@@ -224,13 +224,13 @@ public class PlaylistActivity extends Activity {
 
 	private void loadTracks(){
 		if(mFavorites){
-			Playlist playlist = new DatabaseImpl(this).getFavorites();
+			Playlist playlist = JamendoApplication.getInstance().getDatabase().getFavorites();
 			if(playlist.isEmpty())
 				return;
 		}
 		
 		// try loading playlist off the intent
-		mPlaylist = (Playlist)getIntent().getSerializableExtra("playlist");
+		mPlaylist = (Playlist)ObjectRegistry.getExtra(getIntent(), "playlist");
 		
 		// if there is no intent, playlist might be set in the engine
 
@@ -45,9 +45,10 @@ import com.teleca.jamendo.activity.RadioActivity.RadioChannel;
 import com.teleca.jamendo.api.PlaylistEntry;
 import com.teleca.jamendo.media.PlayerEngine;
 import com.teleca.jamendo.media.PlayerEngineListener;
+import com.teleca.jamendo.media.PlayerEventBus;
 import com.teleca.jamendo.media.RadioPlayerEngineImpl;
-import com.teleca.jamendo.service.PlayerService;
 import com.teleca.jamendo.service.RadioPlayerService;
+import com.teleca.jamendo.util.CircuitBreaker;
 import com.teleca.jamendo.util.Helper;
 import com.teleca.jamendo.util.SeekToMode;
 import com.teleca.jamendo.widget.ReflectableLayout;
@@ -200,7 +201,7 @@ public class RadioPlayerActivity extends Activity {
         });
 
         // if entry's not null then we're started from service and already playing
-        PlaylistEntry entry = (PlaylistEntry) getIntent().getSerializableExtra(RadioPlayerService.EXTRA_PLAYLISTENTRY);
+        PlaylistEntry entry = getIntent().getParcelableExtra(RadioPlayerService.EXTRA_PLAYLISTENTRY);
         if (entry != null) {
             mRadioChannel = (RadioChannel) getIntent().getSerializableExtra(RadioPlayerActivity.EXTRA_RADIO);
             setupFromEntry(entry);
@@ -219,7 +220,7 @@ public class RadioPlayerActivity extends Activity {
             JamendoApplication.getInstance().setConcretePlayerEngine(null);
         }
 
-        JamendoApplication.getInstance().setPlayerEngineListener(mPlayerEngineListener);
+        JamendoApplication.getInstance().getPlayerEventBus().subscribe(mPlayerEngineListener, PlayerEventBus.EVENT_ALL);
 
         if (mCurrentTrack == null) {
             startPlayback();
@@ -230,8 +231,7 @@ public class RadioPlayerActivity extends Activity {
     public void onPause() {
         super.onPause();
 
-        JamendoApplication.getInstance().setPlayerEngineListener(null);
-        bindListener();
+        JamendoApplication.getInstance().getPlayerEventBus().unsubscribe(mPlayerEngineListener);
 
         Log.i(TAG, "RadioPlayerActivity.onPause");
     }
@@ -383,7 +383,15 @@ public class RadioPlayerActivity extends Activity {
 
         @Override
         public void onTrackStreamError() {
-            Toast.makeText(RadioPlayerActivity.this, R.string.stream_error, Toast.LENGTH_LONG).show();
+            String url = mRadioChannel == null ? null : mRadioChannel.getStreamUrl();
+            CircuitBreaker circuitBreaker = JamendoApplication.getInstance().getCircuitBreaker();
+            if (circuitBreaker.isOpen(url)) {
+                long seconds = Math.max((circuitBreaker.getRetryDelay(url) + 999) / 1000, 1);
+                Toast.makeText(RadioPlayerActivity.this, getString(R.string.stream_host_unavailable, seconds),
+                        Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(RadioPlayerActivity.this, R.string.stream_error, Toast.LENGTH_LONG).show();
+            }
         }
 
     };
@@ -417,32 +425,14 @@ public class RadioPlayerActivity extends Activity {
      * Order the service to start playback Shows loading dialog which, if canceled, will also finish activity
      */
     private void startPlayback() {
-        bindListener();
-
-        Intent i = new Intent(RadioPlayerActivity.this, RadioPlayerService.class);
-        i.setAction(PlayerService.ACTION_PLAY);
-        i.putExtra(EXTRA_RADIO, mRadioChannel);
-        startService(i);
-    }
-
-    /**
-     * Order the service to bind to listener
-     */
-    private void bindListener() {
-        Intent i = new Intent(RadioPlayerActivity.this, RadioPlayerService.class);
-        i.setAction(PlayerService.ACTION_BIND_LISTENER);
-        i.putExtra(EXTRA_RADIO, mRadioChannel);
-        startService(i);
+        JamendoApplication.getInstance().playRadio(mRadioChannel);
     }
 
     /**
      * Order the service to stop playback
      */
     private void stopPlayback() {
-        Intent i = new Intent(RadioPlayerActivity.this, RadioPlayerService.class);
-        i.setAction(PlayerService.ACTION_STOP);
-        i.putExtra(EXTRA_RADIO, mRadioChannel);
-        startService(i);
+        getPlayerEngine().stop();
     }
 
     /**
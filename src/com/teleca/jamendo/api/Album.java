@@ -18,13 +18,16 @@ package com.teleca.jamendo.api;
 
 import java.io.Serializable;
 
+import android.os.Parcel;
+import android.os.Parcelable;
+
 /**
  * unit album
  * 
  * @author Lukasz Wisniewski
  * @author Marcin Gil
  */
-public class Album implements Serializable {
+public class Album implements Serializable, Parcelable {
 	
 	private static final long serialVersionUID = 8517633545835124349L;
 	
@@ -96,4 +99,38 @@ public class Album implements Serializable {
 	public Track[] getTracks() {
 		return tracks;
 	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeInt(id);
+		dest.writeString(image);
+		dest.writeString(name);
+		dest.writeDouble(rating);
+		dest.writeString(artistName);
+		dest.writeTypedArray(tracks, flags);
+	}
+
+	public static final Parcelable.Creator<Album> CREATOR = new Parcelable.Creator<Album>() {
+		@Override
+		public Album createFromParcel(Parcel in) {
+			Album album = new Album();
+			album.id = in.readInt();
+			album.image = in.readString();
+			album.name = in.readString();
+			album.rating = in.readDouble();
+			album.artistName = in.readString();
+			album.tracks = in.createTypedArray(Track.CREATOR);
+			return album;
+		}
+
+		@Override
+		public Album[] newArray(int size) {
+			return new Album[size];
+		}
+	};
 }
@@ -43,6 +43,10 @@ import org.json.JSONException;
 public interface JamendoGet2Api {
 	
 	public static final String ENCODING_MP3 = "mp31";
+	/**
+	 * Higher bitrate (VBR) mp3, for streaming over fast links
+	 */
+	public static final String ENCODING_MP3_HQ = "mp32";
 	public static final String ENCODING_OGG = "ogg2";
 
 	/**
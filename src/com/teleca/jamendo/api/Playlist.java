@@ -18,13 +18,17 @@ package com.teleca.jamendo.api;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Random;
 
 import android.util.Log;
 
+import com.teleca.jamendo.util.IntIntMap;
+
 /**
  * @author Lukasz Wisniewski
  */
@@ -41,9 +45,53 @@ public class Playlist implements Serializable {
 	}
 
 	/**
-	 * Keep order in which tracks will be play
+	 * Initial capacity of play order arrays
+	 */
+	private static final int INITIAL_ORDER_CAPACITY = 16;
+
+	private static final Random RANDOM = new Random();
+
+	private static final PlaylistListener[] NO_LISTENERS = new PlaylistListener[0];
+
+	/**
+	 * Entries are serialized as a list of <code>PlaylistEntry</code> objects,
+	 * so that playlists stored in the database stay readable
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("mOrder", int[].class),
+			new ObjectStreamField("mOrderPositions", int[].class),
+			new ObjectStreamField("mDrawn", int.class),
+			new ObjectStreamField("mPlaylistPlaybackMode", PlaylistPlaybackMode.class),
+			new ObjectStreamField("playlist", ArrayList.class),
+			new ObjectStreamField("selected", int.class) };
+
+	/**
+	 * Keep order in which tracks will be play in shuffle modes, maps position
+	 * in play order to index of the playlist entry. In other modes play order
+	 * is the order of the playlist and this is not consulted.
+	 */
+	private int[] mOrder = new int[INITIAL_ORDER_CAPACITY];
+
+	/**
+	 * Inverse of mOrder, maps index of the playlist entry to its position
+	 * in play order
+	 */
+	private int[] mOrderPositions = new int[INITIAL_ORDER_CAPACITY];
+
+	/**
+	 * Number of play order positions already drawn in shuffle mode. Drawn
+	 * positions up to the selected one are the history, the ones after it
+	 * were drawn to look ahead and are not played yet. Entries at the
+	 * following positions are the not yet played pool from which next
+	 * positions are drawn on demand.
 	 */
-	private ArrayList<Integer> mPlayOrder = new ArrayList<Integer>();
+	private int mDrawn = 0;
+
+	/**
+	 * Maps track id to the index of its first playlist entry, built
+	 * on demand
+	 */
+	private transient IntIntMap mTrackIndex;
 
 	/**
 	 * Keep playlist playback mode
@@ -70,31 +118,50 @@ public class Playlist implements Serializable {
 			Log.d(TAG, "(Set mode) selected = " + selected);
 			Log.d(TAG, "Plyback mode set on: " + aPlaylistPlaybackMode);
 		}
-		boolean force = false;
-		switch (aPlaylistPlaybackMode) {
-		case NORMAL:
-		case REPEAT:
-			if (mPlaylistPlaybackMode == PlaylistPlaybackMode.SHUFFLE
-					|| mPlaylistPlaybackMode == PlaylistPlaybackMode.SHUFFLE_AND_REPEAT) {
-				force = true;
-			}
-			break;
-		case SHUFFLE:
-		case SHUFFLE_AND_REPEAT:
-			if (mPlaylistPlaybackMode == PlaylistPlaybackMode.NORMAL
-					|| mPlaylistPlaybackMode == PlaylistPlaybackMode.REPEAT) {
-				force = true;
+		boolean wasShuffled = isShuffled();
+		int index = selected >= 0 && selected < size() ? indexAt(selected) : -1;
+
+		mPlaylistPlaybackMode = aPlaylistPlaybackMode;
+		for (PlaylistListener listener : getListeners()) {
+			listener.onPlaybackModeChanged(aPlaylistPlaybackMode);
+		}
+
+		if (isShuffled() && !wasShuffled) {
+			// new shuffle starts with the current entry, the rest is drawn
+			// when needed
+			mDrawn = 0;
+			if (index != -1) {
+				swapOrder(0, mOrderPositions[index]);
+				mDrawn = 1;
+				selected = 0;
 			}
-			break;
+		} else if (!isShuffled() && wasShuffled) {
+			selected = index;
 		}
-		mPlaylistPlaybackMode = aPlaylistPlaybackMode;
-		calculateOrder(force);
+	}
+
+	private boolean isShuffled() {
+		return mPlaylistPlaybackMode == PlaylistPlaybackMode.SHUFFLE
+				|| mPlaylistPlaybackMode == PlaylistPlaybackMode.SHUFFLE_AND_REPEAT;
 	}
 
 	/**
 	 * Keeps playlist's entries
 	 */
-	protected ArrayList<PlaylistEntry> playlist = null;
+	private PlaylistStore playlist = null;
+
+	/**
+	 * Entry returned for the selected track, kept so that it is the same
+	 * object as long as the track stays selected
+	 */
+	private transient PlaylistEntry mSelectedEntry;
+
+	private transient int mSelectedEntryIndex = -1;
+
+	/**
+	 * Listeners to changes of the playlist, null if there are none
+	 */
+	private transient ArrayList<PlaylistListener> mListeners;
 
 	/**
 	 * Keeps record of currently selected track
@@ -105,8 +172,8 @@ public class Playlist implements Serializable {
 		if (Log.isLoggable(TAG, Log.DEBUG)) {
 			Log.d(TAG, "Playlist constructor start");
 		}
-		playlist = new ArrayList<PlaylistEntry>();
-		calculateOrder(true);
+		playlist = new PlaylistStore();
+		calculateOrder();
 		if (Log.isLoggable(TAG, Log.DEBUG)) {
 			Log.d(TAG, "Playlist constructor stop");
 		}
@@ -121,12 +188,12 @@ public class Playlist implements Serializable {
 	 *            <code>Album</code> instance
 	 */
 	public void addTrack(Track track, Album album) {
-		PlaylistEntry playlistEntry = new PlaylistEntry();
-		playlistEntry.setAlbum(album);
-		playlistEntry.setTrack(track);
-
-		playlist.add(playlistEntry);
-		mPlayOrder.add(size() - 1);
+		playlist.add(track, album);
+		appendToOrder(size() - 1);
+		indexTrack(size() - 1);
+		for (PlaylistListener listener : getListeners()) {
+			listener.onEntryAdded(getTrack(size() - 1));
+		}
 	}
 
 	/**
@@ -151,12 +218,16 @@ public class Playlist implements Serializable {
 	}
 
 	/**
-	 * Selects next song from the playlist
+	 * Selects next song from the playlist, in shuffle modes wrapping around
+	 * starts a new shuffle
 	 */
 	public void selectNext() {
 		if (!isEmpty()) {
 			selected++;
-			selected %= playlist.size();
+			if (selected >= playlist.size()) {
+				selected = 0;
+				mDrawn = 0;
+			}
 			if (Log.isLoggable(TAG, Log.DEBUG)) {
 				Log.d("TAG", "Current (next) selected = " + selected);
 			}
@@ -184,19 +255,39 @@ public class Playlist implements Serializable {
 	 */
 	public void select(int index) {
 		if (!isEmpty()) {
-			if (index >= 0 && index < playlist.size())
-				selected = mPlayOrder.indexOf(index);
+			if (index >= 0 && index < playlist.size()) {
+				if (!isShuffled()) {
+					selected = index;
+					return;
+				}
+				if (selected >= 0) {
+					draw(selected);
+				}
+				int position = mOrderPositions[index];
+				int next = selected + 1;
+				if (position >= next) {
+					if (position >= mDrawn) {
+						// taken out of the unplayed pool as the next drawn position
+						swapOrder(mDrawn, position);
+						position = mDrawn++;
+					}
+					// played right after the history, entries drawn ahead of
+					// it stay unplayed and keep their order
+					moveOrder(position, next);
+					position = next;
+				}
+				selected = position;
+			}
 		}
 	}
 
 	public void selectOrAdd(Track track, Album album) {
 
 		// first search thru available tracks
-		for (int i = 0; i < playlist.size(); i++) {
-			if (playlist.get(i).getTrack().getId() == track.getId()) {
-				select(i);
-				return;
-			}
+		int index = indexOf(track.getId());
+		if (index != -1) {
+			select(index);
+			return;
 		}
 
 		// add track if necessary
@@ -204,6 +295,38 @@ public class Playlist implements Serializable {
 		select(playlist.size() - 1);
 	}
 
+	/**
+	 * Finds the first entry of a given track
+	 * 
+	 * @param trackId
+	 * @return index of the entry or -1 if the track is not on the playlist
+	 */
+	public int indexOf(int trackId) {
+		if (mTrackIndex == null) {
+			mTrackIndex = new IntIntMap(size());
+			for (int i = 0; i < size(); i++) {
+				indexTrack(i);
+			}
+		}
+		return mTrackIndex.get(trackId, -1);
+	}
+
+	/**
+	 * Checks if a given track is already on the playlist
+	 * 
+	 * @param track
+	 * @return
+	 */
+	public boolean contains(Track track) {
+		return indexOf(track.getId()) != -1;
+	}
+
+	private void indexTrack(int index) {
+		if (mTrackIndex != null) {
+			mTrackIndex.putIfAbsent(playlist.getTrackId(index), index);
+		}
+	}
+
 	/**
 	 * Return index of the currently selected song
 	 * 
@@ -219,6 +342,51 @@ public class Playlist implements Serializable {
 		return selected;
 	}
 
+	/**
+	 * Return index of the entry of the currently selected song
+	 * 
+	 * @return int value (-1 if the playlist is empty)
+	 */
+	public int getSelectedEntryIndex() {
+		int position = getSelectedIndex();
+		return position == -1 ? -1 : indexAt(position);
+	}
+
+	/**
+	 * Gives index of the entry <code>selectNext</code> would select,
+	 * without selecting it
+	 * 
+	 * @return int value (-1 if playback ends after the selected song or
+	 * the next song is not known yet, i.e. a new shuffle starts)
+	 */
+	public int getNextEntryIndex() {
+		int[] next = getUpcomingEntryIndexes(1);
+		return next.length == 0 ? -1 : next[0];
+	}
+
+	/**
+	 * Gives indexes of entries following the selected one in play order,
+	 * without selecting them
+	 * 
+	 * @param count maximum number of entries
+	 * @return indexes in play order, fewer than count if playback ends
+	 * before or the following songs are not known yet
+	 */
+	public int[] getUpcomingEntryIndexes(int count) {
+		int position = getSelectedIndex();
+		if (position == -1) {
+			return new int[0];
+		}
+		int size = size();
+		boolean wrap = mPlaylistPlaybackMode == PlaylistPlaybackMode.REPEAT;
+		int available = wrap ? size : size - position - 1;
+		int[] indexes = new int[Math.max(0, Math.min(count, available))];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = indexAt((position + i + 1) % size);
+		}
+		return indexes;
+	}
+
 	/**
 	 * Return currently selected song
 	 * 
@@ -231,11 +399,12 @@ public class Playlist implements Serializable {
 		if (index == -1) {
 			return null;
 		}
-		index = mPlayOrder.get(index);
-		if (index == -1) {
-			return null;
+		int entryIndex = indexAt(index);
+		if (mSelectedEntry == null || mSelectedEntryIndex != entryIndex) {
+			mSelectedEntry = playlist.get(entryIndex);
+			mSelectedEntryIndex = entryIndex;
 		}
-		playlistEntry = playlist.get(index);		
+		playlistEntry = mSelectedEntry;
 
 		return playlistEntry;
 
@@ -248,8 +417,12 @@ public class Playlist implements Serializable {
 	 */
 	public void addPlaylistEntry(PlaylistEntry playlistEntry) {
 		if (playlistEntry != null) {
-			playlist.add(playlistEntry);
-			mPlayOrder.add(size() - 1);
+			playlist.add(playlistEntry.getTrack(), playlistEntry.getAlbum());
+			appendToOrder(size() - 1);
+			indexTrack(size() - 1);
+			for (PlaylistListener listener : getListeners()) {
+				listener.onEntryAdded(playlistEntry);
+			}
 		}
 	}
 
@@ -269,6 +442,9 @@ public class Playlist implements Serializable {
 	 * @return
 	 */
 	public PlaylistEntry getTrack(int index) {
+		if (index == mSelectedEntryIndex && mSelectedEntry != null) {
+			return mSelectedEntry;
+		}
 		return playlist.get(index);
 	}
 
@@ -279,7 +455,9 @@ public class Playlist implements Serializable {
 	 */
 	public PlaylistEntry[] getAllTracks() {
 		PlaylistEntry[] out = new PlaylistEntry[playlist.size()];
-		playlist.toArray(out);
+		for (int i = 0; i < out.length; i++) {
+			out[i] = getTrack(i);
+		}
 		return out;
 	}
 
@@ -291,64 +469,191 @@ public class Playlist implements Serializable {
 	public void remove(int position) {
 		if (playlist != null && position < playlist.size() && position >= 0) {
 
-			if (selected >= position) {
+			int orderPosition = mOrderPositions[position];
+			if (selected >= positionOf(position)) {
 				selected--;
 			}
+			if (orderPosition < mDrawn) {
+				mDrawn--;
+			}
 
 			playlist.remove(position);
-			mPlayOrder.remove(position);
+
+			if (position == mSelectedEntryIndex) {
+				mSelectedEntry = null;
+				mSelectedEntryIndex = -1;
+			} else if (position < mSelectedEntryIndex) {
+				mSelectedEntryIndex--;
+			}
+
+			// indexes of all following entries changed, index is rebuilt
+			// on next lookup
+			mTrackIndex = null;
+
+			// close the gap in play order and shift indexes of entries
+			// following the removed one, then rebuild the inverse
+			int size = playlist.size();
+			System.arraycopy(mOrder, orderPosition + 1, mOrder, orderPosition, size - orderPosition);
+			for (int i = 0; i < size; i++) {
+				if (mOrder[i] > position) {
+					mOrder[i]--;
+				}
+				mOrderPositions[mOrder[i]] = i;
+			}
+
+			for (PlaylistListener listener : getListeners()) {
+				listener.onEntryRemoved(position);
+			}
 		}
 	}
 
 	/**
-	 * Change order playback list when it is needed
+	 * Puts entry with a given index at the end of play order, in shuffle
+	 * modes this is the unplayed pool
 	 * 
-	 * @param force
+	 * @param index
 	 */
-	private void calculateOrder(boolean force) {
-		if (mPlayOrder.isEmpty() || force) {
-			int oldSelected = 0;
+	private void appendToOrder(int index) {
+		ensureOrderCapacity(index + 1);
+		mOrder[index] = index;
+		mOrderPositions[index] = index;
+	}
 
-			if (!mPlayOrder.isEmpty()) {
-				oldSelected = mPlayOrder.get(selected);
-				mPlayOrder.clear();
-			}
+	private void ensureOrderCapacity(int capacity) {
+		if (mOrder.length < capacity) {
+			int newCapacity = Math.max(capacity, mOrder.length * 2);
+			mOrder = Arrays.copyOf(mOrder, newCapacity);
+			mOrderPositions = Arrays.copyOf(mOrderPositions, newCapacity);
+		}
+	}
 
-			for (int i = 0; i < size(); i++) {
-				mPlayOrder.add(i, i);
-			}
+	/**
+	 * Gives index of the entry at a given play order position
+	 * 
+	 * @param position
+	 * @return
+	 */
+	private int indexAt(int position) {
+		if (!isShuffled()) {
+			return position;
+		}
+		draw(position);
+		return mOrder[position];
+	}
 
-			if (mPlaylistPlaybackMode == null) {
-				mPlaylistPlaybackMode = PlaylistPlaybackMode.NORMAL;
-			}
+	/**
+	 * Gives play order position of the entry with a given index
+	 * 
+	 * @param index
+	 * @return
+	 */
+	private int positionOf(int index) {
+		return isShuffled() ? mOrderPositions[index] : index;
+	}
 
-			if (Log.isLoggable(TAG, Log.DEBUG)) {
-				Log.d(TAG, "Playlist has been maped in "
-						+ mPlaylistPlaybackMode + " mode.");
-			}
+	/**
+	 * Draws shuffle order up to a given position, one step of Fisher-Yates
+	 * per position
+	 * 
+	 * @param position
+	 */
+	private void draw(int position) {
+		int size = size();
+		while (mDrawn <= position && mDrawn < size) {
+			swapOrder(mDrawn, mDrawn + RANDOM.nextInt(size - mDrawn));
+			mDrawn++;
+		}
+	}
 
-			switch (mPlaylistPlaybackMode) {
-			case NORMAL:
-			case REPEAT:
-				selected = oldSelected;
-				break;
-			case SHUFFLE:
-			case SHUFFLE_AND_REPEAT:
-				if (Log.isLoggable(TAG, Log.DEBUG)) {
-					Log.d(TAG, "Before shuffle: "
-							+ Arrays.toString(mPlayOrder.toArray()));
-				}
-				Collections.shuffle(mPlayOrder);
-				selected = mPlayOrder.indexOf(selected);
-				if (Log.isLoggable(TAG, Log.DEBUG)) {
-					Log.d(TAG, "After shuffle: "
-							+ Arrays.toString(mPlayOrder.toArray()));
-				}
-				break;
-			}
+	/**
+	 * Moves entry at a given play order position to an earlier one, entries
+	 * in between shift one position later
+	 * 
+	 * @param from
+	 * @param to
+	 */
+	private void moveOrder(int from, int to) {
+		int index = mOrder[from];
+		System.arraycopy(mOrder, to, mOrder, to + 1, from - to);
+		mOrder[to] = index;
+		for (int i = to; i <= from; i++) {
+			mOrderPositions[mOrder[i]] = i;
+		}
+	}
+
+	private void swapOrder(int i, int j) {
+		int index = mOrder[i];
+		mOrder[i] = mOrder[j];
+		mOrder[j] = index;
+		mOrderPositions[mOrder[i]] = i;
+		mOrderPositions[mOrder[j]] = j;
+	}
+
+	/**
+	 * Rebuilds play order of a playlist deserialized without it, selected
+	 * is then an index of the entry
+	 */
+	private void calculateOrder() {
+		int size = size();
+		int oldSelected = selected >= 0 && selected < size ? selected : -1;
+
+		mOrder = new int[INITIAL_ORDER_CAPACITY];
+		mOrderPositions = new int[INITIAL_ORDER_CAPACITY];
+		ensureOrderCapacity(size);
+		for (int i = 0; i < size; i++) {
+			mOrder[i] = i;
+			mOrderPositions[i] = i;
+		}
+
+		if (mPlaylistPlaybackMode == null) {
+			mPlaylistPlaybackMode = PlaylistPlaybackMode.NORMAL;
+		}
+
+		if (Log.isLoggable(TAG, Log.DEBUG)) {
+			Log.d(TAG, "Playlist has been maped in "
+					+ mPlaylistPlaybackMode + " mode.");
+		}
+
+		mDrawn = 0;
+		selected = oldSelected;
+		if (isShuffled() && oldSelected != -1) {
+			swapOrder(0, oldSelected);
+			mDrawn = 1;
+			selected = 0;
 		}
 	}
 
+	/**
+	 * Adds listener to changes of the playlist
+	 * 
+	 * @param listener
+	 */
+	public void addListener(PlaylistListener listener) {
+		if (mListeners == null) {
+			mListeners = new ArrayList<PlaylistListener>();
+		}
+		if (!mListeners.contains(listener)) {
+			mListeners.add(listener);
+		}
+	}
+
+	public void removeListener(PlaylistListener listener) {
+		if (mListeners != null) {
+			mListeners.remove(listener);
+		}
+	}
+
+	/**
+	 * @return copy of the listeners, so that they may remove themselves
+	 * while notified
+	 */
+	private PlaylistListener[] getListeners() {
+		if (mListeners == null) {
+			return NO_LISTENERS;
+		}
+		return mListeners.toArray(new PlaylistListener[mListeners.size()]);
+	}
+
 	/**
 	 * Inform weather it is last track on playlist
 	 * 
@@ -361,15 +666,45 @@ public class Playlist implements Serializable {
 			return false;
 	}
 
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("mOrder", mOrder);
+		fields.put("mOrderPositions", mOrderPositions);
+		fields.put("mDrawn", mDrawn);
+		fields.put("mPlaylistPlaybackMode", mPlaylistPlaybackMode);
+		fields.put("playlist", playlist.toList());
+		fields.put("selected", selected);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 		//This method is used when playlist is deserializable form DB
-		in.defaultReadObject();
-		if(mPlayOrder == null){
+		ObjectInputStream.GetField fields = in.readFields();
+		mOrder = (int[]) fields.get("mOrder", null);
+		mOrderPositions = (int[]) fields.get("mOrderPositions", null);
+		mDrawn = fields.get("mDrawn", 0);
+		mPlaylistPlaybackMode = (PlaylistPlaybackMode) fields.get("mPlaylistPlaybackMode", null);
+		selected = fields.get("selected", -1);
+
+		ArrayList<PlaylistEntry> entries = (ArrayList<PlaylistEntry>) fields.get("playlist", null);
+		playlist = new PlaylistStore(entries == null ? 0 : entries.size());
+		if (entries != null) {
+			for (PlaylistEntry entry : entries) {
+				playlist.add(entry.getTrack(), entry.getAlbum());
+			}
+		}
+		mSelectedEntryIndex = -1;
+
+		if(mOrder == null || mOrderPositions == null){
 			if (Log.isLoggable(TAG, Log.DEBUG)) {
-				Log.d(TAG, "mPlayOrder is NULL");
+				Log.d(TAG, "mOrder is NULL");
 			}
-			mPlayOrder = new ArrayList<Integer>();
-			calculateOrder(true);
+			calculateOrder();
+		} else if (selected >= mDrawn) {
+			// older playlists have their whole order drawn, keep what
+			// was played so far
+			mDrawn = selected + 1;
 		}
 	}
 }
@@ -18,6 +18,8 @@ package com.teleca.jamendo.api;
 
 import java.io.Serializable;
 
+import android.os.Parcel;
+import android.os.Parcelable;
 
 
 /**
@@ -25,7 +27,7 @@ import java.io.Serializable;
  * 
  * @author Lukasz Wisniewski
  */
-public class PlaylistEntry implements Serializable {
+public class PlaylistEntry implements Serializable, Parcelable {
 	
 	/**
 	 * 
@@ -52,4 +54,44 @@ public class PlaylistEntry implements Serializable {
 		this.track = track;
 	}
 	
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		writeNullable(dest, album, flags);
+		writeNullable(dest, track, flags);
+	}
+
+	private static void writeNullable(Parcel dest, Parcelable value, int flags) {
+		if (value == null) {
+			dest.writeInt(0);
+		} else {
+			dest.writeInt(1);
+			value.writeToParcel(dest, flags);
+		}
+	}
+
+	public static final Parcelable.Creator<PlaylistEntry> CREATOR = new Parcelable.Creator<PlaylistEntry>() {
+		@Override
+		public PlaylistEntry createFromParcel(Parcel in) {
+			PlaylistEntry entry = new PlaylistEntry();
+			if (in.readInt() != 0) {
+				entry.album = Album.CREATOR.createFromParcel(in);
+			}
+			if (in.readInt() != 0) {
+				entry.track = Track.CREATOR.createFromParcel(in);
+			}
+			return entry;
+		}
+
+		@Override
+		public PlaylistEntry[] newArray(int size) {
+			return new PlaylistEntry[size];
+		}
+	};
+
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.api;
+
+import com.teleca.jamendo.api.Playlist.PlaylistPlaybackMode;
+
+/**
+ * Listener to changes of a Playlist
+ *
+ * @author Lukasz Wisniewski
+ */
+public interface PlaylistListener {
+
+	/**
+	 * Callback invoked when an entry is added at the end of the playlist
+	 *
+	 * @param playlistEntry
+	 */
+	public void onEntryAdded(PlaylistEntry playlistEntry);
+
+	/**
+	 * Callback invoked when an entry is removed
+	 *
+	 * @param index index the entry had
+	 */
+	public void onEntryRemoved(int index);
+
+	/**
+	 * Callback invoked when playback mode is changed
+	 *
+	 * @param mode
+	 */
+	public void onPlaybackModeChanged(PlaylistPlaybackMode mode);
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.teleca.jamendo.util.IntIntMap;
+
+/**
+ * Compact storage of playlist entries. Track fields are kept in arrays,
+ * one row per entry, albums in a table shared by all entries of the same
+ * album. <code>PlaylistEntry</code> objects are created only for rows
+ * actually requested.
+ *
+ * @author Lukasz Wisniewski
+ */
+class PlaylistStore {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int mSize = 0;
+
+	private int[] mTrackIds;
+	private int[] mDurations;
+	private int[] mNumAlbums;
+	private double[] mRatings;
+	private String[] mNames;
+	private String[] mUrls;
+	private String[] mStreams;
+
+	/**
+	 * Row of the entry's album in mAlbums, -1 if entry has no album
+	 */
+	private int[] mAlbumRows;
+
+	/**
+	 * Albums of all entries, without their tracks
+	 */
+	private ArrayList<Album> mAlbums = new ArrayList<Album>();
+
+	/**
+	 * Maps album id to its row in mAlbums
+	 */
+	private IntIntMap mAlbumIndex = new IntIntMap();
+
+	public PlaylistStore() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public PlaylistStore(int capacity) {
+		capacity = Math.max(capacity, INITIAL_CAPACITY);
+		mTrackIds = new int[capacity];
+		mDurations = new int[capacity];
+		mNumAlbums = new int[capacity];
+		mRatings = new double[capacity];
+		mNames = new String[capacity];
+		mUrls = new String[capacity];
+		mStreams = new String[capacity];
+		mAlbumRows = new int[capacity];
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Appends an entry
+	 *
+	 * @param track
+	 * @param album
+	 */
+	public void add(Track track, Album album) {
+		ensureCapacity(mSize + 1);
+		int row = mSize++;
+		mTrackIds[row] = track.getId();
+		mDurations[row] = track.getDuration();
+		mNumAlbums[row] = track.getNumAlbum();
+		mRatings[row] = track.getRating();
+		mNames[row] = track.getName();
+		mUrls[row] = track.getUrl();
+		mStreams[row] = track.getStream();
+		mAlbumRows[row] = albumRow(album);
+	}
+
+	/**
+	 * Creates a new entry holding data of a given row
+	 *
+	 * @param row
+	 * @return
+	 */
+	public PlaylistEntry get(int row) {
+		if (row < 0 || row >= mSize) {
+			throw new IndexOutOfBoundsException("Row " + row + ", size " + mSize);
+		}
+		Track track = new Track();
+		track.setId(mTrackIds[row]);
+		track.setDuration(mDurations[row]);
+		track.setNumAlbum(mNumAlbums[row]);
+		track.setRating(mRatings[row]);
+		track.setName(mNames[row]);
+		track.setUrl(mUrls[row]);
+		track.setStream(mStreams[row]);
+
+		PlaylistEntry entry = new PlaylistEntry();
+		entry.setTrack(track);
+		if (mAlbumRows[row] != -1) {
+			entry.setAlbum(mAlbums.get(mAlbumRows[row]));
+		}
+		return entry;
+	}
+
+	/**
+	 * Gives track id of a given row without creating an entry
+	 *
+	 * @param row
+	 * @return
+	 */
+	public int getTrackId(int row) {
+		return mTrackIds[row];
+	}
+
+	/**
+	 * Removes a given row, following rows are moved up. Album stays
+	 * in the table.
+	 *
+	 * @param row
+	 */
+	public void remove(int row) {
+		int moved = mSize - row - 1;
+		System.arraycopy(mTrackIds, row + 1, mTrackIds, row, moved);
+		System.arraycopy(mDurations, row + 1, mDurations, row, moved);
+		System.arraycopy(mNumAlbums, row + 1, mNumAlbums, row, moved);
+		System.arraycopy(mRatings, row + 1, mRatings, row, moved);
+		System.arraycopy(mNames, row + 1, mNames, row, moved);
+		System.arraycopy(mUrls, row + 1, mUrls, row, moved);
+		System.arraycopy(mStreams, row + 1, mStreams, row, moved);
+		System.arraycopy(mAlbumRows, row + 1, mAlbumRows, row, moved);
+		mSize--;
+
+		// let strings of the last row go
+		mNames[mSize] = null;
+		mUrls[mSize] = null;
+		mStreams[mSize] = null;
+	}
+
+	/**
+	 * Creates entries of all rows
+	 *
+	 * @return
+	 */
+	public ArrayList<PlaylistEntry> toList() {
+		ArrayList<PlaylistEntry> entries = new ArrayList<PlaylistEntry>(mSize);
+		for (int i = 0; i < mSize; i++) {
+			entries.add(get(i));
+		}
+		return entries;
+	}
+
+	private int albumRow(Album album) {
+		if (album == null) {
+			return -1;
+		}
+
+		// albums without id (e.g. Album.emptyAlbum) are not shared
+		int row = album.getId() == 0 ? -1 : mAlbumIndex.get(album.getId(), -1);
+		if (row == -1) {
+			row = mAlbums.size();
+			mAlbums.add(metadataOf(album));
+			if (album.getId() != 0) {
+				mAlbumIndex.putIfAbsent(album.getId(), row);
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Gives album without its tracks, these are not needed by entries
+	 *
+	 * @param album
+	 * @return
+	 */
+	private static Album metadataOf(Album album) {
+		if (album.getTracks() == null) {
+			return album;
+		}
+		Album metadata = new Album();
+		metadata.setId(album.getId());
+		metadata.setName(album.getName());
+		metadata.setArtistName(album.getArtistName());
+		metadata.setImage(album.getImage());
+		metadata.setRating(album.getRating());
+		return metadata;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (mTrackIds.length < capacity) {
+			int newCapacity = Math.max(capacity, mTrackIds.length * 2);
+			mTrackIds = Arrays.copyOf(mTrackIds, newCapacity);
+			mDurations = Arrays.copyOf(mDurations, newCapacity);
+			mNumAlbums = Arrays.copyOf(mNumAlbums, newCapacity);
+			mRatings = Arrays.copyOf(mRatings, newCapacity);
+			mNames = Arrays.copyOf(mNames, newCapacity);
+			mUrls = Arrays.copyOf(mUrls, newCapacity);
+			mStreams = Arrays.copyOf(mStreams, newCapacity);
+			mAlbumRows = Arrays.copyOf(mAlbumRows, newCapacity);
+		}
+	}
+
+}
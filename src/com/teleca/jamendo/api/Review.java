@@ -19,12 +19,15 @@ package com.teleca.jamendo.api;
 import java.io.Serializable;
 import java.util.Date;
 
+import android.os.Parcel;
+import android.os.Parcelable;
+
 /**
  * unit review
  * 
  * @author Lukasz Wisniewski
  */
-public class Review implements Serializable {
+public class Review implements Serializable, Parcelable {
 	/**
 	 * 
 	 */
@@ -133,4 +136,56 @@ public class Review implements Serializable {
 	public String getUserImage() {
 		return userImage;
 	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeInt(id);
+		dest.writeString(name);
+		dest.writeString(text);
+		dest.writeInt(rating);
+		dest.writeString(lang);
+		if (dates == null) {
+			dest.writeInt(-1);
+		} else {
+			dest.writeInt(dates.length);
+			for (Date date : dates) {
+				dest.writeLong(date == null ? Long.MIN_VALUE : date.getTime());
+			}
+		}
+		dest.writeString(userName);
+		dest.writeString(userImage);
+	}
+
+	public static final Parcelable.Creator<Review> CREATOR = new Parcelable.Creator<Review>() {
+		@Override
+		public Review createFromParcel(Parcel in) {
+			Review review = new Review();
+			review.id = in.readInt();
+			review.name = in.readString();
+			review.text = in.readString();
+			review.rating = in.readInt();
+			review.lang = in.readString();
+			int dates = in.readInt();
+			if (dates >= 0) {
+				review.dates = new Date[dates];
+				for (int i = 0; i < dates; i++) {
+					long time = in.readLong();
+					review.dates[i] = time == Long.MIN_VALUE ? null : new Date(time);
+				}
+			}
+			review.userName = in.readString();
+			review.userImage = in.readString();
+			return review;
+		}
+
+		@Override
+		public Review[] newArray(int size) {
+			return new Review[size];
+		}
+	};
 }
@@ -18,6 +18,9 @@ package com.teleca.jamendo.api;
 
 import java.io.Serializable;
 
+import android.os.Parcel;
+import android.os.Parcelable;
+
 /**
  * Unit track<br>
  * <br>
@@ -33,7 +36,7 @@ import java.io.Serializable;
  * 
  * @author Lukasz Wisniewski
  */
-public class Track implements Serializable {
+public class Track implements Serializable, Parcelable {
 	/**
 	 * 
 	 */
@@ -129,4 +132,41 @@ public class Track implements Serializable {
 	public int getNumAlbum() {
 		return numalbum;
 	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeInt(id);
+		dest.writeString(name);
+		dest.writeInt(duration);
+		dest.writeString(url);
+		dest.writeString(stream);
+		dest.writeDouble(rating);
+		dest.writeInt(numalbum);
+	}
+
+	public static final Parcelable.Creator<Track> CREATOR = new Parcelable.Creator<Track>() {
+		@Override
+		public Track createFromParcel(Parcel in) {
+			Track track = new Track();
+			track.id = in.readInt();
+			track.name = in.readString();
+			track.duration = in.readInt();
+			track.url = in.readString();
+			track.stream = in.readString();
+			track.rating = in.readDouble();
+			track.numalbum = in.readInt();
+			return track;
+		}
+
+		@Override
+		public Track[] newArray(int size) {
+			return new Track[size];
+		}
+	};
+
 }
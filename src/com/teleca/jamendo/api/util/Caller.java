@@ -36,6 +36,7 @@ import android.util.Log;
 
 import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.api.WSError;
+import com.teleca.jamendo.util.BandwidthMeter;
 
 /**
  * @author Lukasz Wisniewski
@@ -47,6 +48,11 @@ public class Caller {
 	 */
 	private static RequestCache requestCache = null;
 
+	/**
+	 * Measures throughput of responses read
+	 */
+	private static BandwidthMeter bandwidthMeter = null;
+
 	/**
 	 * Performs HTTP GET using Apache HTTP Client v 4
 	 * 
@@ -97,6 +103,9 @@ public class Caller {
 			
 			if(httpEntity != null){
 				InputStream inputStream = httpEntity.getContent();
+				if(bandwidthMeter != null){
+					inputStream = bandwidthMeter.meter(inputStream);
+				}
 				data = convertStreamToString(inputStream);
 				// cache the result
 				if(requestCache != null){
@@ -140,6 +149,10 @@ public class Caller {
 	public static void setRequestCache(RequestCache requestCache) {
 		Caller.requestCache = requestCache;
 	}
+
+	public static void setBandwidthMeter(BandwidthMeter bandwidthMeter) {
+		Caller.bandwidthMeter = bandwidthMeter;
+	}
 	
 	public static String createStringFromIds(int[] ids){
 		if(ids == null)
@@ -17,6 +17,7 @@
 package com.teleca.jamendo.db;
 
 import java.util.ArrayList;
+import java.util.Collection;
 
 import com.teleca.jamendo.api.Playlist;
 import com.teleca.jamendo.api.PlaylistEntry;
@@ -89,6 +90,13 @@ public interface Database {
 	 */
 	public void addToFavorites(PlaylistEntry entry);
 	
+	/**
+	 * Adds multiple entries to favorites within a single transaction
+	 * 
+	 * @param entries
+	 */
+	public void addToFavorites(Collection<PlaylistEntry> entries);
+	
 	/**
 	 * Remove entry to favorites
 	 * 
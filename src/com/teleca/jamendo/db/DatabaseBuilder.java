@@ -18,6 +18,7 @@ package com.teleca.jamendo.db;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 /**
  * Database builder template - facilitates adding and getting
@@ -44,5 +45,55 @@ public abstract class DatabaseBuilder<T> {
 	 * @return
 	 */
 	public abstract ContentValues deconstruct(T t);
+	
+	/**
+	 * Binds deconstructed values to a precompiled statement, in the
+	 * order given by columns (1-based, as SQLite expects)
+	 * 
+	 * @param statement
+	 * @param columns
+	 * @param values
+	 */
+	public static void bind(SQLiteStatement statement, String[] columns, ContentValues values) {
+		statement.clearBindings();
+		for (int i = 0; i < columns.length; i++) {
+			Object value = values.get(columns[i]);
+			if (value == null) {
+				statement.bindNull(i + 1);
+			} else if (value instanceof Double || value instanceof Float) {
+				statement.bindDouble(i + 1, ((Number) value).doubleValue());
+			} else if (value instanceof Number) {
+				statement.bindLong(i + 1, ((Number) value).longValue());
+			} else if (value instanceof Boolean) {
+				statement.bindLong(i + 1, ((Boolean) value) ? 1 : 0);
+			} else {
+				statement.bindString(i + 1, value.toString());
+			}
+		}
+	}
+	
+	/**
+	 * Builds "INSERT OR REPLACE" statement for given table and columns,
+	 * meant to be compiled once and bound multiple times
+	 * 
+	 * @param table
+	 * @param columns
+	 * @return
+	 */
+	public static String upsertSql(String table, String[] columns) {
+		StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ");
+		sql.append(table).append(" (");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0)
+				sql.append(',');
+			sql.append(columns[i]);
+		}
+		sql.append(") VALUES (");
+		for (int i = 0; i < columns.length; i++) {
+			sql.append(i > 0 ? ",?" : "?");
+		}
+		sql.append(");");
+		return sql.toString();
+	}
 
 }
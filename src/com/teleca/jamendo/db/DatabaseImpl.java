@@ -24,13 +24,17 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OptionalDataException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 
-import android.app.Activity;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
+import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.api.Album;
 import com.teleca.jamendo.api.Playlist;
 import com.teleca.jamendo.api.PlaylistEntry;
@@ -49,15 +53,42 @@ public class DatabaseImpl implements Database {
 	private static final String TABLE_RECENT_RADIOS = "recent_radios";
 	private static final String TABLE_FAVORITES = "favorites";
 
+	/**
+	 * Maximum number of radios kept in the recent radios table
+	 */
+	private static final int MAX_RECENT_RADIOS = 20;
+
+	/**
+	 * Removes all but MAX_RECENT_RADIOS most recent radios
+	 */
+	private static final String PRUNE_RECENT_RADIOS = "DELETE FROM "
+			+ TABLE_RECENT_RADIOS + " WHERE radio_id NOT IN (SELECT radio_id FROM "
+			+ TABLE_RECENT_RADIOS + " ORDER BY radio_date DESC LIMIT " + MAX_RECENT_RADIOS + ");";
+
+	/**
+	 * Columns of the favorites table, in statement binding order
+	 */
+	private static final String[] FAVORITES_COLUMNS = {"track_id", "track_name",
+		"track_duration", "track_url", "track_stream", "track_rating",
+		"album_id", "album_name", "album_image", "album_rating", "artist_name"};
+
 	/**
 	 * Serializable Jamendroid Playlist (file extension)
 	 */
 	private static final String SJP_EXT = ".sjp";
 
-	private Activity mActivity;
+	private Context mContext;
 
-	public DatabaseImpl(Activity activity){
-		this.mActivity = activity;
+	/**
+	 * Single connection shared by the UI and the writer thread, it
+	 * serializes access itself, separate ones would fail with the
+	 * database locked by the other
+	 */
+	private SQLiteDatabase mDb;
+
+	public DatabaseImpl(Context context){
+		this.mContext = context;
+		mDb = mContext.openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
 		create();
 	}
 
@@ -65,7 +96,7 @@ public class DatabaseImpl implements Database {
 	 * Initializes database and tables
 	 */
 	private void create(){
-		SQLiteDatabase db = mActivity.openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+		SQLiteDatabase db = getDb();
 
 		// create tables if necessary
 		
@@ -78,34 +109,40 @@ public class DatabaseImpl implements Database {
 				+ TABLE_RECENT_RADIOS
 				+ " (radio_id INTEGER UNIQUE, radio_idstr VARCHAR, radio_name VARCHAR, radio_image VARCHAR, radio_date INTEGER);");
 		
+		db.execSQL("CREATE INDEX IF NOT EXISTS recent_radios_date ON "
+				+ TABLE_RECENT_RADIOS + " (radio_date);");
+		
+		// keep the table bounded, so lookups do not slow down over time
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS recent_radios_prune AFTER INSERT ON "
+				+ TABLE_RECENT_RADIOS + " BEGIN " + PRUNE_RECENT_RADIOS + " END;");
+		
+		// compact tables grown before the trigger existed
+		db.execSQL(PRUNE_RECENT_RADIOS);
+		
 		db.execSQL("CREATE TABLE IF NOT EXISTS "
 				+ TABLE_FAVORITES
 				+ " (track_id INTEGER UNIQUE, track_name VARCHAR," 
 				+ " track_duration INTEGER, track_url VARCHAR, track_stream VARCHAR, track_rating REAL," 
 				+ " album_id INTEGER, album_name VARCHAR, album_image VARCHAR, album_rating REAL, artist_name VARCHAR);");
-
-		db.close();
 	}
 
 	@Override
 	public void deletePlaylist(String playlistName) {
-		SQLiteDatabase db = mActivity.openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+		SQLiteDatabase db = getDb();
 
 		String fileName = queryForFileName(playlistName, db);
 		if(fileName != null)
-			mActivity.deleteFile(fileName);
-		//mActivity.openFileOutput(fileName, Context.MODE_PRIVATE).getFD().
+			mContext.deleteFile(fileName);
+		//mContext.openFileOutput(fileName, Context.MODE_PRIVATE).getFD().
 
 		String[] whereArgs = {playlistName};
 		db.delete(TABLE_PLAYLIST, "PlaylistName = ?", whereArgs);
-
-		db.close();
 	}
 
 	@Override
 	public ArrayList<String> getAvailablePlaylists() {
 		ArrayList<String> playlists = new ArrayList<String>(); 
-		SQLiteDatabase db = mActivity.openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+		SQLiteDatabase db = getDb();
 
 		String[] columns = {"PlaylistName"};
 		Cursor query = db.query(TABLE_PLAYLIST, columns, null, null, null, null, "PlaylistName ASC");
@@ -121,7 +158,6 @@ public class DatabaseImpl implements Database {
 
 		query.close();
 
-		db.close();
 		return playlists;
 	}
 
@@ -133,11 +169,11 @@ public class DatabaseImpl implements Database {
 		
 		Playlist playlist = null;
 		
-		SQLiteDatabase db = mActivity.openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+		SQLiteDatabase db = getDb();
 
 		String fileName = queryForFileName(playlistName, db);
 		try {
-			FileInputStream fis = mActivity.openFileInput(fileName);
+			FileInputStream fis = mContext.openFileInput(fileName);
 			ObjectInputStream in = new ObjectInputStream(fis);
 			playlist = (Playlist)in.readObject();
 			in.close();
@@ -153,7 +189,6 @@ public class DatabaseImpl implements Database {
 			e.printStackTrace();
 		}
 
-		db.close();
 		return playlist;
 	}
 
@@ -161,7 +196,7 @@ public class DatabaseImpl implements Database {
 	public void savePlaylist(Playlist playlist, String playlistName) {
 		deletePlaylist(playlistName);
 
-		SQLiteDatabase db = mActivity.openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+		SQLiteDatabase db = getDb();
 
 		// put playlist reference into the table
 		ContentValues values = new ContentValues();
@@ -173,7 +208,7 @@ public class DatabaseImpl implements Database {
 
 		// save playlist to file
 		try {
-			FileOutputStream fos = mActivity.openFileOutput(fileName, Context.MODE_PRIVATE);
+			FileOutputStream fos = mContext.openFileOutput(fileName, Context.MODE_PRIVATE);
 			ObjectOutputStream out = new ObjectOutputStream(fos);
 			out.writeObject(playlist);
 			out.close();
@@ -183,8 +218,6 @@ public class DatabaseImpl implements Database {
 		catch (IOException e) {
 			e.printStackTrace();
 		}
-
-		db.close();
 	}
 
 	@Override
@@ -202,7 +235,6 @@ public class DatabaseImpl implements Database {
 
 		query.close();
 
-		db.close();
 		return value;
 	}
 
@@ -219,8 +251,6 @@ public class DatabaseImpl implements Database {
 		if(row_count == 0){
 			db.insert(TABLE_RECENT_RADIOS, null, values);
 		}
-		
-		db.close();
 	}
 
 	@Override
@@ -241,32 +271,43 @@ public class DatabaseImpl implements Database {
 			}
 		}
 		
-		// TODO probably remove the rest
+		query.close();
 		
-		db.close();
 		return radios;
 	}
 
 	@Override
 	public void addToFavorites(PlaylistEntry entry) {
+		addToFavorites(Collections.singletonList(entry));
+	}
+
+	@Override
+	public void addToFavorites(Collection<PlaylistEntry> entries) {
+		long start = System.currentTimeMillis();
 		SQLiteDatabase db = getDb();
+		SQLiteStatement upsert = db.compileStatement(
+				DatabaseBuilder.upsertSql(TABLE_FAVORITES, FAVORITES_COLUMNS));
 		
-		// put playlistentry data the table
-		ContentValues values = new ContentValues();
-		
-		values.putAll(new TrackDatabaseBuilder().deconstruct(entry.getTrack()));
-		values.putAll(new AlbumDatabaseBuilder().deconstruct(entry.getAlbum()));
-		
-		
-		String[] whereArgs = {""+entry.getTrack().getId()};
-		int row_count = db.update(TABLE_FAVORITES, values, "track_id=?", whereArgs);
+		TrackDatabaseBuilder trackBuilder = new TrackDatabaseBuilder();
+		AlbumDatabaseBuilder albumBuilder = new AlbumDatabaseBuilder();
 		
-		if(row_count == 0){
-			db.insert(TABLE_FAVORITES, null, values);
+		// one transaction, one journal sync for the whole batch
+		db.beginTransaction();
+		try {
+			for(PlaylistEntry entry : entries){
+				ContentValues values = trackBuilder.deconstruct(entry.getTrack());
+				values.putAll(albumBuilder.deconstruct(entry.getAlbum()));
+				DatabaseBuilder.bind(upsert, FAVORITES_COLUMNS, values);
+				upsert.executeInsert();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			upsert.close();
 		}
 		
-		
-		db.close();
+		Log.v(JamendoApplication.TAG, "Added "+entries.size()+" favorites in "
+				+(System.currentTimeMillis() - start)+" ms");
 	}
 
 	@Override
@@ -290,9 +331,9 @@ public class DatabaseImpl implements Database {
 				playlist.addPlaylistEntry(entry);
 				query.moveToNext();
 			}
+			query.close();
 		}
 		
-		db.close();
 		return playlist;
 	}
 	
@@ -301,7 +342,6 @@ public class DatabaseImpl implements Database {
 		SQLiteDatabase db = getDb();
 		String[] whereArgs = {""+entry.getTrack().getId()};
 		db.delete(TABLE_FAVORITES, "track_id = ?", whereArgs);
-		db.close();
 	}
 
 	private String queryForFileName(String playlistName, SQLiteDatabase db){
@@ -323,7 +363,7 @@ public class DatabaseImpl implements Database {
 	}
 
 	private SQLiteDatabase getDb(){
-		return mActivity.openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+		return mDb;
 	}
 
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+
+/**
+ * Single background thread performing all database writes of the application.
+ * <br><br>
+ * Writes are queued under a key, a write queued under a key that is
+ * still pending replaces the previous one (and moves to the end of the queue),
+ * so e.g. repeated updates of the same record end up as a single write.
+ * Pending writes are executed in batches.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class DatabaseWriter {
+
+	/**
+	 * Time given to callers to queue more writes before the batch is executed
+	 */
+	private static final long WRITE_DELAY = 100;
+
+	private HandlerThread mThread;
+
+	private Handler mHandler;
+
+	/**
+	 * Writes waiting for execution, in order
+	 */
+	private LinkedHashMap<String, Runnable> mPending = new LinkedHashMap<String, Runnable>();
+
+	/**
+	 * Source of unique keys for writes that should never be coalesced
+	 */
+	private long mSequence = 0;
+
+	private boolean mScheduled = false;
+
+	private Runnable mDrainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public DatabaseWriter() {
+		mThread = new HandlerThread("DatabaseWriter", Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	/**
+	 * Queues a write
+	 *
+	 * @param key key under which writes are coalesced, null if the write
+	 * should always be executed
+	 * @param write
+	 */
+	public synchronized void enqueue(String key, Runnable write) {
+		if (key == null) {
+			key = "#" + (mSequence++);
+		}
+		mPending.remove(key);
+		mPending.put(key, write);
+
+		if (!mScheduled) {
+			mScheduled = true;
+			mHandler.postDelayed(mDrainTask, WRITE_DELAY);
+		}
+	}
+
+	private void drain() {
+		ArrayList<Runnable> batch;
+		synchronized (this) {
+			batch = new ArrayList<Runnable>(mPending.values());
+			mPending.clear();
+			mScheduled = false;
+		}
+
+		for (Runnable write : batch) {
+			try {
+				write.run();
+			} catch (RuntimeException e) {
+				// one failing write must not take the others down
+				Log.e(JamendoApplication.TAG, "Database write failed", e);
+			}
+		}
+		Log.v(JamendoApplication.TAG, "DatabaseWriter executed " + batch.size() + " writes");
+	}
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.teleca.jamendo.api.Playlist;
+import com.teleca.jamendo.api.PlaylistEntry;
+import com.teleca.jamendo.api.Radio;
+import com.teleca.jamendo.api.Track;
+
+/**
+ * Database decorator passing all writes to the <code>DatabaseWriter</code>
+ * thread, so that callers (usually UI thread) never wait for SQLite on writes.
+ * <br><br>
+ * Writes which are not yet committed are kept in memory and merged into
+ * results of reads, so callers always see their own writes.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class WriteBehindDatabase implements Database {
+
+	private static final String KEY_RADIOS = "recent_radios";
+	private static final String KEY_FAVORITES = "favorites";
+	private static final String KEY_PLAYLISTS = "playlists";
+
+	private Database mDatabase;
+
+	private DatabaseWriter mWriter;
+
+	/**
+	 * Recently played radios not yet written, most recent last
+	 */
+	private LinkedHashMap<Integer, Radio> mPendingRadios = new LinkedHashMap<Integer, Radio>();
+
+	/**
+	 * Favorites not yet written by track id, null value stands for removal
+	 */
+	private LinkedHashMap<Integer, PlaylistEntry> mPendingFavorites = new LinkedHashMap<Integer, PlaylistEntry>();
+
+	/**
+	 * Playlists not yet written by name, null value stands for removal
+	 */
+	private LinkedHashMap<String, Playlist> mPendingPlaylists = new LinkedHashMap<String, Playlist>();
+
+	public WriteBehindDatabase(Database database, DatabaseWriter writer) {
+		mDatabase = database;
+		mWriter = writer;
+	}
+
+	@Override
+	public void savePlaylist(Playlist playlist, String name) {
+		synchronized (mPendingPlaylists) {
+			// playlist might be still modified by the caller, keep a copy
+			mPendingPlaylists.put(name, copyOf(playlist));
+		}
+		mWriter.enqueue(KEY_PLAYLISTS, mPlaylistsWrite);
+	}
+
+	@Override
+	public Playlist loadPlaylist(String playlistName) {
+		synchronized (mPendingPlaylists) {
+			if (mPendingPlaylists.containsKey(playlistName)) {
+				Playlist playlist = mPendingPlaylists.get(playlistName);
+				return playlist == null ? null : copyOf(playlist);
+			}
+		}
+		return mDatabase.loadPlaylist(playlistName);
+	}
+
+	@Override
+	public void deletePlaylist(String playlistName) {
+		synchronized (mPendingPlaylists) {
+			mPendingPlaylists.put(playlistName, null);
+		}
+		mWriter.enqueue(KEY_PLAYLISTS, mPlaylistsWrite);
+	}
+
+	@Override
+	public boolean playlistExists(String playlistName) {
+		synchronized (mPendingPlaylists) {
+			if (mPendingPlaylists.containsKey(playlistName)) {
+				return mPendingPlaylists.get(playlistName) != null;
+			}
+		}
+		return mDatabase.playlistExists(playlistName);
+	}
+
+	@Override
+	public ArrayList<String> getAvailablePlaylists() {
+		// snapshot before reading the store, a write committed in between
+		// is then in the store or in the snapshot, never in neither
+		LinkedHashMap<String, Playlist> pendingPlaylists;
+		synchronized (mPendingPlaylists) {
+			pendingPlaylists = new LinkedHashMap<String, Playlist>(mPendingPlaylists);
+		}
+		ArrayList<String> playlists = mDatabase.getAvailablePlaylists();
+		if (pendingPlaylists.isEmpty()) {
+			return playlists;
+		}
+		for (Map.Entry<String, Playlist> pending : pendingPlaylists.entrySet()) {
+			playlists.remove(pending.getKey());
+			if (pending.getValue() != null) {
+				playlists.add(pending.getKey());
+			}
+		}
+		Collections.sort(playlists);
+		return playlists;
+	}
+
+	@Override
+	public void addRadioToRecent(Radio radio) {
+		synchronized (mPendingRadios) {
+			// re-insert so that the radio becomes the most recent one
+			mPendingRadios.remove(radio.getId());
+			mPendingRadios.put(radio.getId(), radio);
+		}
+		mWriter.enqueue(KEY_RADIOS, mRadiosWrite);
+	}
+
+	@Override
+	public ArrayList<Radio> getRecentRadios(int limit) {
+		LinkedHashMap<Integer, Radio> pendingRadios;
+		synchronized (mPendingRadios) {
+			pendingRadios = new LinkedHashMap<Integer, Radio>(mPendingRadios);
+		}
+		ArrayList<Radio> stored = mDatabase.getRecentRadios(limit);
+		if (pendingRadios.isEmpty()) {
+			return stored;
+		}
+		ArrayList<Radio> radios = new ArrayList<Radio>();
+		for (Radio radio : pendingRadios.values()) {
+			radios.add(0, radio);
+		}
+		for (Radio radio : stored) {
+			if (!pendingRadios.containsKey(radio.getId())) {
+				radios.add(radio);
+			}
+		}
+		while (radios.size() > limit) {
+			radios.remove(radios.size() - 1);
+		}
+		return radios;
+	}
+
+	@Override
+	public void addToFavorites(PlaylistEntry entry) {
+		addToFavorites(Collections.singletonList(entry));
+	}
+
+	@Override
+	public void addToFavorites(Collection<PlaylistEntry> entries) {
+		synchronized (mPendingFavorites) {
+			for (PlaylistEntry entry : entries) {
+				mPendingFavorites.put(entry.getTrack().getId(), entry);
+			}
+		}
+		mWriter.enqueue(KEY_FAVORITES, mFavoritesWrite);
+	}
+
+	@Override
+	public void removeFromFavorites(PlaylistEntry entry) {
+		synchronized (mPendingFavorites) {
+			mPendingFavorites.put(entry.getTrack().getId(), null);
+		}
+		mWriter.enqueue(KEY_FAVORITES, mFavoritesWrite);
+	}
+
+	@Override
+	public Playlist getFavorites() {
+		LinkedHashMap<Integer, PlaylistEntry> pendingFavorites;
+		synchronized (mPendingFavorites) {
+			pendingFavorites = new LinkedHashMap<Integer, PlaylistEntry>(mPendingFavorites);
+		}
+		Playlist stored = mDatabase.getFavorites();
+		if (pendingFavorites.isEmpty()) {
+			return stored;
+		}
+		Playlist playlist = new Playlist();
+		for (int i = 0; i < stored.size(); i++) {
+			PlaylistEntry entry = stored.getTrack(i);
+			if (!pendingFavorites.containsKey(entry.getTrack().getId())) {
+				playlist.addPlaylistEntry(entry);
+			}
+		}
+		for (PlaylistEntry entry : pendingFavorites.values()) {
+			if (entry != null) {
+				playlist.addPlaylistEntry(entry);
+			}
+		}
+		return playlist;
+	}
+
+	/**
+	 * Writes pending recent radios
+	 */
+	private Runnable mRadiosWrite = new Runnable() {
+		@Override
+		public void run() {
+			LinkedHashMap<Integer, Radio> batch;
+			synchronized (mPendingRadios) {
+				batch = new LinkedHashMap<Integer, Radio>(mPendingRadios);
+			}
+			for (Radio radio : batch.values()) {
+				mDatabase.addRadioToRecent(radio);
+			}
+			committed(mPendingRadios, batch);
+		}
+	};
+
+	/**
+	 * Writes pending favorites, all additions as a single batch
+	 */
+	private Runnable mFavoritesWrite = new Runnable() {
+		@Override
+		public void run() {
+			LinkedHashMap<Integer, PlaylistEntry> batch;
+			synchronized (mPendingFavorites) {
+				batch = new LinkedHashMap<Integer, PlaylistEntry>(mPendingFavorites);
+			}
+			ArrayList<PlaylistEntry> additions = new ArrayList<PlaylistEntry>();
+			for (Map.Entry<Integer, PlaylistEntry> pending : batch.entrySet()) {
+				if (pending.getValue() != null) {
+					additions.add(pending.getValue());
+				} else {
+					PlaylistEntry entry = new PlaylistEntry();
+					entry.setTrack(new Track());
+					entry.getTrack().setId(pending.getKey());
+					mDatabase.removeFromFavorites(entry);
+				}
+			}
+			if (!additions.isEmpty()) {
+				mDatabase.addToFavorites(additions);
+			}
+			committed(mPendingFavorites, batch);
+		}
+	};
+
+	/**
+	 * Writes pending playlists
+	 */
+	private Runnable mPlaylistsWrite = new Runnable() {
+		@Override
+		public void run() {
+			LinkedHashMap<String, Playlist> batch;
+			synchronized (mPendingPlaylists) {
+				batch = new LinkedHashMap<String, Playlist>(mPendingPlaylists);
+			}
+			for (Map.Entry<String, Playlist> pending : batch.entrySet()) {
+				if (pending.getValue() != null) {
+					mDatabase.savePlaylist(pending.getValue(), pending.getKey());
+				} else {
+					mDatabase.deletePlaylist(pending.getKey());
+				}
+			}
+			committed(mPendingPlaylists, batch);
+		}
+	};
+
+	/**
+	 * Drops written values from the in-memory overlay, unless they were
+	 * replaced in the meantime (in which case another write is queued)
+	 *
+	 * @param pending
+	 * @param written
+	 */
+	private static <K, V> void committed(HashMap<K, V> pending, Map<K, V> written) {
+		synchronized (pending) {
+			for (Map.Entry<K, V> entry : written.entrySet()) {
+				if (pending.containsKey(entry.getKey())
+						&& pending.get(entry.getKey()) == entry.getValue()) {
+					pending.remove(entry.getKey());
+				}
+			}
+		}
+	}
+
+	private static Playlist copyOf(Playlist playlist) {
+		Playlist copy = new Playlist();
+		for (PlaylistEntry entry : playlist.getAllTracks()) {
+			copy.addPlaylistEntry(entry);
+		}
+		copy.setPlaylistPlaybackMode(playlist.getPlaylistPlaybackMode());
+		return copy;
+	}
+
+}
@@ -22,8 +22,8 @@ import com.teleca.jamendo.api.Album;
 import com.teleca.jamendo.api.Playlist;
 import com.teleca.jamendo.api.PlaylistEntry;
 import com.teleca.jamendo.api.Track;
+import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.db.Database;
-import com.teleca.jamendo.db.DatabaseImpl;
 import com.teleca.jamendo.R;
 
 import android.app.Activity;
@@ -81,7 +81,7 @@ public class AddToPlaylistDialog extends Dialog {
 		requestWindowFeature(Window.FEATURE_NO_TITLE);
 		setContentView(R.layout.add_to_playlist);
 
-		mDatabase = new DatabaseImpl(mActivity);
+		mDatabase = JamendoApplication.getInstance().getDatabase();
 		ArrayList<String> availablePlaylistsAL = mDatabase.getAvailablePlaylists();
 		String[] availablePlaylists = new String[availablePlaylistsAL.size()];
 		availablePlaylistsAL.toArray(availablePlaylists);
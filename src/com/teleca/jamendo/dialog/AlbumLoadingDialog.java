@@ -22,6 +22,7 @@ import org.json.JSONException;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.os.Parcelable;
 
 import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.activity.AlbumActivity;
@@ -31,6 +32,7 @@ import com.teleca.jamendo.api.Review;
 import com.teleca.jamendo.api.Track;
 import com.teleca.jamendo.api.WSError;
 import com.teleca.jamendo.api.impl.JamendoGet2ApiImpl;
+import com.teleca.jamendo.util.ObjectRegistry;
 
 /**
  * pre-AlbumActivity loading (gets Tracks and Reviews)
@@ -76,8 +78,8 @@ public class AlbumLoadingDialog extends LoadingDialog<Object, Integer>{
 			reviews.add(review);
 		
 		Intent intent = new Intent(mActivity, AlbumActivity.class);
-		intent.putExtra("album", mAlbum);
-		intent.putExtra("reviews", reviews);
+		intent.putExtra("album", (Parcelable) mAlbum);
+		ObjectRegistry.putExtra(intent, "reviews", reviews);
 		intent.putExtra("selectedReviewId", mSelectedReviewId);
 		mActivity.startActivity(intent);
 		
@@ -29,6 +29,7 @@ import com.teleca.jamendo.api.Playlist;
 import com.teleca.jamendo.api.Track;
 import com.teleca.jamendo.api.WSError;
 import com.teleca.jamendo.api.impl.JamendoGet2ApiImpl;
+import com.teleca.jamendo.util.ObjectRegistry;
 
 /**
  * pre-Player album loading dialog
@@ -71,7 +72,7 @@ public class PlayerAlbumLoadingDialog extends LoadingDialog<Album, Track[]>{
 		mAlbum.setTracks(tracks);
 		playlist.addTracks(mAlbum);
 
-		intent.putExtra("playlist", playlist);
+		ObjectRegistry.putExtra(intent, "playlist", playlist);
 		mActivity.startActivity(intent);
 	}
 
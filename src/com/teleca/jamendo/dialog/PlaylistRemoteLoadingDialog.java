@@ -26,6 +26,7 @@ import com.teleca.jamendo.api.Playlist;
 import com.teleca.jamendo.api.PlaylistRemote;
 import com.teleca.jamendo.api.WSError;
 import com.teleca.jamendo.api.impl.JamendoGet2ApiImpl;
+import com.teleca.jamendo.util.ObjectRegistry;
 
 /**
  * pre-Player playlist loading dialog
@@ -61,7 +62,7 @@ public class PlaylistRemoteLoadingDialog extends LoadingDialog<PlaylistRemote, P
 
 	@Override
 	public void doStuffWithResult(Playlist playlist) {
-		mIntent.putExtra("playlist", playlist);
+		ObjectRegistry.putExtra(mIntent, "playlist", playlist);
 		mActivity.startActivity(mIntent);
 	}
 
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.media;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.content.Context;
+import android.os.Environment;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+
+/**
+ * Disk cache of streamed tracks, separate from downloads. Each stream
+ * is kept in a file named after its url. A file holds a contiguous
+ * beginning of the stream until the whole stream is written, then it
+ * is committed and may be played directly.
+ * <br><br>
+ * Size of the cache is limited by the "audio_cache_option" preference
+ * (in MB), least recently used files are removed first.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class AudioCache {
+
+	private static final String AUDIO_DIR = "Android/data/com.teleca.jamendo/audio";
+
+	private static final String PARTIAL_SUFFIX = ".part";
+
+	private static final String COMPLETE_SUFFIX = ".audio";
+
+	private static final String SIZE_PREFERENCE = "audio_cache_option";
+
+	private static final String DEFAULT_SIZE = "100";
+
+	private static final long MB = 1048576;
+
+	private Context mContext;
+
+	/**
+	 * Keys of streams being written mapped to their writers, one writer
+	 * per stream
+	 */
+	private HashMap<String, Thread> mLocked = new HashMap<String, Thread>();
+
+	/**
+	 * Keys of streams somebody waits to write
+	 */
+	private HashSet<String> mWanted = new HashSet<String>();
+
+	public AudioCache(Context context) {
+		mContext = context;
+	}
+
+	/**
+	 * Checks if the cache may be used, i.e. it is not turned off and
+	 * the sd-card is available
+	 *
+	 * @return
+	 */
+	public boolean isEnabled() {
+		if (getMaxSize() <= 0
+				|| !Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+			return false;
+		}
+		File directory = getDirectory();
+		return directory.isDirectory() || directory.mkdirs();
+	}
+
+	/**
+	 * Gives file holding the whole stream
+	 *
+	 * @param url
+	 * @return file or null if the stream is not cached completely
+	 */
+	public File getCompleteFile(String url) {
+		if (url == null || url.length() == 0 || !isEnabled()) {
+			return null;
+		}
+		File file = new File(getDirectory(), keyOf(url) + COMPLETE_SUFFIX);
+		if (!file.exists()) {
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	/**
+	 * Gives file holding the beginning of the stream, the file may
+	 * not exist yet
+	 *
+	 * @param url
+	 * @return
+	 */
+	public File getPartialFile(String url) {
+		return new File(getDirectory(), keyOf(url) + PARTIAL_SUFFIX);
+	}
+
+	/**
+	 * Reserves stream for writing
+	 *
+	 * @param url
+	 * @return false if the stream is already being written
+	 */
+	public synchronized boolean lock(String url) {
+		return tryLock(keyOf(url));
+	}
+
+	/**
+	 * Reserves stream for writing, waiting for the current writer
+	 * at most a given time
+	 *
+	 * @param url
+	 * @param timeout in ms
+	 * @return false if the stream is still being written
+	 */
+	public synchronized boolean lock(String url, long timeout) {
+		String key = keyOf(url);
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		mWanted.add(key);
+		try {
+			while (!tryLock(key)) {
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+			return true;
+		} finally {
+			mWanted.remove(key);
+		}
+	}
+
+	/**
+	 * Releases stream reserved by the calling thread, does nothing
+	 * if it was released already
+	 *
+	 * @param url
+	 */
+	public synchronized void unlock(String url) {
+		String key = keyOf(url);
+		if (mLocked.get(key) == Thread.currentThread()) {
+			mLocked.remove(key);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Checks if somebody waits for the stream, writers not in a hurry
+	 * should give the lock up then
+	 *
+	 * @param url
+	 * @return
+	 */
+	public synchronized boolean isWanted(String url) {
+		return mWanted.contains(keyOf(url));
+	}
+
+	/**
+	 * Marks the stream as written completely, should be called by the
+	 * writer holding the lock
+	 *
+	 * @param url
+	 */
+	public void commit(String url) {
+		File partial = getPartialFile(url);
+		File complete = new File(getDirectory(), keyOf(url) + COMPLETE_SUFFIX);
+		if (partial.renameTo(complete)) {
+			Log.i(JamendoApplication.TAG, "Stream cached " + complete.getName());
+		}
+		trim();
+	}
+
+	/**
+	 * Removes least recently used files until the cache fits its size
+	 * limit, files being written are left
+	 */
+	public synchronized void trim() {
+		File[] files = getDirectory().listFiles();
+		if (files == null) {
+			// possibly sd-card is not present
+			return;
+		}
+
+		long size = 0;
+		for (File file : files) {
+			size += file.length();
+		}
+
+		long maxSize = getMaxSize() * MB;
+		if (size <= maxSize) {
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long diff = lhs.lastModified() - rhs.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (int i = 0; i < files.length && size > maxSize; i++) {
+			String name = files[i].getName();
+			if (mLocked.containsKey(name.substring(0, name.indexOf('.')))) {
+				continue;
+			}
+			long length = files[i].length();
+			if (files[i].delete()) {
+				size -= length;
+			}
+		}
+	}
+
+	private boolean tryLock(String key) {
+		if (mLocked.containsKey(key)) {
+			return false;
+		}
+		mLocked.put(key, Thread.currentThread());
+		return true;
+	}
+
+	private long getMaxSize() {
+		String size = PreferenceManager.getDefaultSharedPreferences(mContext)
+				.getString(SIZE_PREFERENCE, DEFAULT_SIZE);
+		try {
+			return Long.parseLong(size);
+		} catch (NumberFormatException e) {
+			return Long.parseLong(DEFAULT_SIZE);
+		}
+	}
+
+	private static File getDirectory() {
+		return new File(Environment.getExternalStorageDirectory(), AUDIO_DIR);
+	}
+
+	/**
+	 * Gives name of the files of a given stream
+	 *
+	 * @param url
+	 * @return
+	 */
+	private static String keyOf(String url) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes());
+			StringBuilder key = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				key.append(Character.forDigit((b >> 4) & 0xf, 16));
+				key.append(Character.forDigit(b & 0xf, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(url.hashCode());
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.media;
+
+import java.util.ArrayList;
+
+import android.media.MediaPlayer;
+import android.media.audiofx.Equalizer;
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+
+/**
+ * Keeps native players and the equalizer alive across tracks.
+ * <br><br>
+ * Players no longer needed are <code>reset()</code> and given out again
+ * instead of being released. All players of the session share one audio
+ * session, so a single <code>Equalizer</code> attached to it keeps
+ * working for every track. Everything is released with the session.
+ *
+ * @author Lukasz Wisniewski
+ */
+abstract class MediaPlayerSession<T extends MediaPlayer> {
+
+	/**
+	 * Number of idle players kept, the current and the prepared ahead
+	 * player are enough for a track switch not to create a new one
+	 */
+	private static final int MAX_SPARE_PLAYERS = 1;
+
+	private ArrayList<T> mSparePlayers = new ArrayList<T>(MAX_SPARE_PLAYERS);
+
+	/**
+	 * Audio session shared by the players, 0 if there is none yet
+	 */
+	private int mAudioSessionId = 0;
+
+	/**
+	 * Audio session the application's equalizer is attached to
+	 */
+	private int mEqualizerSessionId = 0;
+
+	private int mCreated = 0;
+
+	private int mReused = 0;
+
+	/**
+	 * Creates a new player, listeners should be set up here as they are
+	 * kept through reset
+	 *
+	 * @return
+	 */
+	protected abstract T create();
+
+	/**
+	 * Gives player in idle state
+	 *
+	 * @return
+	 */
+	public T obtain() {
+		if (!mSparePlayers.isEmpty()) {
+			mReused++;
+			return mSparePlayers.remove(mSparePlayers.size() - 1);
+		}
+
+		T player = create();
+		mCreated++;
+		if (mAudioSessionId == 0) {
+			mAudioSessionId = player.getAudioSessionId();
+		} else {
+			try {
+				player.setAudioSessionId(mAudioSessionId);
+			} catch (IllegalStateException e) {
+				Log.w(JamendoApplication.TAG, "MediaPlayerSession cannot share audio session", e);
+			}
+		}
+		return player;
+	}
+
+	/**
+	 * Takes a player back, it is reset and given out again later
+	 *
+	 * @param player
+	 */
+	public void recycle(T player) {
+		if (player == null) {
+			return;
+		}
+		if (mSparePlayers.size() < MAX_SPARE_PLAYERS) {
+			player.reset();
+			mSparePlayers.add(player);
+		} else {
+			player.release();
+		}
+	}
+
+	/**
+	 * Makes sure the application's equalizer applies to a given player,
+	 * the equalizer of the session is created once and kept
+	 *
+	 * @param player
+	 */
+	public void attachEqualizer(T player) {
+		final JamendoApplication app = JamendoApplication.getInstance();
+
+		Equalizer equalizer = app.getMyEqualizer();
+		if (equalizer != null && mEqualizerSessionId == player.getAudioSessionId() && app.isEqualizerRunning()) {
+			// still attached to the audio session of this player
+			return;
+		}
+		if (equalizer != null) {
+			equalizer.release();
+		}
+
+		// Maintain the settings of the equalizer for the new media
+		Equalizer newEqualizer = new Equalizer(0, player.getAudioSessionId());
+		short preset = app.getEqualizerPreset();
+		// special case when the preset was chosen when there was no media stream running
+		if (preset > -2) {
+			newEqualizer.usePreset(preset);
+			app.setEqualizerPreset((short) -2);
+		} else {
+			Equalizer.Settings eqSettings = app.getEqualizerSettigns();
+			if (eqSettings != null) {
+				newEqualizer.setProperties(eqSettings);
+			}
+		}
+		// save settings for the next equalizer
+		app.updateEqualizerSettings(newEqualizer.getProperties());
+		// Enable equalizer before media starts
+		app.setMyEqualizer(newEqualizer);
+		newEqualizer.setEnabled(true);
+		mEqualizerSessionId = player.getAudioSessionId();
+	}
+
+	/**
+	 * Releases spare players and the equalizer, players given out should
+	 * be recycled before
+	 */
+	public void release() {
+		for (T player : mSparePlayers) {
+			player.release();
+		}
+		mSparePlayers.clear();
+
+		Equalizer equalizer = JamendoApplication.getInstance().getMyEqualizer();
+		if (equalizer != null) {
+			equalizer.release();
+			JamendoApplication.getInstance().setMyEqualizer(null);
+		}
+		mAudioSessionId = 0;
+		mEqualizerSessionId = 0;
+
+		Log.v(JamendoApplication.TAG, "MediaPlayerSession players created " + mCreated + ", reused " + mReused);
+	}
+
+}
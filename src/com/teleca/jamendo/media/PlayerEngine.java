@@ -117,4 +117,19 @@ public interface PlayerEngine {
 	 * @param miliseconds to rewind
 	 */
 	public void rewind(int time);
+
+	/**
+	 * seek current song, seeks requested while the previous one is
+	 * in progress are coalesced
+	 * 
+	 * @param position in miliseconds
+	 */
+	public void seekTo(int position);
+
+	/**
+	 * Gives position of current song, including seeks not completed yet
+	 * 
+	 * @return position in miliseconds or -1 if unknown
+	 */
+	public int getCurrentPosition();
 }
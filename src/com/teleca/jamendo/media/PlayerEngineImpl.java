@@ -17,10 +17,12 @@
 package com.teleca.jamendo.media;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 
 import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.api.Playlist;
 import com.teleca.jamendo.api.PlaylistEntry;
+import com.teleca.jamendo.api.PlaylistListener;
 import com.teleca.jamendo.api.Playlist.PlaylistPlaybackMode;
 
 import android.media.AudioManager;
@@ -28,9 +30,12 @@ import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnBufferingUpdateListener;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnInfoListener;
 import android.media.MediaPlayer.OnPreparedListener;
-import android.media.audiofx.Equalizer;
+import android.media.MediaPlayer.OnSeekCompleteListener;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
@@ -42,6 +47,19 @@ import android.util.Log;
  */
 public class PlayerEngineImpl implements PlayerEngine {
 	
+	/**
+	 * States of a player
+	 */
+	public enum State {
+		IDLE, PREPARING, PREPARED, PLAYING, PAUSED, ERROR
+	}
+	
+	/**
+	 * Skips closer to each other than this (in ms) are coalesced, the track
+	 * selected last is prepared once skipping stops
+	 */
+	private static final long SKIP_DEBOUNCE = 300;
+	
 	/**
 	 * Time frame - used for counting number of fails within that time 
 	 */
@@ -62,6 +80,37 @@ public class PlayerEngineImpl implements PlayerEngine {
 	 */
 	private long mTimesFailed; 
 	
+	/**
+	 * Preference holding time in seconds before the end of a track
+	 * at which the next one is prepared, 0 disables preparing ahead
+	 */
+	private static final String PREPARE_AHEAD_PREFERENCE = "gapless_lead";
+	
+	private static final String DEFAULT_PREPARE_AHEAD = "10";
+	
+	/**
+	 * Preference holding duration in seconds of crossfade between
+	 * consecutive tracks, 0 disables crossfade
+	 */
+	private static final String CROSSFADE_PREFERENCE = "crossfade";
+	
+	private static final String DEFAULT_CROSSFADE = "0";
+	
+	/**
+	 * Time in ms the next track is prepared before its crossfade starts
+	 */
+	private static final int CROSSFADE_PREPARE_MARGIN = 10000;
+	
+	/**
+	 * Interval in ms of volume changes during crossfade
+	 */
+	private static final int CROSSFADE_STEP = 50;
+	
+	/**
+	 * <code>MediaPlayer.setNextMediaPlayer</code>, available since API level 16
+	 */
+	private static final Method sSetNextMediaPlayer = findSetNextMediaPlayer();
+	
 	/**
 	 * Simple MediaPlayer extensions, adds reference to the current track
 	 * 
@@ -76,9 +125,9 @@ public class PlayerEngineImpl implements PlayerEngine {
 		public PlaylistEntry playlistEntry;
 
 		/**
-		 * Still buffering
+		 * State of the player, changed through setState
 		 */
-		public boolean preparing = false;
+		public State state = State.IDLE;
 
 		/**
 		 * Determines if we should play after preparation,
@@ -87,13 +136,125 @@ public class PlayerEngineImpl implements PlayerEngine {
 		 */
 		public boolean playAfterPrepare = false;
 
+		/**
+		 * Index of the entry in the playlist, set for players prepared
+		 * ahead only
+		 */
+		public int entryIndex = -1;
+
+		/**
+		 * Position in ms of the seek in progress, -1 if none
+		 */
+		public int seekTarget = -1;
+
+		/**
+		 * Position in ms to seek to once the seek in progress completes,
+		 * -1 if none, replaced by every newer request
+		 */
+		public int pendingSeek = -1;
+
+		/**
+		 * Set while playback stalls waiting for data
+		 */
+		public boolean buffering = false;
+
+		/**
+		 * Url the track is streamed from, null if played from a file
+		 */
+		public String streamUrl;
+
+		/**
+		 * Puts player back to idle state, forgetting its track
+		 */
+		@Override
+		public void reset() {
+			super.reset();
+			// volume is kept by the native player
+			setVolume(1.0f, 1.0f);
+			playlistEntry = null;
+			state = State.IDLE;
+			playAfterPrepare = false;
+			entryIndex = -1;
+			seekTarget = -1;
+			pendingSeek = -1;
+			buffering = false;
+			streamUrl = null;
+		}
+
+		/**
+		 * Gives position the player is at or is going to be at once
+		 * the seeks requested complete
+		 *
+		 * @return position in ms
+		 */
+		public int getTargetPosition() {
+			if(pendingSeek != -1)
+				return pendingSeek;
+			if(seekTarget != -1)
+				return seekTarget;
+			return getCurrentPosition();
+		}
+
 	}
 
+	/**
+	 * Gives out players, reused from track to track, and keeps the equalizer
+	 */
+	private MediaPlayerSession<InternalMediaPlayer> mPlayerSession = new MediaPlayerSession<InternalMediaPlayer>() {
+
+		@Override
+		protected InternalMediaPlayer create() {
+			InternalMediaPlayer mediaPlayer = new InternalMediaPlayer();
+			setUpListeners(mediaPlayer);
+			return mediaPlayer;
+		}
+
+	};
+
 	/**
 	 * InternalMediaPlayer instance (maybe add another one for cross-fading)
 	 */
 	private InternalMediaPlayer mCurrentMediaPlayer;
 	
+	/**
+	 * InternalMediaPlayer prepared ahead for the entry following the current one
+	 */
+	private InternalMediaPlayer mNextMediaPlayer;
+	
+	/**
+	 * InternalMediaPlayer of the previous track, fading out during crossfade
+	 */
+	private InternalMediaPlayer mFadingMediaPlayer;
+	
+	/**
+	 * Start time and duration of the crossfade in progress
+	 */
+	private long mFadeStartTime;
+	
+	private int mFadeDuration;
+	
+	/**
+	 * Ramps volumes of both players during crossfade
+	 */
+	private Runnable mFadeTask = new Runnable() {
+		@Override
+		public void run() {
+			float progress = Math.min(1.0f, (SystemClock.uptimeMillis() - mFadeStartTime) / (float) mFadeDuration);
+			if(progress >= 1.0f){
+				finishCrossfade();
+				return;
+			}
+			// equal power curves, loudness stays even
+			float in = (float) Math.sqrt(progress);
+			float out = (float) Math.sqrt(1.0f - progress);
+			if(mCurrentMediaPlayer != null){
+				mCurrentMediaPlayer.setVolume(in, in);
+			}
+			mFadingMediaPlayer.setVolume(out, out);
+			mHandler.postDelayed(this, CROSSFADE_STEP);
+		}
+	};
+	
 	/**
 	 * Listener to the engine events
 	 */
@@ -115,61 +276,189 @@ public class PlayerEngineImpl implements PlayerEngine {
 	private Handler mHandler;
 	
 	/**
-     * Runnable periodically querying Media Player
-     * about the current position of the track and
-     * notifying the listener
+	 * Local server remote tracks are streamed through, null if tracks
+	 * should be streamed directly
+	 */
+	private StreamProxy mStreamProxy;
+	
+	/**
+	 * Listener to state transitions
+	 */
+	private PlayerStateListener mStateListener;
+	
+	/**
+	 * Time of the last skip command
+	 */
+	private long mLastSkipTime = 0;
+	
+	/**
+	 * Time at which the track being switched to was selected, 0 if no
+	 * switch is in progress
+	 */
+	private long mSwitchStartTime = 0;
+	
+	/**
+	 * Statistics of track switches, logged on stop
+	 */
+	private int mTrackSwitches = 0;
+	
+	private long mSwitchLatencyTotal = 0;
+	
+	private int mPreparesStarted = 0;
+	
+	/**
+	 * Prepares superseded before their tracks were played
+	 */
+	private int mPreparesWasted = 0;
+	
+	/**
+	 * Plays the track selected by the last of coalesced skips
+	 */
+	private Runnable mSkipTask = new Runnable() {
+		@Override
+		public void run() {
+			play();
+		}
+	};
+	
+	/**
+	 * Position in ms of the current track at mClockTime, progress is
+	 * computed from it instead of querying Media Player every time
+	 */
+	private int mClockPosition = 0;
+	
+	private long mClockTime = 0;
+	
+	/**
+	 * Set if the position advances with time, i.e. the track plays
+	 * and is neither seeking nor buffering
+	 */
+	private boolean mClockRunning = false;
+	
+	/**
+	 * Duration in ms of the current track, 0 if unknown
+	 */
+	private int mClockDuration = 0;
+	
+	/**
+	 * Interval in ms of progress reports, 0 disables them
+	 */
+	private int mProgressInterval = 1000;
+	
+	/**
+     * Runnable notifying the listener about the current
+     * position of the track, scheduled at whole seconds of the track
      */
     private Runnable mUpdateTimeTask = new Runnable() {
             public void run() {
 
                     if(mPlayerEngineListener != null){
-                        // TODO use getCurrentPosition less frequently (usage of currentTimeMillis or uptimeMillis)
-                    	if(mCurrentMediaPlayer != null)
-                    		mPlayerEngineListener.onTrackProgress(mCurrentMediaPlayer.getCurrentPosition()/1000);
-                        mHandler.postDelayed(this, 1000);
+                    	mPlayerEngineListener.onTrackProgress(getClockPosition()/1000);
                     }
+                    scheduleProgress();
             }
     };
+	
+	/**
+	 * Prepares the next track or starts crossfade into it, scheduled
+	 * for the moment it is due
+	 */
+	private Runnable mPrepareNextTask = new Runnable() {
+		@Override
+		public void run() {
+			prepareNextMediaPlayer();
+		}
+	};
+
+	/**
+	 * Checks the player prepared ahead still plays the next entry
+	 */
+	private Runnable mRevalidateNextTask = new Runnable() {
+		@Override
+		public void run() {
+			revalidateNextMediaPlayer();
+		}
+	};
+
+	/**
+	 * Revalidates the player prepared ahead after edits of the playlist,
+	 * these may come from any thread
+	 */
+	private PlaylistListener mPlaylistListener = new PlaylistListener() {
+		@Override
+		public void onEntryAdded(PlaylistEntry playlistEntry) {
+			mHandler.post(mRevalidateNextTask);
+		}
+
+		@Override
+		public void onEntryRemoved(int index) {
+			mHandler.post(mRevalidateNextTask);
+		}
+
+		@Override
+		public void onPlaybackModeChanged(PlaylistPlaybackMode mode) {
+			mHandler.post(mRevalidateNextTask);
+		}
+	};
 
 	/**
 	 * Default constructor
 	 */
 	public PlayerEngineImpl() {
+		this(null);
+	}
+
+	/**
+	 * @param streamProxy proxy caching streamed tracks, may be null
+	 */
+	public PlayerEngineImpl(StreamProxy streamProxy) {
 		mLastFailTime = 0;
 		mTimesFailed = 0;
 		mHandler = new Handler();
+		mStreamProxy = streamProxy;
 	}
 
 	@Override
 	public void next() {
 		if(mPlaylist != null){
 			mPlaylist.selectNext();
-			play();
+			skip();
 		}
 	}
 
 	@Override
 	public void openPlaylist(Playlist playlist) {
+		finishCrossfade();
+		cancelNextMediaPlayer();
+		if(mPlaylist != null){
+			mPlaylist.removeListener(mPlaylistListener);
+		}
 		if(!playlist.isEmpty()){
 			prevPlaylist = mPlaylist;
 			mPlaylist = playlist;
+			mPlaylist.addListener(mPlaylistListener);
 		}
 		else
 			mPlaylist = null;
+		scheduleNextMediaPlayer();
 	}
 
 	@Override
 	public void pause() {
+		mHandler.removeCallbacks(mSkipTask);
+		mSwitchStartTime = 0;
+		finishCrossfade();
 		if(mCurrentMediaPlayer != null){
 			// still preparing
-			if(mCurrentMediaPlayer.preparing){
+			if(mCurrentMediaPlayer.state == State.PREPARING){
 				mCurrentMediaPlayer.playAfterPrepare = false;
 				return;
 			}
 
 			// check if we play, then pause
-			if(mCurrentMediaPlayer.isPlaying()){
+			if(mCurrentMediaPlayer.state == State.PLAYING){
 				mCurrentMediaPlayer.pause();
+				setState(mCurrentMediaPlayer, State.PAUSED);
 				if(mPlayerEngineListener != null)
 					mPlayerEngineListener.onTrackPause();
 				return;
@@ -179,6 +468,7 @@ public class PlayerEngineImpl implements PlayerEngine {
 
 	@Override
 	public void play() {
+		mHandler.removeCallbacks(mSkipTask);
 		
 		if( mPlayerEngineListener.onTrackStart() == false ){
 			return; // apparently sth prevents us from playing tracks
@@ -187,15 +477,21 @@ public class PlayerEngineImpl implements PlayerEngine {
 		// check if there is anything to play
 		if(mPlaylist != null){
 
-			// check if media player is initialized
-			if(mCurrentMediaPlayer == null){
-				mCurrentMediaPlayer = build(mPlaylist.getSelectedTrack());
-			}
-
-			// check if current media player is set to our song
-			if(mCurrentMediaPlayer != null && mCurrentMediaPlayer.playlistEntry != mPlaylist.getSelectedTrack()){
-				cleanUp(); // this will do the cleanup job				
-				mCurrentMediaPlayer = build(mPlaylist.getSelectedTrack());
+			// check if media player is initialized and set to our song,
+			// if the song was prepared ahead just switch to that player
+			if(mCurrentMediaPlayer == null || mCurrentMediaPlayer.state == State.ERROR
+					|| mCurrentMediaPlayer.playlistEntry != mPlaylist.getSelectedTrack()){
+				if(mSwitchStartTime == 0){
+					mSwitchStartTime = SystemClock.uptimeMillis();
+				}
+				if(!switchToNextMediaPlayer()){
+					cancelNextMediaPlayer();
+					cleanUp(); // this will do the cleanup job				
+					mCurrentMediaPlayer = build(mPlaylist.getSelectedTrack(), false);
+					if(mCurrentMediaPlayer != null){
+						notifyStateChanged(State.IDLE, mCurrentMediaPlayer.state);
+					}
+				}
 			}
 			
 			// check if there is any player instance, if not, abort further execution 
@@ -203,38 +499,16 @@ public class PlayerEngineImpl implements PlayerEngine {
 				return;
 
 			// check if current media player is not still buffering
-			if(!mCurrentMediaPlayer.preparing){
+			if(mCurrentMediaPlayer.state != State.PREPARING){
 
 				// prevent double-press
-				if(!mCurrentMediaPlayer.isPlaying()){
+				if(mCurrentMediaPlayer.state == State.PREPARED || mCurrentMediaPlayer.state == State.PAUSED){
 					// i guess this mean we can play the song
 					Log.i(JamendoApplication.TAG, "Player [playing] "+mCurrentMediaPlayer.playlistEntry.getTrack().getName());
 					
-					final JamendoApplication app = JamendoApplication.getInstance();
-
-					// starting timer
-                    mHandler.removeCallbacks(mUpdateTimeTask);
-                    mHandler.postDelayed(mUpdateTimeTask, 1000);
-                    
-                    // Maintain the settings of the equalizer for the new media
-                    Equalizer newEqualizer = new Equalizer(0, mCurrentMediaPlayer.getAudioSessionId());
-                    short preset = app.getEqualizerPreset();
-                    // special case when the preset was chosen when there was no media stream running
-                    if (preset > -2) {
-                        newEqualizer.usePreset(preset);
-                        app.setEqualizerPreset((short) -2);
-                    } else {
-	                    Equalizer.Settings eqSettings = app.getEqualizerSettigns();
-	                    if (eqSettings != null) {
-	                        newEqualizer.setProperties(eqSettings);
-						}
-                    }
-                    // save settings for the next equalizer
-                    app.updateEqualizerSettings(newEqualizer.getProperties());
-                    // Enable equalizer before media starts
-                    JamendoApplication.getInstance().setMyEqualizer(newEqualizer);
-                    JamendoApplication.getInstance().getMyEqualizer().setEnabled(true);
+                    mPlayerSession.attachEqualizer(mCurrentMediaPlayer);
                     mCurrentMediaPlayer.start();
+                    setState(mCurrentMediaPlayer, State.PLAYING);
 				}
 			} else {
 				// tell the mediaplayer to play the song as soon as it ends preparing
@@ -250,19 +524,54 @@ public class PlayerEngineImpl implements PlayerEngine {
 	public void prev() {
 		if(mPlaylist != null){ 
 			mPlaylist.selectPrev();
-			play();	
+			skip();	
 		}
 	}
 
 	@Override
 	public void skipTo(int index) {
 		mPlaylist.select(index);
-		play();
+		skip();
+	}
+
+	/**
+	 * Plays the newly selected track. A skip following the previous one
+	 * closely is deferred, so that rapid skipping prepares only the track
+	 * selected last.
+	 */
+	private void skip() {
+		finishCrossfade();
+		long now = SystemClock.uptimeMillis();
+		boolean coalesced = now - mLastSkipTime < SKIP_DEBOUNCE;
+		mLastSkipTime = now;
+		mSwitchStartTime = now;
+
+		mHandler.removeCallbacks(mSkipTask);
+		if(!coalesced){
+			play();
+			return;
+		}
+
+		// track being prepared is not going to be played anyway
+		if(mCurrentMediaPlayer != null && mCurrentMediaPlayer.state == State.PREPARING){
+			cleanUp();
+		}
+		if(mPlayerEngineListener != null){
+			mPlayerEngineListener.onTrackChanged(mPlaylist.getSelectedTrack());
+		}
+		mHandler.postDelayed(mSkipTask, SKIP_DEBOUNCE);
 	}
 	
 	@Override
 	public void stop() {
+		mHandler.removeCallbacks(mSkipTask);
+		mSwitchStartTime = 0;
+		finishCrossfade();
+		cancelNextMediaPlayer();
 		cleanUp();
+		// nothing to play, native resources may go
+		mPlayerSession.release();
+		logStatistics();
 			
 		if(mPlayerEngineListener != null){
 			mPlayerEngineListener.onTrackStop();
@@ -270,142 +579,630 @@ public class PlayerEngineImpl implements PlayerEngine {
 	}
 
 	/**
-	 * Stops & destroys media player
+	 * Stops media player and gives it back for reuse, the equalizer
+	 * is kept
 	 */
 	private void cleanUp(){
 		// nice clean-up job
 		if(mCurrentMediaPlayer != null) {
-			try{
-				mCurrentMediaPlayer.stop();
-			} catch (IllegalStateException e){
-				// this may happen sometimes
-			} finally {
-				mCurrentMediaPlayer.release();
-				mCurrentMediaPlayer = null;
+			setState(mCurrentMediaPlayer, State.IDLE);
+			recycle(mCurrentMediaPlayer);
+			mCurrentMediaPlayer = null;
+		}
+	}
+
+	/**
+	 * Gives player back for reuse, counting prepares it wasted
+	 * 
+	 * @param mediaPlayer
+	 */
+	private void recycle(InternalMediaPlayer mediaPlayer){
+		if(mediaPlayer.state == State.PREPARING
+				|| (mediaPlayer.state == State.PREPARED && mediaPlayer.entryIndex != -1)){
+			mPreparesWasted++;
+		}
+		if(mediaPlayer.state == State.PREPARING && mediaPlayer.streamUrl != null){
+			// it may have been the probe of its host
+			JamendoApplication.getInstance().getCircuitBreaker().onCancel(mediaPlayer.streamUrl);
+		}
+		mPlayerSession.recycle(mediaPlayer);
+	}
+
+	/**
+	 * Changes state of a player, transitions of the current one are
+	 * passed to the listener
+	 * 
+	 * @param mediaPlayer
+	 * @param state
+	 */
+	private void setState(InternalMediaPlayer mediaPlayer, State state){
+		State previous = mediaPlayer.state;
+		if(previous == state)
+			return;
+		mediaPlayer.state = state;
+		if(mediaPlayer == mCurrentMediaPlayer){
+			notifyStateChanged(previous, state);
+		}
+	}
+
+	private void notifyStateChanged(State previous, State state){
+		Log.v(JamendoApplication.TAG, "Player ["+previous+" -> "+state+"]");
+		resyncClock();
+		if(mStateListener != null){
+			mStateListener.onStateChanged(previous, state);
+		}
+
+		if(state == State.PLAYING && mSwitchStartTime != 0){
+			long latency = SystemClock.uptimeMillis() - mSwitchStartTime;
+			mSwitchStartTime = 0;
+			mTrackSwitches++;
+			mSwitchLatencyTotal += latency;
+			if(mStateListener != null){
+				mStateListener.onTrackSwitched(latency);
 			}
-			// reset equalizer - it cannot be reused that way on API level 14+
-			Equalizer eq = JamendoApplication.getInstance().getMyEqualizer();
-			if (eq != null) {
-				eq.release();
-				JamendoApplication.getInstance().setMyEqualizer(null);
+		}
+	}
+
+	private void logStatistics(){
+		if(mTrackSwitches > 0 || mPreparesStarted > 0){
+			Log.i(JamendoApplication.TAG, "Player track switches "+mTrackSwitches
+					+", average latency "+(mTrackSwitches == 0 ? 0 : mSwitchLatencyTotal / mTrackSwitches)+" ms"
+					+", prepares "+mPreparesStarted+", wasted "+mPreparesWasted);
+		}
+	}
+
+	/**
+	 * Gives state of the player of the selected track
+	 * 
+	 * @return
+	 */
+	public State getState(){
+		return mCurrentMediaPlayer == null ? State.IDLE : mCurrentMediaPlayer.state;
+	}
+
+	/**
+	 * Sets listener to state transitions
+	 * 
+	 * @param stateListener
+	 */
+	public void setStateListener(PlayerStateListener stateListener){
+		mStateListener = stateListener;
+	}
+
+	/**
+	 * Sets interval of progress reports, e.g. longer one while no
+	 * user interface shows the progress
+	 * 
+	 * @param interval in ms, 0 stops the reports
+	 */
+	public void setProgressInterval(int interval){
+		mProgressInterval = interval;
+		scheduleProgress();
+	}
+
+	/**
+	 * Takes position of the current track from Media Player, called
+	 * when the position stops following time: on state change, seek
+	 * and buffering
+	 */
+	private void resyncClock(){
+		mClockTime = SystemClock.uptimeMillis();
+		State state = getState();
+		if(state == State.PREPARED || state == State.PLAYING || state == State.PAUSED){
+			mClockPosition = mCurrentMediaPlayer.getTargetPosition();
+			mClockDuration = mCurrentMediaPlayer.getDuration();
+			mClockRunning = state == State.PLAYING && !mCurrentMediaPlayer.buffering
+					&& mCurrentMediaPlayer.seekTarget == -1;
+		} else {
+			mClockPosition = 0;
+			mClockDuration = 0;
+			mClockRunning = false;
+		}
+		scheduleProgress();
+		scheduleNextMediaPlayer();
+	}
+
+	/**
+	 * @return position in ms of the current track
+	 */
+	private int getClockPosition(){
+		long position = mClockPosition;
+		if(mClockRunning){
+			position += SystemClock.uptimeMillis() - mClockTime;
+		}
+		if(mClockDuration > 0){
+			position = Math.min(position, mClockDuration);
+		}
+		return (int) position;
+	}
+
+	/**
+	 * Schedules the next progress report at the moment the position
+	 * crosses a whole interval, nothing is scheduled while the position
+	 * stands still or nobody listens
+	 */
+	private void scheduleProgress(){
+		mHandler.removeCallbacks(mUpdateTimeTask);
+		if(!mClockRunning || mProgressInterval <= 0 || mPlayerEngineListener == null)
+			return;
+		mHandler.postDelayed(mUpdateTimeTask, mProgressInterval - getClockPosition() % mProgressInterval);
+	}
+
+	/**
+	 * Schedules preparing of the next track, or the crossfade into it,
+	 * at the time it is due
+	 */
+	private void scheduleNextMediaPlayer(){
+		mHandler.removeCallbacks(mPrepareNextTask);
+		if(!mClockRunning || mClockDuration <= 0 || mPlaylist == null)
+			return;
+
+		int crossfadeTime = getCrossfadeTime();
+		int leadTime;
+		if(mNextMediaPlayer == null){
+			leadTime = getLeadTime(crossfadeTime);
+		} else if(crossfadeTime > 0 && mFadingMediaPlayer == null && mNextMediaPlayer.state == State.PREPARED){
+			leadTime = crossfadeTime;
+		} else {
+			// waiting for preparation or for completion
+			return;
+		}
+		if(leadTime <= 0)
+			return;
+		mHandler.postDelayed(mPrepareNextTask, Math.max(0, mClockDuration - getClockPosition() - leadTime));
+	}
+
+	/**
+	 * @param crossfadeTime
+	 * @return time in ms before the end of the current track the next
+	 * one is prepared, 0 if it is not prepared ahead
+	 */
+	private int getLeadTime(int crossfadeTime){
+		int leadTime = getPrepareAheadTime();
+		if(crossfadeTime > 0){
+			leadTime = Math.max(leadTime, crossfadeTime + CROSSFADE_PREPARE_MARGIN);
+		}
+		return leadTime;
+	}
+
+	/**
+	 * Starts preparing the entry following the current one once the current
+	 * track is close to its end, and crossfade into it if enabled. Player
+	 * prepared for an entry which is no longer the next one (skip, playback
+	 * mode change, playlist edit) is dropped.
+	 */
+	private void prepareNextMediaPlayer(){
+		if(mPlaylist == null || mCurrentMediaPlayer == null || mCurrentMediaPlayer.state != State.PLAYING)
+			return;
+
+		int nextIndex = mPlaylist.getNextEntryIndex();
+		if(mNextMediaPlayer != null && !isPreparedFor(mNextMediaPlayer, nextIndex)){
+			cancelNextMediaPlayer();
+		}
+		if(nextIndex == -1)
+			return;
+
+		int duration = mClockDuration;
+		if(duration <= 0)
+			return;
+		int remaining = duration - getClockPosition();
+		int crossfadeTime = getCrossfadeTime();
+
+		if(mNextMediaPlayer == null){
+			int leadTime = getLeadTime(crossfadeTime);
+			if(leadTime <= 0 || remaining > leadTime)
+				return;
+
+			mNextMediaPlayer = build(mPlaylist.getTrack(nextIndex), true);
+			if(mNextMediaPlayer != null){
+				mNextMediaPlayer.entryIndex = nextIndex;
 			}
+		} else if(crossfadeTime > 0 && remaining <= crossfadeTime && duration > 2 * crossfadeTime
+				&& mNextMediaPlayer.state == State.PREPARED && mFadingMediaPlayer == null){
+			startCrossfade(remaining);
 		}
 	}
 
-	private InternalMediaPlayer build(PlaylistEntry playlistEntry){
-		final InternalMediaPlayer mediaPlayer = new InternalMediaPlayer();
-		
-		// try to setup local path
-		String path = JamendoApplication.getInstance().getDownloadManager().getTrackPath(playlistEntry);
-		if(path == null)
-			// fallback to remote one
-			path = playlistEntry.getTrack().getStream();
-		
-		// some albums happen to contain empty stream url, notify of error, abort playback
-		if(path.length() == 0){
-			if(mPlayerEngineListener != null){
-				mPlayerEngineListener.onTrackStreamError();
-				mPlayerEngineListener.onTrackChanged(mPlaylist.getSelectedTrack());
+	/**
+	 * Starts the next track while the current one fades out
+	 * 
+	 * @param duration of the crossfade in ms
+	 */
+	private void startCrossfade(int duration){
+		Log.i(JamendoApplication.TAG, "Player [crossfade] "+duration+" ms");
+		mFadingMediaPlayer = mCurrentMediaPlayer;
+		mCurrentMediaPlayer = null;
+		mNextMediaPlayer.setVolume(0.0f, 0.0f);
+
+		mPlaylist.selectNext();
+		mSwitchStartTime = SystemClock.uptimeMillis();
+		play();
+
+		mFadeStartTime = SystemClock.uptimeMillis();
+		mFadeDuration = Math.max(duration, CROSSFADE_STEP);
+		mHandler.removeCallbacks(mFadeTask);
+		mHandler.post(mFadeTask);
+	}
+
+	/**
+	 * Completes crossfade in progress at once, the previous track is stopped
+	 * and its stream closed
+	 */
+	private void finishCrossfade(){
+		if(mFadingMediaPlayer == null)
+			return;
+		mHandler.removeCallbacks(mFadeTask);
+		recycle(mFadingMediaPlayer);
+		mFadingMediaPlayer = null;
+		if(mCurrentMediaPlayer != null){
+			mCurrentMediaPlayer.setVolume(1.0f, 1.0f);
+		}
+	}
+
+	/**
+	 * Makes the player prepared ahead the current one, if it was prepared
+	 * for the selected entry
+	 * 
+	 * @return true if switched
+	 */
+	private boolean switchToNextMediaPlayer(){
+		InternalMediaPlayer nextMediaPlayer = mNextMediaPlayer;
+		if(nextMediaPlayer == null || !isPreparedFor(nextMediaPlayer, mPlaylist.getSelectedEntryIndex()))
+			return false;
+
+		mNextMediaPlayer = null;
+		cleanUp();
+		mCurrentMediaPlayer = nextMediaPlayer;
+		mCurrentMediaPlayer.playlistEntry = mPlaylist.getSelectedTrack();
+		mCurrentMediaPlayer.entryIndex = -1;
+		Log.i(JamendoApplication.TAG, "Player [switched] "+mCurrentMediaPlayer.playlistEntry.getTrack().getName());
+		notifyStateChanged(State.IDLE, mCurrentMediaPlayer.state);
+
+		// already started by the platform on completion of the previous one
+		if(mCurrentMediaPlayer.state == State.PREPARED && mCurrentMediaPlayer.isPlaying()){
+			mPlayerSession.attachEqualizer(mCurrentMediaPlayer);
+			setState(mCurrentMediaPlayer, State.PLAYING);
+		}
+
+		if(mPlayerEngineListener != null){
+			mPlayerEngineListener.onTrackChanged(mCurrentMediaPlayer.playlistEntry);
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the player prepared ahead
+	 */
+	private void cancelNextMediaPlayer(){
+		if(mNextMediaPlayer != null){
+			if(mCurrentMediaPlayer != null && mNextMediaPlayer.state == State.PREPARED){
+				setNextMediaPlayer(mCurrentMediaPlayer, null);
 			}
-			stop();
+			recycle(mNextMediaPlayer);
+			mNextMediaPlayer = null;
+		}
+	}
+
+	/**
+	 * Drops the player prepared ahead, and the platform's chaining to it,
+	 * if the playlist was edited so that it no longer plays the next entry.
+	 * Unlike <code>prepareNextMediaPlayer</code> works while paused too,
+	 * the edit may be the last one before the current track ends.
+	 */
+	private void revalidateNextMediaPlayer(){
+		if(mPlaylist == null)
+			return;
+		if(mNextMediaPlayer != null && !isPreparedFor(mNextMediaPlayer, mPlaylist.getNextEntryIndex())){
+			Log.i(JamendoApplication.TAG, "Player [next] dropped after playlist edit");
+			cancelNextMediaPlayer();
+		}
+		if(mNextMediaPlayer == null){
+			// the edit may have added the next entry within lead time
+			scheduleNextMediaPlayer();
+		}
+	}
+
+	private boolean isPreparedFor(InternalMediaPlayer mediaPlayer, int index){
+		return index != -1 && mediaPlayer.entryIndex == index
+				&& mediaPlayer.playlistEntry.getTrack().getId() == mPlaylist.getTrack(index).getTrack().getId();
+	}
+
+	/**
+	 * @return time in ms before the end of a track at which the next one
+	 * is prepared
+	 */
+	private int getPrepareAheadTime(){
+		String leadTime = PreferenceManager.getDefaultSharedPreferences(JamendoApplication.getInstance())
+				.getString(PREPARE_AHEAD_PREFERENCE, DEFAULT_PREPARE_AHEAD);
+		try {
+			return Integer.parseInt(leadTime) * 1000;
+		} catch (NumberFormatException e) {
+			return Integer.parseInt(DEFAULT_PREPARE_AHEAD) * 1000;
+		}
+	}
+
+	/**
+	 * @return duration in ms of crossfade between tracks, 0 if disabled
+	 */
+	private int getCrossfadeTime(){
+		String crossfade = PreferenceManager.getDefaultSharedPreferences(JamendoApplication.getInstance())
+				.getString(CROSSFADE_PREFERENCE, DEFAULT_CROSSFADE);
+		try {
+			return Integer.parseInt(crossfade) * 1000;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static Method findSetNextMediaPlayer(){
+		try {
+			return MediaPlayer.class.getMethod("setNextMediaPlayer", MediaPlayer.class);
+		} catch (NoSuchMethodException e) {
 			return null;
 		}
-		
+	}
+
+	/**
+	 * Lets the platform start the next player as soon as the current one
+	 * completes, where supported. Otherwise players are switched
+	 * on completion.
+	 * 
+	 * @param mediaPlayer
+	 * @param nextMediaPlayer null to clear
+	 */
+	private static void setNextMediaPlayer(MediaPlayer mediaPlayer, MediaPlayer nextMediaPlayer){
+		if(sSetNextMediaPlayer == null)
+			return;
 		try {
-			mediaPlayer.setDataSource(path);
-			mediaPlayer.playlistEntry = playlistEntry;
-			//mediaPlayer.setScreenOnWhilePlaying(true);
+			sSetNextMediaPlayer.invoke(mediaPlayer, nextMediaPlayer);
+		} catch (Exception e) {
+			Log.w(JamendoApplication.TAG, "PlayerEngineImpl cannot chain players", e);
+		}
+	}
 
-			mediaPlayer.setOnCompletionListener(new OnCompletionListener(){
+	/**
+	 * Sets up listeners of a new player, they are kept when the player
+	 * is reused
+	 * 
+	 * @param mediaPlayer
+	 */
+	private void setUpListeners(final InternalMediaPlayer mediaPlayer){
+		mediaPlayer.setOnCompletionListener(new OnCompletionListener(){
 
-				@Override
-				public void onCompletion(MediaPlayer mp) {
-					if(!mPlaylist.isLastTrackOnList() || mPlaylist.getPlaylistPlaybackMode() == PlaylistPlaybackMode.REPEAT || mPlaylist.getPlaylistPlaybackMode() == PlaylistPlaybackMode.SHUFFLE_AND_REPEAT ){
-						next();
-					}else{
-						stop();
-					}
+			@Override
+			public void onCompletion(MediaPlayer mp) {
+				if(mediaPlayer == mFadingMediaPlayer){
+					// ended before its fade did
+					finishCrossfade();
+					return;
+				}
+				if(mediaPlayer != mCurrentMediaPlayer)
+					return;
+				if(mediaPlayer.state == State.PLAYING){
+					// may be started again, like a prepared one
+					setState(mediaPlayer, State.PREPARED);
+				}
+				if(!mPlaylist.isLastTrackOnList() || mPlaylist.getPlaylistPlaybackMode() == PlaylistPlaybackMode.REPEAT || mPlaylist.getPlaylistPlaybackMode() == PlaylistPlaybackMode.SHUFFLE_AND_REPEAT ){
+					// not a skip, no reason to wait for another one
+					mPlaylist.selectNext();
+					mSwitchStartTime = SystemClock.uptimeMillis();
+					play();
+				}else{
+					stop();
 				}
+			}
 
-			});
+		});
 
-			mediaPlayer.setOnPreparedListener(new OnPreparedListener(){
+		mediaPlayer.setOnPreparedListener(new OnPreparedListener(){
 
-				@Override
-				public void onPrepared(MediaPlayer mp) {
-					mediaPlayer.preparing = false;
+			@Override
+			public void onPrepared(MediaPlayer mp) {
+				if(mediaPlayer.state != State.PREPARING){
+					// superseded
+					return;
+				}
+				setState(mediaPlayer, State.PREPARED);
+				if(mediaPlayer.streamUrl != null){
+					JamendoApplication.getInstance().getCircuitBreaker().onSuccess(mediaPlayer.streamUrl);
+				}
 
-					// we may start playing
-					if(mPlaylist.getSelectedTrack() == mediaPlayer.playlistEntry 
-							&& mediaPlayer.playAfterPrepare){
-						mediaPlayer.playAfterPrepare = false;
-						play();
+				if(mediaPlayer == mNextMediaPlayer && mCurrentMediaPlayer != null){
+					// with crossfade the next one is started before the end
+					if(getCrossfadeTime() == 0){
+						setNextMediaPlayer(mCurrentMediaPlayer, mediaPlayer);
+					} else {
+						scheduleNextMediaPlayer();
 					}
+					return;
+				}
+
+				// we may start playing
+				if(mediaPlayer == mCurrentMediaPlayer && mediaPlayer.playAfterPrepare){
+					mediaPlayer.playAfterPrepare = false;
 
+					// continue where the previous session stopped
+					int resume = JamendoApplication.getInstance().takeResumePosition(mediaPlayer.playlistEntry);
+					if(resume > 0){
+						seekTo(mediaPlayer, resume * 1000);
+					}
+					play();
 				}
 
-			});
-			
-			mediaPlayer.setOnBufferingUpdateListener(new OnBufferingUpdateListener(){
+			}
 
-				@Override
-				public void onBufferingUpdate(MediaPlayer mp, int percent) {
-					if(mPlayerEngineListener != null){
-						mPlayerEngineListener.onTrackBuffering(percent);
+		});
+		
+		mediaPlayer.setOnSeekCompleteListener(new OnSeekCompleteListener(){
+
+			@Override
+			public void onSeekComplete(MediaPlayer mp) {
+				mediaPlayer.seekTarget = -1;
+				if(mediaPlayer.pendingSeek != -1){
+					int position = mediaPlayer.pendingSeek;
+					mediaPlayer.pendingSeek = -1;
+					seekTo(mediaPlayer, position);
+				} else if(mediaPlayer == mCurrentMediaPlayer){
+					resyncClock();
+				}
+			}
+
+		});
+
+		mediaPlayer.setOnInfoListener(new OnInfoListener(){
+
+			@Override
+			public boolean onInfo(MediaPlayer mp, int what, int extra) {
+				if(what == MediaPlayer.MEDIA_INFO_BUFFERING_START || what == MediaPlayer.MEDIA_INFO_BUFFERING_END){
+					mediaPlayer.buffering = what == MediaPlayer.MEDIA_INFO_BUFFERING_START;
+					if(mediaPlayer == mCurrentMediaPlayer){
+						resyncClock();
 					}
+					return true;
 				}
-				
-			});
+				return false;
+			}
+
+		});
+
+		mediaPlayer.setOnBufferingUpdateListener(new OnBufferingUpdateListener(){
+
+			@Override
+			public void onBufferingUpdate(MediaPlayer mp, int percent) {
+				if(mPlayerEngineListener != null && mediaPlayer == mCurrentMediaPlayer){
+					mPlayerEngineListener.onTrackBuffering(percent);
+				}
+			}
+			
+		});
+		
+		mediaPlayer.setOnErrorListener(new OnErrorListener() {
 			
-			mediaPlayer.setOnErrorListener(new OnErrorListener() {
+			@Override
+			public boolean onError(MediaPlayer mp, int what, int extra) {
+				Log.w(JamendoApplication.TAG, "PlayerEngineImpl fail, what ("+what+") extra ("+extra+")");
 				
-				@Override
-				public boolean onError(MediaPlayer mp, int what, int extra) {
-					Log.w(JamendoApplication.TAG, "PlayerEngineImpl fail, what ("+what+") extra ("+extra+")");
-						
-					if(what == MediaPlayer.MEDIA_ERROR_UNKNOWN){
-						// we probably lack network
-						if(mPlayerEngineListener != null){
-							mPlayerEngineListener.onTrackStreamError();
-						}
-						stop();
-						return true;
-					}
+				if(mediaPlayer.streamUrl != null && what != MediaPlayer.MEDIA_ERROR_SERVER_DIED){
+					// the stream could not be fetched, tracks following are refused
+					// at once if it keeps happening
+					JamendoApplication.getInstance().getCircuitBreaker().onFailure(mediaPlayer.streamUrl);
+				}
+				
+				if(mediaPlayer == mNextMediaPlayer){
+					// try again once it becomes the current one
+					cancelNextMediaPlayer();
+					return true;
+				}
+				if(mediaPlayer == mFadingMediaPlayer){
+					finishCrossfade();
+					return true;
+				}
+				setState(mediaPlayer, State.ERROR);
 					
-					// not sure what error code -1 exactly stands for but it causes player to start to jump songs
-					// if there are more than 5 jumps without playback during 1 second then we abort 
-					// further playback
-					if(what == -1){
-						long failTime = System.currentTimeMillis();
-						if(failTime - mLastFailTime > FAIL_TIME_FRAME){
-							// outside time frame
-							mTimesFailed = 1;
-							mLastFailTime = failTime;
-							Log.w(JamendoApplication.TAG, "PlayerEngineImpl "+mTimesFailed+" fail within FAIL_TIME_FRAME");
-						} else {
-							// inside time frame
-							mTimesFailed++;
-							if(mTimesFailed > ACCEPTABLE_FAIL_NUMBER){
-								Log.w(JamendoApplication.TAG, "PlayerEngineImpl too many fails, aborting playback");
-								if(mPlayerEngineListener != null){
-									mPlayerEngineListener.onTrackStreamError();
-								}
-								stop();
-								return true;
+				if(what == MediaPlayer.MEDIA_ERROR_UNKNOWN){
+					// we probably lack network
+					if(mPlayerEngineListener != null){
+						mPlayerEngineListener.onTrackStreamError();
+					}
+					stop();
+					return true;
+				}
+				
+				// not sure what error code -1 exactly stands for but it causes player to start to jump songs
+				// if there are more than 5 jumps without playback during 1 second then we abort 
+				// further playback
+				if(what == -1){
+					long failTime = System.currentTimeMillis();
+					if(failTime - mLastFailTime > FAIL_TIME_FRAME){
+						// outside time frame
+						mTimesFailed = 1;
+						mLastFailTime = failTime;
+						Log.w(JamendoApplication.TAG, "PlayerEngineImpl "+mTimesFailed+" fail within FAIL_TIME_FRAME");
+					} else {
+						// inside time frame
+						mTimesFailed++;
+						if(mTimesFailed > ACCEPTABLE_FAIL_NUMBER){
+							Log.w(JamendoApplication.TAG, "PlayerEngineImpl too many fails, aborting playback");
+							if(mPlayerEngineListener != null){
+								mPlayerEngineListener.onTrackStreamError();
 							}
+							stop();
+							return true;
 						}
 					}
-					return false;
 				}
-			});
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * Creates and starts preparing a player
+	 * 
+	 * @param playlistEntry
+	 * @param ahead true if prepared ahead for the entry following the current one,
+	 * then the listener is not notified
+	 * @return
+	 */
+	private InternalMediaPlayer build(PlaylistEntry playlistEntry, final boolean ahead){
+		// try to setup local path
+		String path = JamendoApplication.getInstance().getDownloadManager().getTrackPath(playlistEntry);
+		String streamUrl = null;
+		if(path == null){
+			// fallback to remote one, streamed through the caching proxy
+			path = JamendoApplication.getInstance().getStreamQualityPolicy()
+					.adaptStreamUrl(playlistEntry.getTrack().getStream());
+			streamUrl = path;
+			if(mStreamProxy != null && path.length() > 0){
+				path = mStreamProxy.getUrl(path);
+			}
+		}
+		
+		// some albums happen to contain empty stream url, notify of error, abort playback
+		if(path.length() == 0){
+			if(ahead){
+				// reported once it becomes the current one
+				return null;
+			}
+			if(mPlayerEngineListener != null){
+				mPlayerEngineListener.onTrackStreamError();
+				mPlayerEngineListener.onTrackChanged(mPlaylist.getSelectedTrack());
+			}
+			stop();
+			return null;
+		}
+		
+		// host failing lately, rather than trying track after track stop
+		// until it is probed again
+		if(ahead && streamUrl != null && JamendoApplication.getInstance().getCircuitBreaker().isOpen(streamUrl)){
+			// the probe is left to the track once it becomes the current one
+			return null;
+		}
+		if(streamUrl != null && !JamendoApplication.getInstance().getCircuitBreaker().allowRequest(streamUrl)){
+			Log.w(JamendoApplication.TAG, "Player [host unavailable] "+playlistEntry.getTrack().getName());
+			if(mPlayerEngineListener != null){
+				mPlayerEngineListener.onTrackStreamError();
+				mPlayerEngineListener.onTrackChanged(mPlaylist.getSelectedTrack());
+			}
+			stop();
+			return null;
+		}
+		
+		InternalMediaPlayer mediaPlayer = mPlayerSession.obtain();
+		try {
+			mediaPlayer.setDataSource(path);
+			mediaPlayer.playlistEntry = playlistEntry;
+			mediaPlayer.streamUrl = streamUrl;
+			//mediaPlayer.setScreenOnWhilePlaying(true);
 
 			// start preparing
 			Log.i(JamendoApplication.TAG, "Player [buffering] "+mediaPlayer.playlistEntry.getTrack().getName());
-			mediaPlayer.preparing = true;
+			setState(mediaPlayer, State.PREPARING);
 			mediaPlayer.prepareAsync();
+			mPreparesStarted++;
 			
 			// this is a new track, so notify the listener
-			if(mPlayerEngineListener != null){
+			if(mPlayerEngineListener != null && !ahead){
 				mPlayerEngineListener.onTrackChanged(mPlaylist.getSelectedTrack());
 			}
 
@@ -417,6 +1214,10 @@ public class PlayerEngineImpl implements PlayerEngine {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		if(streamUrl != null){
+			JamendoApplication.getInstance().getCircuitBreaker().onCancel(streamUrl);
+		}
+		mPlayerSession.recycle(mediaPlayer);
 		return null;
 	}
 
@@ -432,22 +1233,21 @@ public class PlayerEngineImpl implements PlayerEngine {
 		if(mCurrentMediaPlayer == null)
 			return false;
 
-		// so there is one, let's see if it's not preparing
-		if(mCurrentMediaPlayer.preparing)
-			return false;
-
 		// finally
-		return mCurrentMediaPlayer.isPlaying();
+		return mCurrentMediaPlayer.state == State.PLAYING;
 	}
 
 	@Override
 	public void setListener(PlayerEngineListener playerEngineListener) {
 		mPlayerEngineListener = playerEngineListener;
+		scheduleProgress();
 	}
 
 	@Override
 	public void setPlaybackMode(PlaylistPlaybackMode aMode) {
 		mPlaylist.setPlaylistPlaybackMode(aMode);
+		cancelNextMediaPlayer();
+		scheduleNextMediaPlayer();
 	}
 
 	@Override
@@ -456,13 +1256,58 @@ public class PlayerEngineImpl implements PlayerEngine {
 	}
 
 	public void forward(int time) {		
-		mCurrentMediaPlayer.seekTo( mCurrentMediaPlayer.getCurrentPosition()+time );
-		
+		if(mCurrentMediaPlayer != null)
+			seekTo( mCurrentMediaPlayer.getTargetPosition()+time );
 	}
 
 	@Override
 	public void rewind(int time) {
-		mCurrentMediaPlayer.seekTo( mCurrentMediaPlayer.getCurrentPosition()-time );
+		if(mCurrentMediaPlayer != null)
+			seekTo( mCurrentMediaPlayer.getTargetPosition()-time );
+	}
+
+	@Override
+	public void seekTo(int position) {
+		finishCrossfade();
+		if(mCurrentMediaPlayer != null)
+			seekTo(mCurrentMediaPlayer, position);
+	}
+
+	@Override
+	public int getCurrentPosition() {
+		State state = getState();
+		if(state == State.IDLE || state == State.PREPARING || state == State.ERROR)
+			return -1;
+		return getClockPosition();
+	}
+
+	/**
+	 * Seeks the player, only one seek is passed to the player at a time,
+	 * requests made meanwhile replace each other and the last one is
+	 * passed once the seek in progress completes
+	 *
+	 * @param mediaPlayer
+	 * @param position in ms
+	 */
+	private void seekTo(InternalMediaPlayer mediaPlayer, int position){
+		if(mediaPlayer.state == State.IDLE || mediaPlayer.state == State.PREPARING || mediaPlayer.state == State.ERROR)
+			return;
+
+		position = Math.max(0, position);
+		int duration = mediaPlayer.getDuration();
+		if(duration > 0){
+			position = Math.min(position, duration);
+		}
+
+		if(mediaPlayer.seekTarget != -1){
+			mediaPlayer.pendingSeek = position;
+		} else {
+			mediaPlayer.seekTarget = position;
+			mediaPlayer.seekTo(position);
+		}
+		if(mediaPlayer == mCurrentMediaPlayer){
+			resyncClock();
+		}
 	}
 	
 	@Override
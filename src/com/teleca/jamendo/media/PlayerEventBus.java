@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.media;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.teleca.jamendo.api.PlaylistEntry;
+
+/**
+ * Passes PlayerEngine events to any number of listeners, each of them
+ * subscribed to the kinds of events it handles.
+ * <br><br>
+ * Events are delivered on the main thread in batches, at most one batch
+ * per frame. Progress and buffering events waiting for delivery are
+ * replaced by newer ones, so only the last value of a frame is delivered.
+ * <code>onTrackStart</code> is the exception, it is delivered at once
+ * as its listeners may prevent the playback.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class PlayerEventBus implements PlayerEngineListener {
+
+	public static final int EVENT_TRACK_START = 1;
+	public static final int EVENT_TRACK_CHANGED = 1 << 1;
+	public static final int EVENT_TRACK_PROGRESS = 1 << 2;
+	public static final int EVENT_TRACK_BUFFERING = 1 << 3;
+	public static final int EVENT_TRACK_STOP = 1 << 4;
+	public static final int EVENT_TRACK_PAUSE = 1 << 5;
+	public static final int EVENT_TRACK_STREAM_ERROR = 1 << 6;
+	public static final int EVENT_ALL = (1 << 7) - 1;
+
+	/**
+	 * Time in ms events are collected before a batch is delivered
+	 */
+	private static final int FRAME_TIME = 16;
+
+	/**
+	 * Callback invoked on the main thread when listeners subscribe
+	 * or unsubscribe
+	 */
+	public interface OnSubscriptionChangeListener {
+		public void onSubscriptionChange(PlayerEventBus bus);
+	}
+
+	private static class Subscription {
+		final PlayerEngineListener listener;
+		final int events;
+
+		Subscription(PlayerEngineListener listener, int events) {
+			this.listener = listener;
+			this.events = events;
+		}
+	}
+
+	private static class Event {
+		final int type;
+		final int value;
+		final PlaylistEntry playlistEntry;
+
+		Event(int type, int value, PlaylistEntry playlistEntry) {
+			this.type = type;
+			this.value = value;
+			this.playlistEntry = playlistEntry;
+		}
+	}
+
+	/**
+	 * Copied on write, so that listeners may come and go while
+	 * a batch is delivered
+	 */
+	private CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	/**
+	 * Events waiting for the next batch, guarded by itself
+	 */
+	private ArrayList<Event> mPending = new ArrayList<Event>();
+
+	/**
+	 * Set while a batch is scheduled, guarded by mPending
+	 */
+	private boolean mDispatchScheduled = false;
+
+	private OnSubscriptionChangeListener mSubscriptionChangeListener;
+
+	private Handler mHandler = new Handler(Looper.getMainLooper());
+
+	private Runnable mDispatchTask = new Runnable() {
+		@Override
+		public void run() {
+			dispatch();
+		}
+	};
+
+	/**
+	 * Subscribes listener to given kinds of events, subscribing it again
+	 * replaces the kinds
+	 *
+	 * @param listener
+	 * @param events mask of <code>EVENT_*</code> constants
+	 */
+	public void subscribe(PlayerEngineListener listener, int events) {
+		Subscription previous = find(listener);
+		mSubscriptions.add(new Subscription(listener, events));
+		if (previous != null) {
+			mSubscriptions.remove(previous);
+		}
+		notifySubscriptionChange();
+	}
+
+	/**
+	 * Unsubscribes listener, it gets no more events, including those
+	 * of a batch being delivered
+	 *
+	 * @param listener
+	 */
+	public void unsubscribe(PlayerEngineListener listener) {
+		Subscription subscription = find(listener);
+		if (subscription != null) {
+			mSubscriptions.remove(subscription);
+			notifySubscriptionChange();
+		}
+	}
+
+	/**
+	 * Checks if anybody listens to given kinds of events
+	 *
+	 * @param events mask of <code>EVENT_*</code> constants
+	 * @return
+	 */
+	public boolean isSubscribed(int events) {
+		for (Subscription subscription : mSubscriptions) {
+			if ((subscription.events & events) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void setOnSubscriptionChangeListener(OnSubscriptionChangeListener listener) {
+		mSubscriptionChangeListener = listener;
+	}
+
+	@Override
+	public boolean onTrackStart() {
+		boolean start = true;
+		for (Subscription subscription : mSubscriptions) {
+			if ((subscription.events & EVENT_TRACK_START) != 0 && !subscription.listener.onTrackStart()) {
+				start = false;
+			}
+		}
+		return start;
+	}
+
+	@Override
+	public void onTrackChanged(PlaylistEntry playlistEntry) {
+		post(new Event(EVENT_TRACK_CHANGED, 0, playlistEntry));
+	}
+
+	@Override
+	public void onTrackProgress(int seconds) {
+		post(new Event(EVENT_TRACK_PROGRESS, seconds, null));
+	}
+
+	@Override
+	public void onTrackBuffering(int percent) {
+		post(new Event(EVENT_TRACK_BUFFERING, percent, null));
+	}
+
+	@Override
+	public void onTrackStop() {
+		post(new Event(EVENT_TRACK_STOP, 0, null));
+	}
+
+	@Override
+	public void onTrackPause() {
+		post(new Event(EVENT_TRACK_PAUSE, 0, null));
+	}
+
+	@Override
+	public void onTrackStreamError() {
+		post(new Event(EVENT_TRACK_STREAM_ERROR, 0, null));
+	}
+
+	private Subscription find(PlayerEngineListener listener) {
+		for (Subscription subscription : mSubscriptions) {
+			if (subscription.listener == listener) {
+				return subscription;
+			}
+		}
+		return null;
+	}
+
+	private void notifySubscriptionChange() {
+		final OnSubscriptionChangeListener listener = mSubscriptionChangeListener;
+		if (listener == null) {
+			return;
+		}
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			listener.onSubscriptionChange(this);
+		} else {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					listener.onSubscriptionChange(PlayerEventBus.this);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues event for the next batch, scheduling the batch if it is
+	 * the first event
+	 *
+	 * @param event
+	 */
+	private void post(Event event) {
+		if (!isSubscribed(event.type)) {
+			return;
+		}
+		synchronized (mPending) {
+			if (event.type == EVENT_TRACK_PROGRESS || event.type == EVENT_TRACK_BUFFERING) {
+				// older value is of no interest any more
+				for (int i = mPending.size() - 1; i >= 0; i--) {
+					if (mPending.get(i).type == event.type) {
+						mPending.remove(i);
+						break;
+					}
+				}
+			}
+			mPending.add(event);
+			if (!mDispatchScheduled) {
+				mDispatchScheduled = true;
+				mHandler.postDelayed(mDispatchTask, FRAME_TIME);
+			}
+		}
+	}
+
+	/**
+	 * Delivers the batch of events collected
+	 */
+	private void dispatch() {
+		Event[] events;
+		synchronized (mPending) {
+			events = mPending.toArray(new Event[mPending.size()]);
+			mPending.clear();
+			mDispatchScheduled = false;
+		}
+
+		for (Event event : events) {
+			for (Subscription subscription : mSubscriptions) {
+				// may have been unsubscribed by a previous event
+				if ((subscription.events & event.type) != 0 && mSubscriptions.contains(subscription)) {
+					deliver(subscription.listener, event);
+				}
+			}
+		}
+	}
+
+	private void deliver(PlayerEngineListener listener, Event event) {
+		switch (event.type) {
+		case EVENT_TRACK_CHANGED:
+			listener.onTrackChanged(event.playlistEntry);
+			break;
+		case EVENT_TRACK_PROGRESS:
+			listener.onTrackProgress(event.value);
+			break;
+		case EVENT_TRACK_BUFFERING:
+			listener.onTrackBuffering(event.value);
+			break;
+		case EVENT_TRACK_STOP:
+			listener.onTrackStop();
+			break;
+		case EVENT_TRACK_PAUSE:
+			listener.onTrackPause();
+			break;
+		case EVENT_TRACK_STREAM_ERROR:
+			listener.onTrackStreamError();
+			break;
+		}
+	}
+
+}
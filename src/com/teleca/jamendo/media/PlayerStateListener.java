@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.media;
+
+import com.teleca.jamendo.media.PlayerEngineImpl.State;
+
+/**
+ * Listener to state transitions of the player playing the selected track
+ *
+ * @author Lukasz Wisniewski
+ */
+public interface PlayerStateListener {
+
+	/**
+	 * Callback invoked on every transition
+	 *
+	 * @param previous
+	 * @param state
+	 */
+	public void onStateChanged(State previous, State state);
+
+	/**
+	 * Callback invoked when playback of a newly selected track starts
+	 *
+	 * @param latency time in ms since the track was selected
+	 */
+	public void onTrackSwitched(long latency);
+
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.media;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+import com.teleca.jamendo.api.Album;
+import com.teleca.jamendo.api.Playlist;
+import com.teleca.jamendo.api.PlaylistEntry;
+import com.teleca.jamendo.api.PlaylistListener;
+import com.teleca.jamendo.api.Track;
+import com.teleca.jamendo.api.Playlist.PlaylistPlaybackMode;
+import com.teleca.jamendo.db.DatabaseWriter;
+import com.teleca.jamendo.util.IntIntMap;
+
+/**
+ * Keeps the play queue, selected track and playback position in a file,
+ * so that they survive the process being killed.
+ * <br><br>
+ * Each change is appended to the file as a small record, starting from
+ * a snapshot of the whole playlist. When the file grows too big it is
+ * rewritten with a fresh snapshot. Records are written on the
+ * <code>DatabaseWriter</code> thread, a record cut short by the process
+ * being killed is ignored on restore.
+ * <br><br>
+ * Shuffle order is restored starting from the selected track, tracks
+ * played before it are not kept.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class PlaylistJournal implements PlaylistListener {
+
+	private static final int MAGIC = 0x4a514a31;
+
+	private static final byte OP_RESET = 1;
+	private static final byte OP_ADD = 2;
+	private static final byte OP_REMOVE = 3;
+	private static final byte OP_MODE = 4;
+	private static final byte OP_SELECT = 5;
+	private static final byte OP_POSITION = 6;
+
+	/**
+	 * Album reference standing for an entry without album
+	 */
+	private static final int NO_ALBUM = -2;
+
+	/**
+	 * Album reference followed by a new album
+	 */
+	private static final int NEW_ALBUM = -1;
+
+	/**
+	 * Size of appended records after which the file is rewritten
+	 */
+	private static final int MAX_APPENDED = 64 * 1024;
+
+	/**
+	 * Position is recorded when it changes by at least this many seconds
+	 */
+	private static final int POSITION_STEP = 5;
+
+	private static final String KEY_JOURNAL = "playlist_journal";
+
+	private File mFile;
+
+	private DatabaseWriter mWriter;
+
+	/**
+	 * Playlist being recorded
+	 */
+	private Playlist mPlaylist;
+
+	/**
+	 * Records not yet written
+	 */
+	private ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+
+	private DataOutputStream mOut = new DataOutputStream(mPending);
+
+	/**
+	 * Pending records start with a snapshot, file has to be rewritten
+	 */
+	private boolean mTruncate = false;
+
+	/**
+	 * Count of bytes written to mOut when the last snapshot was taken
+	 */
+	private int mSnapshotEnd = 0;
+
+	/**
+	 * Albums written since the last snapshot, maps album id to its reference
+	 */
+	private IntIntMap mAlbumRefs = new IntIntMap();
+
+	private int mNextAlbumRef = 0;
+
+	private int mSelected = -1;
+
+	/**
+	 * Last recorded position, in seconds
+	 */
+	private int mPosition = 0;
+
+	public PlaylistJournal(File file, DatabaseWriter writer) {
+		mFile = file;
+		mWriter = writer;
+	}
+
+	/**
+	 * Reads playlist back from the file and starts recording it. Should be
+	 * called once, before any other method.
+	 *
+	 * @return playlist or null if there was none
+	 */
+	public synchronized Playlist restore() {
+		long start = System.currentTimeMillis();
+		Playlist playlist = null;
+		ArrayList<Album> albums = new ArrayList<Album>();
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a playlist journal");
+			}
+
+			int op;
+			while ((op = in.read()) != -1) {
+				if (op != OP_RESET && playlist == null) {
+					throw new IOException("Record " + op + " without playlist");
+				}
+				switch (op) {
+				case OP_RESET:
+					albums.clear();
+					playlist = new Playlist();
+					playlist.setPlaylistPlaybackMode(readMode(in));
+					int size = in.readInt();
+					for (int i = 0; i < size; i++) {
+						playlist.addPlaylistEntry(readEntry(in, albums));
+					}
+					select(playlist, in.readInt());
+					mPosition = 0;
+					break;
+				case OP_ADD:
+					playlist.addPlaylistEntry(readEntry(in, albums));
+					break;
+				case OP_REMOVE:
+					playlist.remove(in.readInt());
+					break;
+				case OP_MODE:
+					playlist.setPlaylistPlaybackMode(readMode(in));
+					break;
+				case OP_SELECT:
+					select(playlist, in.readInt());
+					mPosition = 0;
+					break;
+				case OP_POSITION:
+					mPosition = in.readInt();
+					break;
+				default:
+					throw new IOException("Unknown record " + op);
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// nothing played yet
+		} catch (EOFException e) {
+			// last record was not written completely
+		} catch (IOException e) {
+			Log.w(JamendoApplication.TAG, "Cannot restore playlist", e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+
+		if (playlist != null && playlist.isEmpty()) {
+			playlist = null;
+		}
+		Log.v(JamendoApplication.TAG, "Playlist restored in " + (System.currentTimeMillis() - start) + " ms");
+
+		// start over with a compact snapshot
+		mPlaylist = playlist;
+		if (playlist != null) {
+			playlist.addListener(this);
+		}
+		snapshot();
+		return playlist;
+	}
+
+	/**
+	 * Gives position of the selected track at the time playlist was recorded
+	 *
+	 * @return position in seconds
+	 */
+	public synchronized int getPosition() {
+		return mPosition;
+	}
+
+	/**
+	 * Starts recording a new playlist
+	 *
+	 * @param playlist
+	 */
+	public synchronized void open(Playlist playlist) {
+		if (playlist == mPlaylist) {
+			return;
+		}
+		if (mPlaylist != null) {
+			mPlaylist.removeListener(this);
+		}
+		mPlaylist = playlist;
+		if (playlist != null) {
+			playlist.addListener(this);
+		}
+		mPosition = 0;
+		snapshot();
+	}
+
+	/**
+	 * Records the track being selected
+	 *
+	 * @param playlist
+	 */
+	public synchronized void trackChanged(Playlist playlist) {
+		if (playlist != mPlaylist || playlist == null) {
+			return;
+		}
+		int selected = playlist.getSelectedEntryIndex();
+		if (selected != mSelected) {
+			mSelected = selected;
+			mPosition = 0;
+			try {
+				mOut.writeByte(OP_SELECT);
+				mOut.writeInt(selected);
+			} catch (IOException e) {
+				// not thrown by a byte array stream
+			}
+			appended();
+		}
+	}
+
+	/**
+	 * Records playback position of the selected track
+	 *
+	 * @param playlist
+	 * @param seconds
+	 */
+	public synchronized void trackProgress(Playlist playlist, int seconds) {
+		if (playlist != mPlaylist || playlist == null) {
+			return;
+		}
+		if (Math.abs(seconds - mPosition) >= POSITION_STEP) {
+			mPosition = seconds;
+			try {
+				mOut.writeByte(OP_POSITION);
+				mOut.writeInt(seconds);
+			} catch (IOException e) {
+				// not thrown by a byte array stream
+			}
+			appended();
+		}
+	}
+
+	@Override
+	public synchronized void onEntryAdded(PlaylistEntry playlistEntry) {
+		try {
+			mOut.writeByte(OP_ADD);
+			writeEntry(playlistEntry);
+		} catch (IOException e) {
+			// not thrown by a byte array stream
+		}
+		appended();
+	}
+
+	@Override
+	public synchronized void onEntryRemoved(int index) {
+		if (index < mSelected) {
+			mSelected--;
+		} else if (index == mSelected) {
+			mSelected = -1;
+		}
+		try {
+			mOut.writeByte(OP_REMOVE);
+			mOut.writeInt(index);
+		} catch (IOException e) {
+			// not thrown by a byte array stream
+		}
+		appended();
+	}
+
+	@Override
+	public synchronized void onPlaybackModeChanged(PlaylistPlaybackMode mode) {
+		try {
+			mOut.writeByte(OP_MODE);
+			mOut.writeByte(mode.ordinal());
+		} catch (IOException e) {
+			// not thrown by a byte array stream
+		}
+		appended();
+	}
+
+	/**
+	 * Replaces pending records with a snapshot of the whole playlist
+	 */
+	private void snapshot() {
+		mPending.reset();
+		mTruncate = true;
+		mAlbumRefs.clear();
+		mNextAlbumRef = 0;
+		mSelected = -1;
+
+		try {
+			mOut.writeInt(MAGIC);
+			if (mPlaylist != null) {
+				mOut.writeByte(OP_RESET);
+				mOut.writeByte(mPlaylist.getPlaylistPlaybackMode().ordinal());
+				int size = mPlaylist.size();
+				mOut.writeInt(size);
+				for (int i = 0; i < size; i++) {
+					writeEntry(mPlaylist.getTrack(i));
+				}
+				mSelected = mPlaylist.getSelectedEntryIndex();
+				mOut.writeInt(mSelected);
+				mOut.writeByte(OP_POSITION);
+				mOut.writeInt(mPosition);
+			}
+		} catch (IOException e) {
+			// not thrown by a byte array stream
+		}
+		mSnapshotEnd = mOut.size();
+		mWriter.enqueue(KEY_JOURNAL, mFlush);
+	}
+
+	private void appended() {
+		if (mOut.size() - mSnapshotEnd > MAX_APPENDED && !mTruncate) {
+			snapshot();
+		} else {
+			mWriter.enqueue(KEY_JOURNAL, mFlush);
+		}
+	}
+
+	private void writeEntry(PlaylistEntry entry) throws IOException {
+		Track track = entry.getTrack();
+		mOut.writeInt(track.getId());
+		writeString(track.getName());
+		mOut.writeInt(track.getDuration());
+		writeString(track.getUrl());
+		writeString(track.getStream());
+		mOut.writeDouble(track.getRating());
+		mOut.writeInt(track.getNumAlbum());
+
+		Album album = entry.getAlbum();
+		if (album == null) {
+			mOut.writeInt(NO_ALBUM);
+			return;
+		}
+		int ref = album.getId() == 0 ? NEW_ALBUM : mAlbumRefs.get(album.getId(), NEW_ALBUM);
+		mOut.writeInt(ref);
+		if (ref == NEW_ALBUM) {
+			mOut.writeInt(album.getId());
+			writeString(album.getName());
+			writeString(album.getArtistName());
+			writeString(album.getImage());
+			mOut.writeDouble(album.getRating());
+			if (album.getId() != 0) {
+				mAlbumRefs.putIfAbsent(album.getId(), mNextAlbumRef);
+			}
+			mNextAlbumRef++;
+		}
+	}
+
+	private void writeString(String value) throws IOException {
+		mOut.writeBoolean(value != null);
+		if (value != null) {
+			mOut.writeUTF(value);
+		}
+	}
+
+	private static PlaylistEntry readEntry(DataInputStream in, ArrayList<Album> albums) throws IOException {
+		Track track = new Track();
+		track.setId(in.readInt());
+		track.setName(readString(in));
+		track.setDuration(in.readInt());
+		track.setUrl(readString(in));
+		track.setStream(readString(in));
+		track.setRating(in.readDouble());
+		track.setNumAlbum(in.readInt());
+
+		Album album = null;
+		int ref = in.readInt();
+		if (ref == NEW_ALBUM) {
+			album = new Album();
+			album.setId(in.readInt());
+			album.setName(readString(in));
+			album.setArtistName(readString(in));
+			album.setImage(readString(in));
+			album.setRating(in.readDouble());
+			albums.add(album);
+		} else if (ref >= 0 && ref < albums.size()) {
+			album = albums.get(ref);
+		} else if (ref != NO_ALBUM) {
+			throw new IOException("Unknown album " + ref);
+		}
+
+		PlaylistEntry entry = new PlaylistEntry();
+		entry.setTrack(track);
+		entry.setAlbum(album);
+		return entry;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static PlaylistPlaybackMode readMode(DataInputStream in) throws IOException {
+		int mode = in.readByte();
+		PlaylistPlaybackMode[] modes = PlaylistPlaybackMode.values();
+		if (mode < 0 || mode >= modes.length) {
+			throw new IOException("Unknown playback mode " + mode);
+		}
+		return modes[mode];
+	}
+
+	private static void select(Playlist playlist, int index) {
+		if (index >= 0 && index < playlist.size()) {
+			playlist.select(index);
+		}
+	}
+
+	/**
+	 * Writes pending records to the file
+	 */
+	private Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			byte[] records;
+			boolean truncate;
+			synchronized (PlaylistJournal.this) {
+				records = mPending.toByteArray();
+				truncate = mTruncate;
+				mPending.reset();
+				mTruncate = false;
+			}
+
+			FileOutputStream out = null;
+			try {
+				out = new FileOutputStream(mFile, !truncate);
+				out.write(records);
+			} catch (IOException e) {
+				Log.w(JamendoApplication.TAG, "Cannot write playlist journal", e);
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						// nothing to do
+					}
+				}
+			}
+		}
+	};
+
+}
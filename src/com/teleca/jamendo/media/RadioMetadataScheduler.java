@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+import com.teleca.jamendo.R;
+import com.teleca.jamendo.activity.RadioActivity.RadioChannel;
+import com.teleca.jamendo.api.Album;
+import com.teleca.jamendo.api.PlaylistEntry;
+import com.teleca.jamendo.api.Track;
+import com.teleca.jamendo.api.util.XMLUtil;
+import com.teleca.jamendo.util.ImageCache;
+
+/**
+ * Polls metadata of a radio channel, waking shortly before the track on
+ * air ends instead of at the interval the server suggests.
+ * <br><br>
+ * The server's <code>callmeback</code> is used only when the end time
+ * cannot be trusted, failed polls are retried with exponential backoff.
+ * Start and end times are in the server's local time of an unknown zone,
+ * its offset is derived from the <code>Date</code> header, which has to
+ * fall between the two.
+ * The cover of a new track is downloaded before the track is posted, so
+ * that it shows up together with the title.
+ *
+ * @author Marcin Gil <marcin.gil@gmail.com>
+ */
+class RadioMetadataScheduler {
+    private final static String TAG = "Jamendo RadioMetadataScheduler";
+
+    private static final String META_ARTIST = "artists";
+    private static final String META_TRACK = "title";
+    private static final String META_PING = "callmeback";
+    private static final String META_COVER = "cover";
+    private static final String META_START = "starttime";
+    private static final String META_END = "endtime";
+
+    /**
+     * Time in ms before the end of a track its successor is polled for
+     */
+    private static final long END_LEAD = 1000;
+
+    /**
+     * Delay in ms between polls around a track boundary, doubled while
+     * the server still reports the track that ended
+     */
+    private static final long BOUNDARY_RETRY_TIME = 500;
+
+    /**
+     * End time further than this (in ms) behind is not trusted, the clocks
+     * of the device and the server probably differ
+     */
+    private static final long END_GRACE = 30000;
+
+    /**
+     * Delay in ms after a failed poll, doubled by each failure in a row
+     */
+    private static final long MIN_RETRY_TIME = 5000;
+
+    private static final long MAX_RETRY_TIME = 2 * 60 * 1000;
+
+    /**
+     * Longest time in ms without a poll, even if a track is longer
+     */
+    private static final long MAX_POLL_TIME = 5 * 60 * 1000;
+
+    /**
+     * Time zone offsets are multiples of this, in ms
+     */
+    private static final long ZONE_STEP = 15 * 60 * 1000;
+
+    private static final long MAX_ZONE_OFFSET = 14 * 60 * 60 * 1000;
+
+    private static final long NO_ZONE_OFFSET = Long.MIN_VALUE;
+
+    private final Handler mTarget;
+
+    private final int mWhat;
+
+    /**
+     * Reused by every poll, a poll of a stopped session may still be
+     * running while the next session starts
+     */
+    private final DefaultHttpClient mClient;
+
+    /**
+     * Parses times as if they were GMT, guarded by itself
+     */
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    /**
+     * Offset in ms of the server's time zone, as learned by the last poll
+     */
+    private volatile long mZoneOffset = NO_ZONE_OFFSET;
+
+    private HandlerThread mThread;
+
+    /**
+     * Incremented by start and stop, polls of older sessions post nothing
+     */
+    private volatile int mGeneration = 0;
+
+    /**
+     * Url of the last cover prefetched, <code>ImageCache</code> holds its
+     * keys weakly
+     */
+    private String mCoverUrl;
+
+    /**
+     * State of polling a channel, touched by its thread only
+     */
+    private class Poll implements Runnable {
+        final RadioChannel radio;
+        final int generation;
+        final Handler handler;
+
+        int errors = 0;
+        int boundaryRetries = 0;
+        String lastKey = null;
+
+        Poll(RadioChannel radio, int generation, Handler handler) {
+            this.radio = radio;
+            this.generation = generation;
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() {
+            if (generation != mGeneration) {
+                return;
+            }
+            long delay = poll(this);
+            if (generation == mGeneration) {
+                Log.d(TAG, "Next poll in " + delay + " ms");
+                handler.postDelayed(this, delay);
+            }
+        }
+    }
+
+    /**
+     * @param target handler track changes are sent to
+     * @param what of the messages sent, their <code>obj</code> is
+     * <code>PlaylistEntry</code> of the track on air
+     */
+    public RadioMetadataScheduler(Handler target, int what) {
+        mTarget = target;
+        mWhat = what;
+        mDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        HttpParams params = new BasicHttpParams();
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        mClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+    }
+
+    /**
+     * Starts polling metadata of a channel at once, replacing polling
+     * of any other one
+     *
+     * @param radio
+     */
+    public void start(RadioChannel radio) {
+        stop();
+        mThread = new HandlerThread("RadioMetadataScheduler", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        Handler handler = new Handler(mThread.getLooper());
+        handler.post(new Poll(radio, ++mGeneration, handler));
+    }
+
+    public void stop() {
+        mGeneration++;
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Fetches metadata and posts the track if it changed
+     *
+     * @param poll
+     * @return delay in ms of the next poll
+     */
+    private long poll(Poll poll) {
+        HttpGet get = new HttpGet(poll.radio.getMetaUrl());
+        get.addHeader("Accept", "application/xml");
+        get.addHeader("Content-Type", "application/xml");
+
+        Document doc;
+        long serverTime;
+        try {
+            HttpResponse response = mClient.execute(get);
+            String docString = EntityUtils.toString(response.getEntity());
+            serverTime = getServerTime(response);
+            doc = XMLUtil.stringToDocument(docString);
+            Log.d(TAG, "META: " + docString);
+        } catch (IOException e) {
+            Log.w(TAG, "Metadata poll failed " + e.getMessage());
+            return getRetryDelay(poll);
+        }
+        if (doc == null) {
+            return getRetryDelay(poll);
+        }
+
+        doc.normalize();
+        String artist = getText(doc, META_ARTIST);
+        String track = getText(doc, META_TRACK);
+        if (artist == null || track == null) {
+            Log.w(TAG, "Metadata incomplete");
+            return getRetryDelay(poll);
+        }
+        poll.errors = 0;
+
+        String cover = getText(doc, META_COVER);
+        long start = parseTime(getText(doc, META_START));
+        long end = parseTime(getText(doc, META_END));
+        long pingTime = -1;
+        try {
+            pingTime = Long.parseLong(getText(doc, META_PING));
+        } catch (NumberFormatException e) {
+            // end time only
+        }
+
+        String key = artist + '\n' + track + '\n' + end;
+        boolean changed = !key.equals(poll.lastKey);
+        if (changed) {
+            poll.lastKey = key;
+            poll.boundaryRetries = 0;
+            Log.d(JamendoApplication.TAG, "Radio meta: " + artist + " - " + track);
+
+            prefetchCover(cover);
+
+            Album a = new Album();
+            a.setArtistName(artist);
+            a.setImage(cover);
+
+            Track t = new Track();
+            t.setName(track);
+            if (start != -1 && end > start) {
+                t.setDuration((int) ((end - start) / 1000));
+            }
+
+            PlaylistEntry p = new PlaylistEntry();
+            p.setAlbum(a);
+            p.setTrack(t);
+
+            if (poll.generation == mGeneration) {
+                mTarget.obtainMessage(mWhat, p).sendToTarget();
+            }
+        }
+
+        if (start != -1 && end > start) {
+            long offset = getZoneOffset(start, end, serverTime);
+            if (offset != NO_ZONE_OFFSET) {
+                start -= offset;
+                end -= offset;
+            }
+        }
+        return getPollDelay(poll, start, end, serverTime, pingTime);
+    }
+
+    /**
+     * Finds offset of the server's time zone, such that the time of the
+     * response falls within the track on air
+     *
+     * @param start of the track as parsed
+     * @param end of the track as parsed
+     * @param serverTime
+     * @return offset in ms, <code>NO_ZONE_OFFSET</code> if there is none
+     */
+    private long getZoneOffset(long start, long end, long serverTime) {
+        // the server may be a bit late with the next track
+        long min = start - serverTime - END_GRACE;
+        long max = end - serverTime + END_GRACE;
+
+        long offset = mZoneOffset;
+        if (offset != NO_ZONE_OFFSET && offset >= min && offset <= max) {
+            return offset;
+        }
+
+        // the largest one polls too early rather than too late
+        offset = max >= 0 ? max / ZONE_STEP * ZONE_STEP : -((ZONE_STEP - 1 - max) / ZONE_STEP * ZONE_STEP);
+        if (offset < min || Math.abs(offset) > MAX_ZONE_OFFSET) {
+            Log.w(TAG, "No time zone fits track times, device or server clock is wrong");
+            return NO_ZONE_OFFSET;
+        }
+        Log.d(TAG, "Server time zone offset " + (offset / 60000) + " min");
+        mZoneOffset = offset;
+        return offset;
+    }
+
+    /**
+     * Computes delay of the next poll from the end time of the track
+     * on air, falling back to the time suggested by the server
+     */
+    private long getPollDelay(Poll poll, long start, long end, long serverTime, long pingTime) {
+        if (start != -1 && end > start) {
+            long remaining = end - serverTime;
+            if (remaining <= end - start && remaining > END_LEAD + BOUNDARY_RETRY_TIME) {
+                return Math.min(remaining - END_LEAD, MAX_POLL_TIME);
+            }
+            if (remaining <= end - start && remaining > -END_GRACE) {
+                // around the boundary, the next track may not be known yet
+                long delay = Math.max(remaining, 0) + (BOUNDARY_RETRY_TIME << Math.min(poll.boundaryRetries, 8));
+                poll.boundaryRetries++;
+                return Math.min(delay, MAX_RETRY_TIME);
+            }
+            Log.w(TAG, "End time " + (remaining / 1000) + " s away not trusted");
+        }
+        return pingTime > 0 ? pingTime : MIN_RETRY_TIME;
+    }
+
+    private long getRetryDelay(Poll poll) {
+        long delay = Math.min(MIN_RETRY_TIME << Math.min(poll.errors, 8), MAX_RETRY_TIME);
+        poll.errors++;
+        return delay;
+    }
+
+    /**
+     * @param response
+     * @return time of the response according to the server, the device's
+     * time if the server does not tell
+     */
+    private static long getServerTime(HttpResponse response) {
+        Header date = response.getFirstHeader("Date");
+        if (date != null) {
+            try {
+                return DateUtils.parseDate(date.getValue()).getTime();
+            } catch (DateParseException e) {
+                // device time then
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @param time
+     * @return time in ms, -1 if missing or malformed
+     */
+    private long parseTime(String time) {
+        if (time == null) {
+            return -1;
+        }
+        synchronized (mDateFormat) {
+            try {
+                return mDateFormat.parse(time).getTime();
+            } catch (ParseException e) {
+                Log.w(TAG, "Malformed time " + time);
+                return -1;
+            }
+        }
+    }
+
+    private static String getText(Document doc, String tag) {
+        Node node = doc.getElementsByTagName(tag).item(0);
+        return node == null ? null : node.getTextContent();
+    }
+
+    /**
+     * Downloads cover into <code>ImageCache</code>, in the resolution
+     * the player shows it
+     *
+     * @param url
+     */
+    private void prefetchCover(String url) {
+        if (url == null || url.length() == 0) {
+            return;
+        }
+        JamendoApplication app = JamendoApplication.getInstance();
+        url = url.replaceAll("1.100.jpg", app.getString(R.string.better_res));
+        ImageCache imageCache = app.getImageCache();
+        if (imageCache.isCached(url)) {
+            mCoverUrl = url;
+            return;
+        }
+
+        InputStream stream = null;
+        try {
+            HttpEntity entity = mClient.execute(new HttpGet(url)).getEntity();
+            if (entity == null) {
+                return;
+            }
+            stream = entity.getContent();
+            Bitmap bmp = BitmapFactory.decodeStream(stream);
+            if (bmp != null) {
+                imageCache.put(url, bmp);
+                mCoverUrl = url;
+                Log.d(TAG, "Cover prefetched " + url);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cover prefetch failed " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Malformed cover url " + url);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // released anyway
+                }
+            }
+        }
+    }
+
+}
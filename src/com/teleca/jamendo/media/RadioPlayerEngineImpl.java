@@ -4,38 +4,23 @@
 package com.teleca.jamendo.media;
 
 import java.io.IOException;
-import java.lang.ref.WeakReference;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
-import org.w3c.dom.Document;
+import java.util.Random;
 
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnBufferingUpdateListener;
+import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnPreparedListener;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
 import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.activity.RadioActivity.RadioChannel;
-import com.teleca.jamendo.api.Album;
 import com.teleca.jamendo.api.Playlist;
 import com.teleca.jamendo.api.Playlist.PlaylistPlaybackMode;
 import com.teleca.jamendo.api.PlaylistEntry;
-import com.teleca.jamendo.api.Track;
-import com.teleca.jamendo.api.util.XMLUtil;
 
 /**
  * @author Marcin Gil <marcin.gil@gmail.com>
@@ -44,21 +29,20 @@ import com.teleca.jamendo.api.util.XMLUtil;
 public class RadioPlayerEngineImpl implements PlayerEngine {
     private final static String TAG = "Jamendo RadioPlayerEngineImpl";
 
-    private static final String META_ARTIST = "artists";
-    private static final String META_TRACK = "title";
-    private static final String META_PING = "callmeback";
-    private static final String META_COVER = "cover";
-    private static final String META_START = "starttime";
-    private static final String META_END = "endtime";
+    private static final int MSG_TRACK_CHANGE = 0x0110;
 
-    private static final int META_RETRY_TIME = 5000;
+    /**
+     * Times the player is rebuilt after the stream was lost before giving up
+     */
+    private static final int MAX_RECONNECTS = 4;
 
-    private static final int MSG_UPDATE_META = 0x0101;
-    private static final int MSG_TRACK_CHANGE = 0x0110;
+    /**
+     * Delay in ms before rebuilding the player, doubled by each attempt
+     */
+    private static final long MIN_RECONNECT_DELAY = 1000;
 
     private MediaPlayer mPlayer;
     private boolean mPlayerPreparing = false;
-    private boolean mPlayerPlayAfterPrepare = true;
     private boolean mPlayerNewRadio = false;
 
     private RadioChannel mRadio;
@@ -67,7 +51,44 @@ public class RadioPlayerEngineImpl implements PlayerEngine {
 
     private Handler mHandler = new PrivateHandler();
     private PlaylistEntry mCurrentEntry = null;
-    private UpdateMetaTask mCurrentUpdateTask = null;
+    private RadioMetadataScheduler mMetadataScheduler = new RadioMetadataScheduler(mHandler, MSG_TRACK_CHANGE);
+
+    /**
+     * Streams are played through it, it reconnects them while the player
+     * keeps playing what it buffered
+     */
+    private RadioStreamProxy mStreamProxy = new RadioStreamProxy();
+
+    /**
+     * Player rebuilds since the last successful prepare
+     */
+    private int mReconnects = 0;
+
+    private Random mRandom = new Random();
+
+    private Runnable mReconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mPlayer != null) {
+                mPlayer.reset();
+                mPlayer.release();
+                mPlayer = null;
+            }
+            try {
+                mPlayer = build();
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            JamendoApplication.getInstance().setMyCurrentMedia(mPlayer);
+            if (mPlayer == null) {
+                onStreamLost();
+            }
+        }
+    };
 
     @Override
     public void openPlaylist(Playlist playlist) {
@@ -98,6 +119,7 @@ public class RadioPlayerEngineImpl implements PlayerEngine {
 
         try {
             if (mPlayer == null) {
+                mHandler.removeCallbacks(mReconnectTask);
                 mPlayer = build();
                 JamendoApplication.getInstance().setMyCurrentMedia(mPlayer);
                 
@@ -109,8 +131,10 @@ public class RadioPlayerEngineImpl implements PlayerEngine {
                 mPlayer.reset();
                 mPlayer.release();
 
-                mHandler.removeMessages(MSG_UPDATE_META);
+                mMetadataScheduler.stop();
                 mHandler.removeMessages(MSG_TRACK_CHANGE);
+                mHandler.removeCallbacks(mReconnectTask);
+                mReconnects = 0;
 
                 mPlayer = build();
                 JamendoApplication.getInstance().setMyCurrentMedia(mPlayer);
@@ -138,24 +162,7 @@ public class RadioPlayerEngineImpl implements PlayerEngine {
 
     @Override
     public void stop() {
-        if (mPlayer != null) {
-            try {
-                mPlayer.stop();
-            } catch (IllegalStateException e) {
-                // this may happen sometimes
-            } finally {
-                mPlayer.reset();
-                mPlayer.release();
-                mPlayer = null;
-            }
-        }
-
-        mHandler.removeMessages(MSG_UPDATE_META);
-        mHandler.removeMessages(MSG_TRACK_CHANGE);
-        if (mCurrentUpdateTask != null) {
-            mCurrentUpdateTask.cancel(true);
-            mCurrentUpdateTask = null;
-        }
+        release();
         
         if (mPlayerEngineListener != null) {
             mPlayerEngineListener.onTrackStop();
@@ -165,20 +172,39 @@ public class RadioPlayerEngineImpl implements PlayerEngine {
     @Override
     public void pause() {
         if (mPlayer != null) {
-            // still preparing
-            if (mPlayerPreparing) {
-                mPlayerPlayAfterPrepare = false;
-                return;
+            boolean playing = !mPlayerPreparing && mPlayer.isPlaying();
+
+            // a live stream cannot be resumed where it was paused, rather
+            // than fetching it meanwhile play connects anew
+            release();
+            if (playing && mPlayerEngineListener != null) {
+                mPlayerEngineListener.onTrackPause();
             }
+        }
+    }
 
-            // check if we play, then pause
-            if (mPlayer.isPlaying()) {
-                mPlayer.pause();
-                if (mPlayerEngineListener != null)
-                    mPlayerEngineListener.onTrackPause();
-                return;
+    /**
+     * Releases the player and stops fetching the stream and its metadata
+     */
+    private void release() {
+        if (mPlayer != null) {
+            try {
+                mPlayer.stop();
+            } catch (IllegalStateException e) {
+                // this may happen sometimes
+            } finally {
+                mPlayer.reset();
+                mPlayer.release();
+                mPlayer = null;
             }
         }
+        mPlayerPreparing = false;
+
+        mMetadataScheduler.stop();
+        mHandler.removeMessages(MSG_TRACK_CHANGE);
+        mHandler.removeCallbacks(mReconnectTask);
+        mReconnects = 0;
+        mStreamProxy.close();
     }
 
     @Override
@@ -226,7 +252,27 @@ public class RadioPlayerEngineImpl implements PlayerEngine {
         // no action on radio stream
     }
 
+    @Override
+    public void seekTo(int position) {
+        // no action on radio stream
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return -1;
+    }
+
     private MediaPlayer build() throws IllegalArgumentException, IllegalStateException, IOException {
+        final String url = mRadio.getStreamUrl();
+        if (JamendoApplication.getInstance().getCircuitBreaker().getRetryDelay(url) > 0) {
+            // failing lately, the proxy probes it once the backoff passes
+            Log.w(TAG, "Radio host unavailable " + url);
+            if (mPlayerEngineListener != null) {
+                mPlayerEngineListener.onTrackStreamError();
+            }
+            return null;
+        }
+
         final MediaPlayer player = new MediaPlayer();
 
         player.setAudioStreamType(AudioManager.STREAM_MUSIC);
@@ -236,16 +282,14 @@ public class RadioPlayerEngineImpl implements PlayerEngine {
             @Override
             public void onPrepared(MediaPlayer mp) {
                 mPlayerPreparing = false;
-                if (mPlayerPlayAfterPrepare == false) {
-                    return;
-                }
+                mReconnects = 0;
 
                 play();
 
                 if (mPlayerEngineListener != null) {
                     mPlayerEngineListener.onTrackStart();
                 }
-                mHandler.sendEmptyMessage(MSG_UPDATE_META);
+                mMetadataScheduler.start(mRadio);
             }
         });
 
@@ -253,10 +297,22 @@ public class RadioPlayerEngineImpl implements PlayerEngine {
             
             @Override
             public boolean onError(MediaPlayer mp, int what, int extra) {
-                if (mPlayerEngineListener != null) {
-                    mPlayerEngineListener.onTrackStreamError();
+                Log.w(TAG, "Radio player fail, what (" + what + ") extra (" + extra + ")");
+                if (mp == mPlayer) {
+                    onStreamLost();
+                }
+                return true;
+            }
+        });
+
+        player.setOnCompletionListener(new OnCompletionListener() {
+
+            @Override
+            public void onCompletion(MediaPlayer mp) {
+                // a live stream has no end, the proxy gave it up
+                if (mp == mPlayer) {
+                    onStreamLost();
                 }
-                return false;
             }
         });
         
@@ -273,31 +329,44 @@ public class RadioPlayerEngineImpl implements PlayerEngine {
         
         mPlayerPreparing = true;
         mPlayerNewRadio = false;
-        player.setDataSource(mRadio.getStreamUrl());
+        player.setDataSource(mStreamProxy.open(url));
         player.prepareAsync();
         
         return player;
     }
+
+    /**
+     * Rebuilds the player with jittered backoff after the stream was lost,
+     * the proxy gives the new one the bytes it still has
+     */
+    private void onStreamLost() {
+        String url = mRadio.getStreamUrl();
+        if (mReconnects >= MAX_RECONNECTS || JamendoApplication.getInstance().getCircuitBreaker().getRetryDelay(url) > 0) {
+            Log.w(TAG, "Radio stream lost, giving up after " + mReconnects + " reconnects");
+            stop();
+            if (mPlayerEngineListener != null) {
+                mPlayerEngineListener.onTrackStreamError();
+            }
+            return;
+        }
+        long delay = (long) ((MIN_RECONNECT_DELAY << mReconnects) * (0.5 + mRandom.nextDouble()));
+        mReconnects++;
+        Log.w(TAG, "Radio stream lost, reconnecting in " + delay + " ms");
+        mHandler.removeCallbacks(mReconnectTask);
+        mHandler.postDelayed(mReconnectTask, delay);
+    }
     
     /**
      * Private handler implementation.
      * 
-     * Responsible for handling radio meta update events
+     * Responsible for handling radio track changes
      * 
      */
     private class PrivateHandler extends Handler {
         public void handleMessage(Message msg) {
             switch (msg.what) {
-            case MSG_UPDATE_META: {
-                if (mCurrentUpdateTask != null) {
-                    mCurrentUpdateTask.cancel(true);
-                }
-                mCurrentUpdateTask = new UpdateMetaTask(mHandler);
-                mCurrentUpdateTask.execute(mRadio);
-                break;
-            }
             // track change because it is basically update of metadata + notification to listener
-            // it is initiated from AsyncTask but must be performed on service's thread
+            // it is initiated from the metadata scheduler but must be performed on service's thread
             case MSG_TRACK_CHANGE: {
                 if (msg.obj != null) {
                     PlaylistEntry entry = (PlaylistEntry) msg.obj;
@@ -309,99 +378,4 @@ public class RadioPlayerEngineImpl implements PlayerEngine {
             }
         }
     };
-
-    /**
-     * Asynchronous task to update radio channel metadata from network. First started upon play then queued in handler
-     * with ping time read from XML.
-     * 
-     */
-    private static class UpdateMetaTask extends AsyncTask<RadioChannel, Object, Integer> {
-        private final WeakReference<Handler> mLocalHandler;
-
-        public UpdateMetaTask(Handler handler) {
-            mLocalHandler = new WeakReference<Handler>(handler);
-        }
-
-        @Override
-        protected void onPostExecute(Integer result) {
-            if (mLocalHandler.get() != null && result != -1) {
-                mLocalHandler.get().sendEmptyMessageDelayed(MSG_UPDATE_META, result);
-            }
-
-            super.onPostExecute(result);
-        }
-
-        @Override
-        protected Integer doInBackground(RadioChannel... params) {
-            HttpClient client = new DefaultHttpClient();
-            HttpGet get = new HttpGet(params[0].getMetaUrl());
-            get.addHeader("Accept", "application/xml");
-            get.addHeader("Content-Type", "application/xml");
-            HttpResponse responsePost = null;
-            Document doc = null;
-
-            try {
-                responsePost = client.execute(get);
-                HttpEntity resEntity = responsePost.getEntity();
-                String docString = EntityUtils.toString(resEntity);
-                doc = XMLUtil.stringToDocument(docString);
-                Log.d(TAG, "META: " + docString);
-            } catch (ClientProtocolException e) {
-                e.printStackTrace();
-                // return 5s for next update
-                return META_RETRY_TIME;
-            } catch (IOException e) {
-                e.printStackTrace();
-                // return 5s for next update
-                return META_RETRY_TIME;
-            }
-
-            if (isCancelled()) {
-                return -1;
-            }
-
-            doc.normalize();
-
-            String artist = doc.getElementsByTagName(META_ARTIST).item(0).getTextContent();
-            String track = doc.getElementsByTagName(META_TRACK).item(0).getTextContent();
-            String cover = doc.getElementsByTagName(META_COVER).item(0).getTextContent();
-            String start = doc.getElementsByTagName(META_START).item(0).getTextContent();
-            String end = doc.getElementsByTagName(META_END).item(0).getTextContent();
-
-            Log.d(JamendoApplication.TAG, "Radio meta: " + artist + " - " + track);
-            Integer pingTime = Integer.valueOf(doc.getElementsByTagName(META_PING).item(0).getTextContent());
-
-            Album a = new Album();
-            a.setArtistName(artist);
-            a.setImage(cover);
-
-            Track t = new Track();
-            t.setName(track);
-
-            try {
-                SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.sss");
-                Date startdate = df.parse(start);
-                Date enddate = df.parse(end);
-                Log.d(JamendoApplication.TAG, "startdate " + startdate);
-                Log.d(JamendoApplication.TAG, "enddate " + enddate);
-                Log.d(JamendoApplication.TAG, "diff " + (enddate.getTime() - startdate.getTime()));
-                t.setDuration((int) (enddate.getTime() - startdate.getTime()) / 1000);
-            } catch (ParseException e) {
-                e.printStackTrace();
-            }
-
-            PlaylistEntry p = new PlaylistEntry();
-
-            p.setAlbum(a);
-            p.setTrack(t);
-
-            // send message to handler on UI thread
-            if (mLocalHandler.get() != null && !isCancelled()) {
-                Message m = mLocalHandler.get().obtainMessage(MSG_TRACK_CHANGE, p);
-                m.sendToTarget();
-            }
-
-            return pingTime;
-        }
-    }
 }
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.media;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Random;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+import com.teleca.jamendo.util.CircuitBreaker;
+
+/**
+ * Local HTTP server radio streams are played through.
+ * <br><br>
+ * The remote stream is read into a ring buffer by a thread of its own.
+ * When the stream drops the thread reconnects with jittered backoff while
+ * the connection of <code>MediaPlayer</code> is kept open, so a brief
+ * drop is bridged by the bytes the player has buffered. A player
+ * connecting anew, e.g. rebuilt after an error, continues from the bytes
+ * served to the previous one, so that the stream stays in step with its
+ * metadata. Only when the stream stays down players are disconnected.
+ * <br><br>
+ * The proxy is meant to be closed while nothing plays, the stream is
+ * fetched as long as it is open.
+ *
+ * @author Marcin Gil <marcin.gil@gmail.com>
+ */
+public class RadioStreamProxy implements Runnable {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final int MAX_HEAD_SIZE = 8192;
+
+	/**
+	 * Bytes of the stream kept, about 16 s at 128 kbit/s
+	 */
+	private static final int RING_SIZE = 256 * 1024;
+
+	/**
+	 * Delay in ms before reconnecting, doubled by each failed attempt
+	 */
+	private static final long MIN_RECONNECT_DELAY = 250;
+
+	private static final long MAX_RECONNECT_DELAY = 4000;
+
+	/**
+	 * Time in ms the stream may stay down before players are disconnected
+	 */
+	private static final long MAX_OUTAGE = 20000;
+
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	private static final int READ_TIMEOUT = 10000;
+
+	/**
+	 * Bytes of the stream, position n is at n % RING_SIZE, guarded by itself
+	 */
+	private final byte[] mRing = new byte[RING_SIZE];
+
+	/**
+	 * Bytes written to the ring since the stream was opened, guarded by mRing
+	 */
+	private long mWritten = 0;
+
+	/**
+	 * Position up to which the stream was served to players, 0 if nothing
+	 * was served yet, guarded by mRing
+	 */
+	private long mServed = 0;
+
+	/**
+	 * Set while bytes are received, guarded by mRing
+	 */
+	private boolean mConnected = false;
+
+	/**
+	 * Time the stream dropped or was opened, guarded by mRing
+	 */
+	private long mDropTime = 0;
+
+	/**
+	 * Set once the stream is given up or closed, guarded by mRing
+	 */
+	private boolean mFailed = true;
+
+	private int mReconnects = 0;
+
+	private long mReconnectTime = 0;
+
+	private long mMaxReconnectTime = 0;
+
+	private int mUnderruns = 0;
+
+	private long mUnderrunTime = 0;
+
+	private String mUrl;
+
+	private ServerSocket mServerSocket;
+
+	private Thread mThread;
+
+	private volatile Thread mFetchThread;
+
+	/**
+	 * Remote connection in progress, disconnected to stop the fetch thread
+	 * blocked reading it
+	 */
+	private volatile HttpURLConnection mConnection;
+
+	private Random mRandom = new Random();
+
+	/**
+	 * Starts fetching a stream unless it is being fetched already
+	 *
+	 * @param url remote url of the stream
+	 * @return url <code>MediaPlayer</code> should use, the remote one if
+	 * the proxy cannot listen
+	 */
+	public String open(String url) {
+		synchronized (mRing) {
+			if (url.equals(mUrl) && !mFailed && mServerSocket != null) {
+				return getLocalUrl();
+			}
+		}
+		close();
+
+		try {
+			mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+		} catch (IOException e) {
+			Log.e(JamendoApplication.TAG, "RadioStreamProxy cannot listen", e);
+			return url;
+		}
+		synchronized (mRing) {
+			mUrl = url;
+			mWritten = 0;
+			mServed = 0;
+			mConnected = false;
+			mFailed = false;
+			mDropTime = SystemClock.elapsedRealtime();
+		}
+
+		mThread = new Thread(this, "RadioStreamProxy");
+		mThread.setDaemon(true);
+		mThread.start();
+
+		final String fetchUrl = url;
+		mFetchThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				fetch(fetchUrl);
+			}
+		}, "RadioStreamProxy fetch");
+		mFetchThread.setDaemon(true);
+		mFetchThread.start();
+		return getLocalUrl();
+	}
+
+	/**
+	 * Stops fetching and disconnects players
+	 */
+	public void close() {
+		if (mFetchThread != null) {
+			mFetchThread.interrupt();
+			mFetchThread = null;
+		}
+		HttpURLConnection connection = mConnection;
+		if (connection != null) {
+			connection.disconnect();
+		}
+		if (mServerSocket != null) {
+			try {
+				mServerSocket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			mServerSocket = null;
+		}
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+		synchronized (mRing) {
+			if (mUrl != null) {
+				Log.v(JamendoApplication.TAG, "RadioStreamProxy closed, " + getMetrics());
+			}
+			mUrl = null;
+			mFailed = true;
+			mRing.notifyAll();
+		}
+	}
+
+	/**
+	 * @return number of times the stream was reconnected after a drop
+	 */
+	public int getReconnectCount() {
+		synchronized (mRing) {
+			return mReconnects;
+		}
+	}
+
+	/**
+	 * @return average time in ms from a drop until bytes were received
+	 * again, 0 if the stream never dropped
+	 */
+	public long getAverageReconnectLatency() {
+		synchronized (mRing) {
+			return mReconnects == 0 ? 0 : mReconnectTime / mReconnects;
+		}
+	}
+
+	public long getMaxReconnectLatency() {
+		synchronized (mRing) {
+			return mMaxReconnectTime;
+		}
+	}
+
+	/**
+	 * @return number of times a player caught up with the ring while the
+	 * stream was down
+	 */
+	public int getUnderrunCount() {
+		synchronized (mRing) {
+			return mUnderruns;
+		}
+	}
+
+	/**
+	 * @return total time in ms players waited on an empty ring while the
+	 * stream was down
+	 */
+	public long getUnderrunTime() {
+		synchronized (mRing) {
+			return mUnderrunTime;
+		}
+	}
+
+	@Override
+	public void run() {
+		ServerSocket serverSocket = mServerSocket;
+		while (!Thread.currentThread().isInterrupted()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// closed
+				break;
+			}
+			Thread connection = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}, "RadioStreamProxy connection");
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	private String getLocalUrl() {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+	}
+
+	private String getMetrics() {
+		return "reconnects " + mReconnects + " (avg " + (mReconnects == 0 ? 0 : mReconnectTime / mReconnects)
+				+ " ms, max " + mMaxReconnectTime + " ms), underruns " + mUnderruns + " (" + mUnderrunTime + " ms)";
+	}
+
+	/**
+	 * Reads the remote stream into the ring until closed or given up
+	 *
+	 * @param url
+	 */
+	private void fetch(String url) {
+		CircuitBreaker circuitBreaker = JamendoApplication.getInstance().getCircuitBreaker();
+		int attempt = 0;
+		while (mFetchThread == Thread.currentThread()) {
+			boolean refused = !circuitBreaker.allowRequest(url);
+			if (!refused) {
+				try {
+					if (transfer(url, circuitBreaker)) {
+						attempt = 0;
+					}
+				} catch (IOException e) {
+					Log.w(JamendoApplication.TAG, "RadioStreamProxy stream lost " + e.getMessage());
+				}
+			}
+			if (mFetchThread != Thread.currentThread()) {
+				return;
+			}
+
+			synchronized (mRing) {
+				long now = SystemClock.elapsedRealtime();
+				if (mConnected) {
+					mConnected = false;
+					mDropTime = now;
+					// players waiting for bytes now wait for the reconnect
+					mRing.notifyAll();
+				}
+				if ((refused && mWritten == 0) || now - mDropTime > MAX_OUTAGE) {
+					// nothing to bridge or down for too long
+					Log.w(JamendoApplication.TAG, "RadioStreamProxy giving up " + url + ", " + getMetrics());
+					mFailed = true;
+					mRing.notifyAll();
+					return;
+				}
+			}
+
+			long delay = Math.min(MIN_RECONNECT_DELAY << Math.min(attempt, 8), MAX_RECONNECT_DELAY);
+			attempt++;
+			// spread reconnects of many clients to a recovering server
+			delay = (long) (delay * (0.5 + mRandom.nextDouble()));
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Connects the stream and writes it to the ring until it ends
+	 *
+	 * @param url
+	 * @param circuitBreaker
+	 * @return true if any bytes were received
+	 * @throws IOException
+	 */
+	private boolean transfer(String url, CircuitBreaker circuitBreaker) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		mConnection = connection;
+		boolean received = false;
+		try {
+			int status;
+			try {
+				connection.connect();
+				status = connection.getResponseCode();
+			} catch (IOException e) {
+				circuitBreaker.onFailure(url);
+				throw e;
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				circuitBreaker.onFailure(url);
+				throw new IOException("Response " + status);
+			}
+			circuitBreaker.onSuccess(url);
+
+			// not metered, a live stream comes at its bitrate
+			InputStream in = connection.getInputStream();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int length;
+			while ((length = in.read(buffer)) > 0 && mFetchThread == Thread.currentThread()) {
+				write(buffer, length);
+				received = true;
+			}
+		} finally {
+			// a newer fetch may have set its own connection already
+			if (mConnection == connection) {
+				mConnection = null;
+			}
+			connection.disconnect();
+		}
+		return received;
+	}
+
+	private void write(byte[] buffer, int length) {
+		synchronized (mRing) {
+			if (!mConnected) {
+				mConnected = true;
+				if (mWritten > 0) {
+					long latency = SystemClock.elapsedRealtime() - mDropTime;
+					mReconnects++;
+					mReconnectTime += latency;
+					mMaxReconnectTime = Math.max(mMaxReconnectTime, latency);
+					Log.i(JamendoApplication.TAG, "RadioStreamProxy reconnected in " + latency + " ms, " + getMetrics());
+				}
+			}
+			int offset = (int) (mWritten % RING_SIZE);
+			int first = Math.min(length, RING_SIZE - offset);
+			System.arraycopy(buffer, 0, mRing, offset, first);
+			System.arraycopy(buffer, first, mRing, 0, length - first);
+			mWritten += length;
+			mRing.notifyAll();
+		}
+	}
+
+	/**
+	 * Serves the stream from where the previous player got to, the first
+	 * player from the oldest byte of the ring so that it prepares at once.
+	 * There is a single stream so the request itself does not matter.
+	 *
+	 * @param socket
+	 */
+	private void serve(Socket socket) {
+		try {
+			readHead(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+			out.write("HTTP/1.0 200 OK\r\nContent-Type: audio/mpeg\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long position;
+			synchronized (mRing) {
+				position = Math.max(Math.max(mServed, mWritten - RING_SIZE), 0);
+			}
+			while (true) {
+				int length = 0;
+				synchronized (mRing) {
+					long underrunStart = 0;
+					while (position >= mWritten && !mFailed) {
+						if (!mConnected && underrunStart == 0) {
+							// ran dry while the stream is down
+							underrunStart = SystemClock.elapsedRealtime();
+							mUnderruns++;
+						}
+						mRing.wait();
+					}
+					if (underrunStart != 0) {
+						mUnderrunTime += SystemClock.elapsedRealtime() - underrunStart;
+					}
+					if (position >= mWritten) {
+						// given up or closed
+						break;
+					}
+					if (mWritten - position > RING_SIZE) {
+						// overwritten while the player was not reading
+						position = mWritten - RING_SIZE;
+					}
+					length = (int) Math.min(mWritten - position, buffer.length);
+					int offset = (int) (position % RING_SIZE);
+					int first = Math.min(length, RING_SIZE - offset);
+					System.arraycopy(mRing, offset, buffer, 0, first);
+					System.arraycopy(mRing, 0, buffer, first, length - first);
+					position += length;
+					mServed = Math.max(mServed, position);
+				}
+				out.write(buffer, 0, length);
+				out.flush();
+			}
+			out.flush();
+		} catch (IOException e) {
+			// MediaPlayer closes connections on stop
+			Log.v(JamendoApplication.TAG, "RadioStreamProxy connection closed " + e.getMessage());
+		} catch (InterruptedException e) {
+			// closing
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Reads request line and headers
+	 */
+	private static String readHead(InputStream in) throws IOException {
+		StringBuilder head = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && head.length() < MAX_HEAD_SIZE) {
+			head.append((char) c);
+			int length = head.length();
+			if (length >= 4 && head.charAt(length - 1) == '\n' && head.charAt(length - 3) == '\n') {
+				break;
+			}
+		}
+		return head.toString();
+	}
+
+}
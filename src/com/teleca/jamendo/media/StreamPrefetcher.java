@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.media;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+import com.teleca.jamendo.api.Playlist;
+import com.teleca.jamendo.api.PlaylistEntry;
+import com.teleca.jamendo.util.BandwidthMeter;
+
+/**
+ * Downloads beginnings of the tracks following the current one into
+ * <code>AudioCache</code>, so that <code>StreamProxy</code> serves them
+ * right away when they start and continues from the network.
+ * <br><br>
+ * Each call to <code>prefetch</code> replaces the previous one,
+ * a prefetch in progress gives the stream up as soon as the proxy
+ * needs it.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class StreamPrefetcher {
+
+	/**
+	 * Number of bytes prefetched of each track
+	 */
+	private static final int HEAD_SIZE = 256 * 1024;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private AudioCache mCache;
+
+	private BandwidthMeter mBandwidthMeter;
+
+	/**
+	 * Tells how many tracks to prefetch and in which encoding
+	 */
+	private StreamQualityPolicy mStreamQualityPolicy;
+
+	private HandlerThread mThread;
+
+	private Handler mHandler;
+
+	/**
+	 * Incremented by every call, prefetch stops once it is not the latest
+	 */
+	private volatile int mGeneration = 0;
+
+	public StreamPrefetcher(AudioCache cache, BandwidthMeter bandwidthMeter, StreamQualityPolicy streamQualityPolicy) {
+		mCache = cache;
+		mBandwidthMeter = bandwidthMeter;
+		mStreamQualityPolicy = streamQualityPolicy;
+		mThread = new HandlerThread("StreamPrefetcher", Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	/**
+	 * Prefetches tracks following the selected one in play order, has to be
+	 * called on the main thread as it asks the download manager
+	 *
+	 * @param playlist
+	 */
+	public void prefetch(Playlist playlist) {
+		final int generation = ++mGeneration;
+		if (playlist == null || !mCache.isEnabled()) {
+			return;
+		}
+
+		int[] indexes = playlist.getUpcomingEntryIndexes(mStreamQualityPolicy.getPrefetchCount());
+		final ArrayList<String> urls = new ArrayList<String>();
+		for (int index : indexes) {
+			PlaylistEntry entry = playlist.getTrack(index);
+			String url = entry.getTrack().getStream();
+			if (url == null || url.length() == 0) {
+				continue;
+			}
+			// downloaded tracks are played from the sd-card
+			if (JamendoApplication.getInstance().getDownloadManager().getTrackPath(entry) != null) {
+				continue;
+			}
+			// the same url the player is going to request
+			urls.add(mStreamQualityPolicy.adaptStreamUrl(url));
+		}
+
+		mHandler.removeCallbacksAndMessages(null);
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				for (String url : urls) {
+					if (generation != mGeneration) {
+						return;
+					}
+					prefetch(url, generation);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops prefetching
+	 */
+	public void cancel() {
+		mGeneration++;
+		mHandler.removeCallbacksAndMessages(null);
+	}
+
+	public void quit() {
+		cancel();
+		mThread.quit();
+	}
+
+	private void prefetch(String url, int generation) {
+		if (mCache.getCompleteFile(url) != null) {
+			return;
+		}
+
+		if (!mCache.lock(url)) {
+			// being streamed
+			return;
+		}
+		try {
+			File partial = mCache.getPartialFile(url);
+			long cached = partial.length();
+			if (cached >= HEAD_SIZE) {
+				return;
+			}
+			download(url, partial, cached, generation);
+		} catch (IOException e) {
+			Log.w(JamendoApplication.TAG, "Prefetch of " + url + " failed " + e.getMessage());
+		} finally {
+			mCache.unlock(url);
+		}
+	}
+
+	private void download(String url, File partial, long cached, int generation) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("GET");
+		connection.setRequestProperty("Range", "bytes=" + cached + "-" + (HEAD_SIZE - 1));
+		connection.connect();
+		try {
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+				// without range support the cached part could not be continued
+				return;
+			}
+			InputStream in = mBandwidthMeter.meter(connection.getInputStream());
+			FileOutputStream out = new FileOutputStream(partial, true);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				long remaining = HEAD_SIZE - cached;
+				int length;
+				while (remaining > 0 && (length = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+					out.write(buffer, 0, length);
+					remaining -= length;
+					if (generation != mGeneration || mCache.isWanted(url)) {
+						break;
+					}
+				}
+			} finally {
+				out.close();
+				// counts the rest of the sample
+				in.close();
+			}
+		} finally {
+			connection.disconnect();
+		}
+		Log.v(JamendoApplication.TAG, "Prefetched " + partial.length() + " bytes of " + partial.getName());
+	}
+
+}
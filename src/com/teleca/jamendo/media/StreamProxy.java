@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.media;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
+
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+import com.teleca.jamendo.util.BandwidthMeter;
+
+/**
+ * Local HTTP server <code>MediaPlayer</code> streams tracks through.
+ * Bytes received from the remote server are written to
+ * <code>AudioCache</code> at the same time, so that tracks played again
+ * are served from the sd-card.
+ * <br><br>
+ * Only ranges open at the end ("bytes=N-") are supported, this is what
+ * <code>MediaPlayer</code> asks for when seeking. A range starting within
+ * the cached beginning of a stream is served from the file and continued
+ * from the network, other ranges are just passed through.
+ * <br><br>
+ * Urls given out carry a random token of the session, requests without
+ * it are refused so that other applications cannot use the proxy.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class StreamProxy implements Runnable {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final int MAX_HEAD_SIZE = 8192;
+
+	/**
+	 * Time a connection waits for e.g. prefetching of the same stream
+	 * to give it up
+	 */
+	private static final long LOCK_TIMEOUT = 2000;
+
+	private AudioCache mCache;
+
+	private BandwidthMeter mBandwidthMeter;
+
+	private ServerSocket mServerSocket;
+
+	private Thread mThread;
+
+	/**
+	 * Path prefix of the urls given out, new for each start
+	 */
+	private volatile String mToken;
+
+	public StreamProxy(AudioCache cache, BandwidthMeter bandwidthMeter) {
+		mCache = cache;
+		mBandwidthMeter = bandwidthMeter;
+	}
+
+	/**
+	 * Starts accepting connections on the loopback interface
+	 */
+	public void start() {
+		SecureRandom random = new SecureRandom();
+		mToken = "/" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()) + "/";
+		try {
+			mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+		} catch (IOException e) {
+			Log.e(JamendoApplication.TAG, "StreamProxy cannot listen", e);
+			return;
+		}
+		mThread = new Thread(this, "StreamProxy");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	public void stop() {
+		if (mServerSocket != null) {
+			try {
+				mServerSocket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			mServerSocket = null;
+		}
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+	}
+
+	/**
+	 * Gives url <code>MediaPlayer</code> should use for a given stream
+	 *
+	 * @param url remote url of the stream
+	 * @return local url or the remote one if the proxy or cache is not
+	 * available
+	 */
+	public String getUrl(String url) {
+		ServerSocket serverSocket = mServerSocket;
+		if (serverSocket == null || !mCache.isEnabled()) {
+			return url;
+		}
+		try {
+			return "http://127.0.0.1:" + serverSocket.getLocalPort() + mToken + "?url="
+					+ URLEncoder.encode(url, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return url;
+		}
+	}
+
+	@Override
+	public void run() {
+		ServerSocket serverSocket = mServerSocket;
+		while (!Thread.currentThread().isInterrupted()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// closed
+				break;
+			}
+			Thread connection = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}, "StreamProxy connection");
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			String head = readHead(socket.getInputStream());
+			String url = parseUrl(head, mToken);
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+			if (url == null) {
+				writeHead(out, 400, null, -1, -1, -1);
+				out.flush();
+				return;
+			}
+			serve(url, parseRangeStart(head), out);
+			out.flush();
+		} catch (IOException e) {
+			// MediaPlayer closes connections on seek, stop or skip
+			Log.v(JamendoApplication.TAG, "StreamProxy connection closed " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Serves a stream starting from a given byte
+	 *
+	 * @param url
+	 * @param start first byte, -1 if the whole stream was requested
+	 * @param out
+	 * @throws IOException
+	 */
+	private void serve(String url, long start, OutputStream out) throws IOException {
+		File complete = mCache.getCompleteFile(url);
+		if (complete != null) {
+			serveFile(complete, url, start, out);
+			return;
+		}
+
+		if (!mCache.lock(url, LOCK_TIMEOUT)) {
+			// written by another connection
+			passThrough(url, start, out);
+			return;
+		}
+		try {
+			File partial = mCache.getPartialFile(url);
+			long cached = partial.length();
+			if (start > cached) {
+				passThrough(url, start, out);
+				return;
+			}
+			serveAndCache(url, partial, cached, start, out);
+		} finally {
+			mCache.unlock(url);
+		}
+	}
+
+	/**
+	 * Serves cached beginning of the stream, then continues from the
+	 * network appending to the cache file
+	 */
+	private void serveAndCache(String url, File partial, long cached, long start, OutputStream out) throws IOException {
+		HttpURLConnection connection = open(url, cached);
+		try {
+			int status = connection.getResponseCode();
+			long total;
+			InputStream in;
+			if (status == 416) {
+				// everything is cached already, committing renames the file
+				mCache.commit(url);
+				File complete = mCache.getCompleteFile(url);
+				serveFile(complete != null ? complete : partial, url, start, out);
+				return;
+			} else if (status == HttpURLConnection.HTTP_PARTIAL) {
+				total = parseTotal(connection.getHeaderField("Content-Range"));
+				in = mBandwidthMeter.meter(connection.getInputStream());
+			} else if (status == HttpURLConnection.HTTP_OK) {
+				// range ignored, cached part is skipped
+				total = connection.getContentLength();
+				in = mBandwidthMeter.meter(connection.getInputStream());
+				skip(in, cached);
+			} else {
+				writeHead(out, 502, null, -1, -1, -1);
+				return;
+			}
+
+			long first = Math.max(start, 0);
+			writeHead(out, start < 0 ? 200 : 206, connection.getContentType(),
+					first, total < 0 ? -1 : total - first, total);
+
+			if (first < cached) {
+				copyFile(partial, first, cached - first, out);
+			}
+
+			FileOutputStream cache = new FileOutputStream(partial, true);
+			long written = cached;
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int length;
+				while ((length = in.read(buffer)) > 0) {
+					if (cache != null && mCache.isWanted(url)) {
+						// e.g. MediaPlayer reconnected to seek, the new
+						// connection continues caching
+						cache.close();
+						cache = null;
+						mCache.unlock(url);
+					}
+					if (cache != null) {
+						cache.write(buffer, 0, length);
+						written += length;
+					}
+					out.write(buffer, 0, length);
+				}
+			} finally {
+				if (cache != null) {
+					cache.close();
+				}
+			}
+
+			if (cache != null && total > 0 && written == total) {
+				mCache.commit(url);
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private void passThrough(String url, long start, OutputStream out) throws IOException {
+		HttpURLConnection connection = open(url, start);
+		try {
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+				writeHead(out, 502, null, -1, -1, -1);
+				return;
+			}
+			long first = status == HttpURLConnection.HTTP_PARTIAL ? Math.max(start, 0) : 0;
+			long total = status == HttpURLConnection.HTTP_PARTIAL
+					? parseTotal(connection.getHeaderField("Content-Range"))
+					: connection.getContentLength();
+			writeHead(out, status, connection.getContentType(), first, connection.getContentLength(), total);
+			copy(mBandwidthMeter.meter(connection.getInputStream()), out, Long.MAX_VALUE);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private void serveFile(File file, String url, long start, OutputStream out) throws IOException {
+		long total = file.length();
+		long first = Math.max(start, 0);
+		writeHead(out, start < 0 ? 200 : 206, guessContentType(url), first, Math.max(total - first, 0), total);
+		if (first < total) {
+			copyFile(file, first, total - first, out);
+		}
+	}
+
+	private static HttpURLConnection open(String url, long start) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("GET");
+		if (start > 0) {
+			connection.setRequestProperty("Range", "bytes=" + start + "-");
+		}
+		connection.connect();
+		return connection;
+	}
+
+	private static void copyFile(File file, long offset, long length, OutputStream out) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			skip(in, offset);
+			copy(in, out, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while (length > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+			if (read <= 0) {
+				break;
+			}
+			out.write(buffer, 0, read);
+			length -= read;
+		}
+	}
+
+	private static void skip(InputStream in, long count) throws IOException {
+		while (count > 0) {
+			long skipped = in.skip(count);
+			if (skipped <= 0) {
+				if (in.read() == -1) {
+					throw new IOException("Stream shorter than its cached part");
+				}
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+	/**
+	 * Writes response status line and headers
+	 *
+	 * @param out
+	 * @param status
+	 * @param contentType may be null
+	 * @param first first byte of the range, ignored if status is not 206
+	 * @param length -1 if unknown
+	 * @param total length of the whole stream, -1 if unknown
+	 * @throws IOException
+	 */
+	private static void writeHead(OutputStream out, int status, String contentType, long first, long length,
+			long total) throws IOException {
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(status).append(' ').append(reasonOf(status)).append("\r\n");
+		if (contentType != null) {
+			head.append("Content-Type: ").append(contentType).append("\r\n");
+		}
+		if (length >= 0) {
+			head.append("Content-Length: ").append(length).append("\r\n");
+		}
+		if (status == 206 && length >= 0) {
+			head.append("Content-Range: bytes ").append(first).append('-').append(first + length - 1).append('/')
+					.append(total < 0 ? "*" : String.valueOf(total)).append("\r\n");
+		}
+		head.append("Accept-Ranges: bytes\r\n");
+		head.append("Connection: close\r\n\r\n");
+		out.write(head.toString().getBytes("US-ASCII"));
+	}
+
+	private static String reasonOf(int status) {
+		switch (status) {
+		case 200:
+			return "OK";
+		case 206:
+			return "Partial Content";
+		case 400:
+			return "Bad Request";
+		default:
+			return "Bad Gateway";
+		}
+	}
+
+	private static String guessContentType(String url) {
+		return url.contains("ogg") ? "application/ogg" : "audio/mpeg";
+	}
+
+	/**
+	 * Reads request line and headers
+	 */
+	private static String readHead(InputStream in) throws IOException {
+		StringBuilder head = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && head.length() < MAX_HEAD_SIZE) {
+			head.append((char) c);
+			int length = head.length();
+			if (length >= 4 && head.charAt(length - 1) == '\n' && head.charAt(length - 3) == '\n') {
+				break;
+			}
+		}
+		return head.toString();
+	}
+
+	/**
+	 * Gives remote url from request line "GET /token/?url=... HTTP/1.1"
+	 *
+	 * @param head
+	 * @param token path the request has to be made for
+	 * @return url, null if the request is malformed or the token is wrong
+	 */
+	private static String parseUrl(String head, String token) {
+		int lineEnd = head.indexOf('\r');
+		if (token == null || lineEnd == -1 || !head.startsWith("GET " + token + "?url=")) {
+			return null;
+		}
+		int start = head.indexOf("?url=");
+		int end = head.lastIndexOf(' ', lineEnd);
+		if (end < start) {
+			return null;
+		}
+		try {
+			return URLDecoder.decode(head.substring(start + 5, end), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return first byte of the requested range, -1 if there is no range
+	 */
+	private static long parseRangeStart(String head) {
+		int range = head.toLowerCase().indexOf("\nrange: bytes=");
+		if (range == -1) {
+			return -1;
+		}
+		int start = range + 14;
+		int end = head.indexOf('-', start);
+		if (end == -1) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(head.substring(start, end).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return total length from Content-Range "bytes a-b/total", -1 if unknown
+	 */
+	private static long parseTotal(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		int slash = contentRange.lastIndexOf('/');
+		try {
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+}
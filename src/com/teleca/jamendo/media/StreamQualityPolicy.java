@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.media;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+import com.teleca.jamendo.api.JamendoGet2Api;
+import com.teleca.jamendo.util.BandwidthMeter;
+
+/**
+ * Picks stream encoding and prefetch depth from the measured throughput.
+ * <br><br>
+ * Thresholds of going up and down a level differ and a level is held
+ * for a while once taken, so that a fluctuating link does not switch
+ * encodings from track to track. Until there is any measurement the
+ * middle level, same as the fixed choice before, is used.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class StreamQualityPolicy {
+
+	/**
+	 * Thresholds are in kbit/s of sustained throughput
+	 */
+	public enum Level {
+		POOR(JamendoGet2Api.ENCODING_MP3, 1, 0, 200),
+		MEDIUM(JamendoGet2Api.ENCODING_MP3, 3, 128, 600),
+		GOOD(JamendoGet2Api.ENCODING_MP3_HQ, 3, 400, Integer.MAX_VALUE);
+
+		final String encoding;
+		final int prefetchCount;
+		final int downThreshold;
+		final int upThreshold;
+
+		Level(String encoding, int prefetchCount, int downThreshold, int upThreshold) {
+			this.encoding = encoding;
+			this.prefetchCount = prefetchCount;
+			this.downThreshold = downThreshold;
+			this.upThreshold = upThreshold;
+		}
+	}
+
+	/**
+	 * Time in ms a level is kept at least
+	 */
+	private static final long MIN_HOLD_TIME = 30000;
+
+	private static final String ENCODING_PARAMETER = "streamencoding=";
+
+	private BandwidthMeter mBandwidthMeter;
+
+	private Level mLevel = Level.MEDIUM;
+
+	private long mLevelTime = 0;
+
+	public StreamQualityPolicy(BandwidthMeter bandwidthMeter) {
+		mBandwidthMeter = bandwidthMeter;
+	}
+
+	/**
+	 * @return encoding tracks should be streamed in
+	 */
+	public String getStreamEncoding() {
+		return evaluate().encoding;
+	}
+
+	/**
+	 * @return number of upcoming tracks worth prefetching
+	 */
+	public int getPrefetchCount() {
+		return evaluate().prefetchCount;
+	}
+
+	/**
+	 * Changes encoding requested by a stream url to the current one
+	 *
+	 * @param url
+	 * @return url, unchanged if it does not request any encoding
+	 */
+	public String adaptStreamUrl(String url) {
+		int start = url == null ? -1 : url.indexOf(ENCODING_PARAMETER);
+		if (start == -1) {
+			return url;
+		}
+		start += ENCODING_PARAMETER.length();
+		int end = url.indexOf('&', start);
+		if (end == -1) {
+			end = url.length();
+		}
+		return url.substring(0, start) + getStreamEncoding() + url.substring(end);
+	}
+
+	/**
+	 * Moves to the level the throughput is good for, if the current
+	 * one was held long enough
+	 *
+	 * @return level to use
+	 */
+	private synchronized Level evaluate() {
+		int throughput = mBandwidthMeter.getThroughput();
+		Level level = mLevel;
+		if (throughput >= 0) {
+			int ordinal = level.ordinal();
+			Level[] levels = Level.values();
+			if (throughput < level.downThreshold && ordinal > 0) {
+				level = levels[ordinal - 1];
+			} else if (throughput > level.upThreshold && ordinal < levels.length - 1) {
+				level = levels[ordinal + 1];
+			}
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		if (level != mLevel && (mLevelTime == 0 || now - mLevelTime >= MIN_HOLD_TIME)) {
+			Log.i(JamendoApplication.TAG, "StreamQualityPolicy " + mLevel + " -> " + level + " at " + throughput + " kbit/s");
+			mLevel = level;
+			mLevelTime = now;
+		} else {
+			Log.v(JamendoApplication.TAG, "StreamQualityPolicy " + mLevel + " at " + throughput + " kbit/s"
+					+ (level != mLevel ? ", " + level + " held back" : ""));
+		}
+		return mLevel;
+	}
+
+}
@@ -16,6 +16,8 @@
 
 package com.teleca.jamendo.service;
 
+import java.util.ArrayList;
+
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -28,6 +30,7 @@ import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.R;
 import com.teleca.jamendo.activity.DownloadActivity;
 import com.teleca.jamendo.api.PlaylistEntry;
+import com.teleca.jamendo.util.ObjectRegistry;
 import com.teleca.jamendo.util.download.DownloadHelper;
 import com.teleca.jamendo.util.download.DownloadJob;
 import com.teleca.jamendo.util.download.DownloadJobListener;
@@ -46,6 +49,8 @@ public class DownloadService extends Service {
 
 	public static final String EXTRA_PLAYLIST_ENTRY = "playlist_entry";
 
+	public static final String EXTRA_PLAYLIST_ENTRIES = "playlist_entries";
+
 	private static final int DOWNLOAD_NOTIFY_ID = 667668;
 
 	private NotificationManager mNotificationManager = null;
@@ -77,8 +82,14 @@ public class DownloadService extends Service {
 		Log.i(JamendoApplication.TAG, "DownloadService.onStart - "+action);
 		
 		if(action.equals(ACTION_ADD_TO_DOWNLOAD)){
-			PlaylistEntry entry = (PlaylistEntry) intent.getSerializableExtra(EXTRA_PLAYLIST_ENTRY);
-			addToDownloadQueue(entry, startId);
+			@SuppressWarnings("unchecked")
+			ArrayList<PlaylistEntry> entries = (ArrayList<PlaylistEntry>) ObjectRegistry.getExtra(intent, EXTRA_PLAYLIST_ENTRIES);
+			if(entries != null){
+				addToDownloadQueue(entries, startId);
+			} else {
+				PlaylistEntry entry = intent.getParcelableExtra(EXTRA_PLAYLIST_ENTRY);
+				addToDownloadQueue(entry, startId);
+			}
 		}
 	}
 
@@ -93,28 +104,33 @@ public class DownloadService extends Service {
 		@Override
 		public void downloadEnded(DownloadJob job) {
 			mDownloadProvider.downloadCompleted(job);
-			displayNotifcation(job);
+			displayNotifcation(job, android.R.drawable.stat_sys_download_done, R.string.downloaded);
 			new MediaScannerNotifier(DownloadService.this, job);
 		}
 
+		@Override
+		public void downloadFailed(DownloadJob job) {
+			displayNotifcation(job, android.R.drawable.stat_notify_error, R.string.download_failed);
+		}
+
 		@Override
 		public void downloadStarted() {
 		}
 
 	};
 	
-	private void displayNotifcation(DownloadJob job)
+	private void displayNotifcation(DownloadJob job, int icon, int title)
 	{
 
 		String notificationMessage = job.getPlaylistEntry().getTrack().getName() + " - " + job.getPlaylistEntry().getAlbum().getArtistName();
 
 		Notification notification = new Notification(
-				android.R.drawable.stat_sys_download_done, notificationMessage, System.currentTimeMillis() );
+				icon, notificationMessage, System.currentTimeMillis() );
 
 		PendingIntent contentIntent = PendingIntent.getActivity( this, 0,
 				new Intent( this, DownloadActivity.class ), 0);
 
-		notification.setLatestEventInfo( this, getString(R.string.downloaded),
+		notification.setLatestEventInfo( this, getString(title),
 				notificationMessage, contentIntent );
 		notification.flags |= Notification.FLAG_AUTO_CANCEL;
 
@@ -137,6 +153,22 @@ public class DownloadService extends Service {
 		}
 	}
 
+	public void addToDownloadQueue(ArrayList<PlaylistEntry> entries, int startId) {
+		
+		String downloadPath = DownloadHelper.getDownloadPath();
+		String downloadFormat = JamendoApplication.getInstance().getDownloadFormat();
+		ArrayList<DownloadJob> downloadJobs = new ArrayList<DownloadJob>();
+		for(PlaylistEntry entry : entries){
+			downloadJobs.add(new DownloadJob(entry, downloadPath, startId, downloadFormat));
+		}
+		
+		// library records for the whole batch are written in one transaction
+		for(DownloadJob downloadJob : mDownloadProvider.queueDownloads(downloadJobs)){
+			downloadJob.setListener(mDownloadJobListener);
+			downloadJob.start();
+		}
+	}
+
 	public void notifyScanCompleted() {
 		if(mDownloadProvider.getQueuedDownloads().size() == 0){
 			stopSelf();
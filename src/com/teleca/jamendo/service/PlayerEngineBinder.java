@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.service;
+
+import android.app.Service;
+import android.os.Binder;
+
+import com.teleca.jamendo.media.PlayerEngine;
+
+/**
+ * Given to clients binding to a player service, they run in the same
+ * process and control the engine of the service directly
+ *
+ * @author Lukasz Wisniewski
+ */
+public class PlayerEngineBinder extends Binder {
+
+    private Service mService;
+
+    private PlayerEngine mPlayerEngine;
+
+    public PlayerEngineBinder(Service service, PlayerEngine playerEngine) {
+        mService = service;
+        mPlayerEngine = playerEngine;
+    }
+
+    public Service getService() {
+        return mService;
+    }
+
+    public PlayerEngine getPlayerEngine() {
+        return mPlayerEngine;
+    }
+
+}
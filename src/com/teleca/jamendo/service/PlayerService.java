@@ -19,9 +19,12 @@ package com.teleca.jamendo.service;
 import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.activity.PlayerActivity;
 import com.teleca.jamendo.api.PlaylistEntry;
-import com.teleca.jamendo.media.PlayerEngine;
 import com.teleca.jamendo.media.PlayerEngineImpl;
 import com.teleca.jamendo.media.PlayerEngineListener;
+import com.teleca.jamendo.media.PlayerEventBus;
+import com.teleca.jamendo.media.PlayerEventBus.OnSubscriptionChangeListener;
+import com.teleca.jamendo.media.StreamPrefetcher;
+import com.teleca.jamendo.media.StreamProxy;
 import com.teleca.jamendo.R;
 
 import android.app.Notification;
@@ -53,9 +56,19 @@ public class PlayerService extends Service {
     public static final String ACTION_OPENPLAYLIST = "open_playlist";
     public static final String ACTION_BIND_LISTENER = "bind_listener";
 
+    /**
+     * Interval of progress reports while no remote listener shows them, the playlist journal records position in
+     * steps of 5 s anyway
+     */
+    private static final int BACKGROUND_PROGRESS_INTERVAL = 5000;
+
+    private static final int FOREGROUND_PROGRESS_INTERVAL = 1000;
+
     private WifiManager mWifiManager;
     private WifiLock mWifiLock;
-    private PlayerEngine mPlayerEngine;
+    private PlayerEngineImpl mPlayerEngine;
+    private StreamProxy mStreamProxy;
+    private StreamPrefetcher mStreamPrefetcher;
     private TelephonyManager mTelephonyManager;
     private PhoneStateListener mPhoneStateListener;
     private NotificationManager mNotificationManager = null;
@@ -66,7 +79,7 @@ public class PlayerService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return new PlayerEngineBinder(this, mPlayerEngine);
     }
 
     @Override
@@ -75,8 +88,15 @@ public class PlayerService extends Service {
 
         // All necessary Application <-> Service pre-setup goes in here
 
-        mPlayerEngine = new PlayerEngineImpl();
+        // remote tracks are streamed through a local proxy caching them
+        JamendoApplication app = JamendoApplication.getInstance();
+        mStreamProxy = new StreamProxy(app.getAudioCache(), app.getBandwidthMeter());
+        mStreamProxy.start();
+        mStreamPrefetcher = new StreamPrefetcher(app.getAudioCache(), app.getBandwidthMeter(), app.getStreamQualityPolicy());
+
+        mPlayerEngine = new PlayerEngineImpl(mStreamProxy);
         mPlayerEngine.setListener(mLocalEngineListener);
+        JamendoApplication.getInstance().getPlayerEventBus().setOnSubscriptionChangeListener(mSubscriptionChangeListener);
 
         mTelephonyManager = (TelephonyManager) this.getSystemService(Context.TELEPHONY_SERVICE);
         mPhoneStateListener = new PhoneStateListener() {
@@ -103,7 +123,7 @@ public class PlayerService extends Service {
         mWifiLock.setReferenceCounted(false);
 
         JamendoApplication.getInstance().setConcretePlayerEngine(mPlayerEngine);
-        mRemoteEngineListener = JamendoApplication.getInstance().fetchPlayerEngineListener();
+        bindRemoteListener();
     }
 
     @Override
@@ -114,18 +134,23 @@ public class PlayerService extends Service {
         }
 
         JamendoApplication.getInstance().setConcretePlayerEngine(mPlayerEngine);
-        mRemoteEngineListener = JamendoApplication.getInstance().fetchPlayerEngineListener();
+        bindRemoteListener();
 
         String action = intent.getAction();
         Log.i(JamendoApplication.TAG, "Player Service onStart - " + action);
 
+        if (action == null) {
+            // started to keep running, commands come through the binder
+            return;
+        }
+
         if (action.equals(ACTION_STOP)) {
             stopSelfResult(startId);
             return;
         }
 
         if (action.equals(ACTION_BIND_LISTENER)) {
-            mRemoteEngineListener = JamendoApplication.getInstance().fetchPlayerEngineListener();
+            bindRemoteListener();
             return;
         }
 
@@ -166,19 +191,49 @@ public class PlayerService extends Service {
     public void onDestroy() {
         Log.i(JamendoApplication.TAG, "Player Service onDestroy");
         JamendoApplication.getInstance().setConcretePlayerEngine(null);
+        JamendoApplication.getInstance().getPlayerEventBus().setOnSubscriptionChangeListener(null);
         mPlayerEngine.stop();
         mPlayerEngine = null;
+        mStreamProxy.stop();
+        mStreamPrefetcher.quit();
         // unregister listener
         mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
         super.onDestroy();
     }
 
     /**
-     * Hint: if necessary this can be extended to ArrayList of listeners in the future, though I do not expect that it
-     * will be necessary
+     * Event bus of Application, passes notifications to any number of listeners
      */
     private PlayerEngineListener mRemoteEngineListener;
 
+    /**
+     * Takes the listener exposed by Application
+     */
+    private void bindRemoteListener() {
+        mRemoteEngineListener = JamendoApplication.getInstance().fetchPlayerEngineListener();
+        updateProgressInterval();
+    }
+
+    /**
+     * Progress is reported every second only while somebody shows it
+     */
+    private void updateProgressInterval() {
+        boolean shown = JamendoApplication.getInstance().getPlayerEventBus().isSubscribed(
+                PlayerEventBus.EVENT_TRACK_PROGRESS);
+        mPlayerEngine.setProgressInterval(shown ? FOREGROUND_PROGRESS_INTERVAL : BACKGROUND_PROGRESS_INTERVAL);
+    }
+
+    private OnSubscriptionChangeListener mSubscriptionChangeListener = new OnSubscriptionChangeListener() {
+
+        @Override
+        public void onSubscriptionChange(PlayerEventBus bus) {
+            if (mPlayerEngine != null) {
+                updateProgressInterval();
+            }
+        }
+
+    };
+
     /**
      * Sends notification to the status bar + passes other notifications to remote listeners
      */
@@ -195,6 +250,13 @@ public class PlayerService extends Service {
         @Override
         public void onTrackChanged(PlaylistEntry playlistEntry) {
             displayNotifcation(playlistEntry);
+            JamendoApplication.getInstance().getPlaylistJournal().trackChanged(mPlayerEngine.getPlaylist());
+            // get beginnings of the following tracks while this one plays
+            if (isStreamingAllowed()) {
+                mStreamPrefetcher.prefetch(mPlayerEngine.getPlaylist());
+            } else {
+                mStreamPrefetcher.cancel();
+            }
             if (mRemoteEngineListener != null) {
                 mRemoteEngineListener.onTrackChanged(playlistEntry);
             }
@@ -209,6 +271,7 @@ public class PlayerService extends Service {
 
         @Override
         public void onTrackProgress(int seconds) {
+            JamendoApplication.getInstance().getPlaylistJournal().trackProgress(mPlayerEngine.getPlaylist(), seconds);
             if (mRemoteEngineListener != null) {
                 mRemoteEngineListener.onTrackProgress(seconds);
             }
@@ -219,6 +282,7 @@ public class PlayerService extends Service {
             // allow killing this service
             // NO-OP setForeground(false);
             mWifiLock.release();
+            mStreamPrefetcher.cancel();
 
             mNotificationManager.cancel(PLAYING_NOTIFY_ID);
             if (mRemoteEngineListener != null) {
@@ -237,23 +301,7 @@ public class PlayerService extends Service {
                     return false;
             }
 
-            boolean wifiOnlyMode = PreferenceManager.getDefaultSharedPreferences(PlayerService.this).getBoolean(
-                    "wifi_only", false);
-
-            // wifi only mode
-            if (wifiOnlyMode && !mWifiManager.isWifiEnabled()) {
-                return false;
-            }
-
-            // roaming protection
-            boolean roamingProtection = PreferenceManager.getDefaultSharedPreferences(PlayerService.this).getBoolean(
-                    "roaming_protection", true);
-            if (!mWifiManager.isWifiEnabled()) {
-                if (roamingProtection && mTelephonyManager.isNetworkRoaming())
-                    return false;
-            }
-
-            return true;
+            return isStreamingAllowed();
         }
 
         @Override
@@ -272,6 +320,32 @@ public class PlayerService extends Service {
 
     };
 
+    /**
+     * Checks wifi only mode and roaming protection settings against
+     * the current network
+     * 
+     * @return true if tracks may be streamed
+     */
+    private boolean isStreamingAllowed() {
+        boolean wifiOnlyMode = PreferenceManager.getDefaultSharedPreferences(PlayerService.this).getBoolean(
+                "wifi_only", false);
+
+        // wifi only mode
+        if (wifiOnlyMode && !mWifiManager.isWifiEnabled()) {
+            return false;
+        }
+
+        // roaming protection
+        boolean roamingProtection = PreferenceManager.getDefaultSharedPreferences(PlayerService.this).getBoolean(
+                "roaming_protection", true);
+        if (!mWifiManager.isWifiEnabled()) {
+            if (roamingProtection && mTelephonyManager.isNetworkRoaming())
+                return false;
+        }
+
+        return true;
+    }
+
     /**
      * Send changes to selected scrobbling application
      */
@@ -24,8 +24,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
-import android.os.Binder;
 import android.os.IBinder;
+import android.os.Parcelable;
 import android.preference.PreferenceManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
@@ -58,7 +58,6 @@ public class RadioPlayerService extends Service {
 
     private RadioChannel mRadio;
     private PlaylistEntry mCurrentEntry;
-    private RadioPlayerBinder mBinder = new RadioPlayerBinder();
 
     @Override
     public void onCreate() {
@@ -111,6 +110,11 @@ public class RadioPlayerService extends Service {
 
         Log.i(JamendoApplication.TAG, "Radio Player Service onStart - " + action);
 
+        if (action == null) {
+            // started to keep running, commands come through the binder
+            return START_NOT_STICKY;
+        }
+
         if (action.equals(PlayerService.ACTION_STOP)) {
             this.stopSelf();
             return START_NOT_STICKY;
@@ -130,15 +134,28 @@ public class RadioPlayerService extends Service {
         }
 
         if (action.equals(PlayerService.ACTION_PLAY)) {
-            mNotificationManager.cancel(PLAYING_NOTIFY_ID);
-            mPlayerEngine.play();
-
+            startPlayback();
             return START_NOT_STICKY;
         }
 
         return 0;
     }
 
+    /**
+     * Plays a given channel
+     * 
+     * @param radio
+     */
+    public void play(RadioChannel radio) {
+        openRadio(radio);
+        startPlayback();
+    }
+
+    private void startPlayback() {
+        mNotificationManager.cancel(PLAYING_NOTIFY_ID);
+        mPlayerEngine.play();
+    }
+
     /**
      * @param intent
      */
@@ -147,7 +164,11 @@ public class RadioPlayerService extends Service {
             throw new IllegalArgumentException("RadioPlayerService started with empty radio");
         }
 
-        mRadio = (RadioChannel) intent.getSerializableExtra(RadioPlayerActivity.EXTRA_RADIO);
+        openRadio((RadioChannel) intent.getSerializableExtra(RadioPlayerActivity.EXTRA_RADIO));
+    }
+
+    private void openRadio(RadioChannel radio) {
+        mRadio = radio;
 
         Playlist p = new Playlist();
         p.addPlaylistEntry(mRadio.asPlaylistEntry());
@@ -168,7 +189,7 @@ public class RadioPlayerService extends Service {
 
     @Override
     public IBinder onBind(Intent arg0) {
-        return mBinder;
+        return new PlayerEngineBinder(this, mPlayerEngine);
     }
 
     private void showNotification(PlaylistEntry entry) {
@@ -183,7 +204,7 @@ public class RadioPlayerService extends Service {
 
         Intent i = new Intent(this, RadioPlayerActivity.class);
         i.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        i.putExtra(EXTRA_PLAYLISTENTRY, entry);
+        i.putExtra(EXTRA_PLAYLISTENTRY, (Parcelable) entry);
         i.putExtra(RadioPlayerActivity.EXTRA_RADIO, mRadio);
         
         PendingIntent contentIntent = PendingIntent.getActivity(this, PLAYING_NOTIFY_ID, i, Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -291,10 +312,4 @@ public class RadioPlayerService extends Service {
         }
 
     };
-
-    private class RadioPlayerBinder extends Binder {
-        RadioPlayerService getService() {
-            return RadioPlayerService.this;
-        }
-    }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.os.SystemClock;
+
+/**
+ * Estimates network throughput from bytes read by the application.
+ * <br><br>
+ * Only reads which had to wait for the network are counted, so transfers
+ * slowed down by their consumer, e.g. a stream read at the playback rate,
+ * still measure the link. Reads completing at once are served from data
+ * that piled up in buffers while the consumer was not reading, counting
+ * them would measure the memory instead. Samples are averaged with weights
+ * decaying with the time measured, short transfers dominated by latency
+ * are ignored.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class BandwidthMeter {
+
+	/**
+	 * Bytes a sample has to hold to be taken into account
+	 */
+	private static final int MIN_SAMPLE_BYTES = 32 * 1024;
+
+	/**
+	 * Time in ms spent waiting a sample has to hold to be taken into account
+	 */
+	private static final long MIN_SAMPLE_TIME = 200;
+
+	/**
+	 * Reads returning sooner than this, in ns, did not wait for the network
+	 */
+	private static final long MIN_READ_TIME = 500 * 1000;
+
+	/**
+	 * Time in ms after which weight of a sample is halved by newer ones
+	 */
+	private static final double HALF_LIFE = 8000;
+
+	/**
+	 * Estimate older than this is not trusted, in ms
+	 */
+	private static final long MAX_AGE = 5 * 60 * 1000;
+
+	/**
+	 * Weighted sums of bytes and time
+	 */
+	private double mBytes = 0;
+	private double mTime = 0;
+
+	private long mLastSample = 0;
+
+	/**
+	 * Wraps stream so that bytes read from it are measured
+	 *
+	 * @param in
+	 * @return
+	 */
+	public InputStream meter(InputStream in) {
+		return new MeteredInputStream(in);
+	}
+
+	/**
+	 * Adds sample of a transfer
+	 *
+	 * @param bytes
+	 * @param time in ms spent transferring
+	 */
+	public synchronized void addSample(long bytes, long time) {
+		if (bytes < MIN_SAMPLE_BYTES || time < MIN_SAMPLE_TIME) {
+			return;
+		}
+		double decay = Math.pow(0.5, time / HALF_LIFE);
+		mBytes = mBytes * decay + bytes;
+		mTime = mTime * decay + time;
+		mLastSample = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Gives estimated throughput
+	 *
+	 * @return throughput in kbit/s, -1 if unknown
+	 */
+	public synchronized int getThroughput() {
+		if (mTime <= 0 || SystemClock.elapsedRealtime() - mLastSample > MAX_AGE) {
+			return -1;
+		}
+		return (int) (mBytes * 8 / mTime);
+	}
+
+	private class MeteredInputStream extends FilterInputStream {
+
+		private long mSampleBytes = 0;
+
+		/**
+		 * Time in ns spent waiting
+		 */
+		private long mSampleTime = 0;
+
+		MeteredInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int c = super.read();
+			count(c == -1 ? 0 : 1, start);
+			return c;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			long start = System.nanoTime();
+			int length = super.read(buffer, offset, count);
+			count(Math.max(length, 0), start);
+			return length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+			super.close();
+		}
+
+		private void count(int bytes, long start) {
+			long time = System.nanoTime() - start;
+			if (time < MIN_READ_TIME) {
+				// buffered while the consumer was busy
+				return;
+			}
+			mSampleBytes += bytes;
+			mSampleTime += time;
+			if (mSampleBytes >= MIN_SAMPLE_BYTES * 4) {
+				flush();
+			}
+		}
+
+		private void flush() {
+			addSample(mSampleBytes, mSampleTime / 1000000);
+			mSampleBytes = 0;
+			mSampleTime = 0;
+		}
+
+	}
+
+}
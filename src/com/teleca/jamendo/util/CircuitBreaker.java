@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.util;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+
+/**
+ * Keeps track of hosts failing to serve streams and downloads.
+ * <br><br>
+ * After a few failures in a row a host is open, requests to it are
+ * refused at once instead of each of them waiting for the connection
+ * to fail. Once the backoff passes a single probe request is let
+ * through, its success closes the host again, its failure doubles
+ * the backoff.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class CircuitBreaker {
+
+	/**
+	 * Failures in a row opening a host
+	 */
+	private static final int FAILURE_THRESHOLD = 3;
+
+	/**
+	 * Backoff in ms after the host opens, doubled by each failed probe
+	 */
+	private static final long MIN_BACKOFF = 5000;
+
+	private static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+	/**
+	 * Probe not reported back within this time (in ms) is considered
+	 * lost and another one is let through
+	 */
+	private static final long PROBE_TIMEOUT = 30000;
+
+	private static class Host {
+		int failures = 0;
+
+		/**
+		 * Current backoff, 0 while the host is closed
+		 */
+		long backoff = 0;
+
+		long openUntil = 0;
+
+		/**
+		 * Time the probe was let through, 0 if there is none
+		 */
+		long probeTime = 0;
+	}
+
+	/**
+	 * Hosts that failed recently, guarded by this
+	 */
+	private HashMap<String, Host> mHosts = new HashMap<String, Host>();
+
+	/**
+	 * Checks if a request may be made, lets a probe through if the
+	 * host is open but its backoff passed
+	 *
+	 * @param url
+	 * @return false if the request should fail at once
+	 */
+	public synchronized boolean allowRequest(String url) {
+		Host host = find(url);
+		if (host == null || host.backoff == 0) {
+			return true;
+		}
+		long now = SystemClock.elapsedRealtime();
+		if (now < host.openUntil) {
+			return false;
+		}
+		if (host.probeTime != 0 && now - host.probeTime < PROBE_TIMEOUT) {
+			// waiting for the probe
+			return false;
+		}
+		host.probeTime = now;
+		Log.i(JamendoApplication.TAG, "CircuitBreaker probing " + hostOf(url));
+		return true;
+	}
+
+	/**
+	 * Reports a request served successfully
+	 *
+	 * @param url
+	 */
+	public synchronized void onSuccess(String url) {
+		String name = hostOf(url);
+		if (name == null) {
+			return;
+		}
+		Host host = mHosts.remove(name);
+		if (host != null && host.backoff != 0) {
+			Log.i(JamendoApplication.TAG, "CircuitBreaker " + name + " closed");
+		}
+	}
+
+	/**
+	 * Reports a request failed because of the host or the network
+	 *
+	 * @param url
+	 */
+	public synchronized void onFailure(String url) {
+		String name = hostOf(url);
+		if (name == null) {
+			return;
+		}
+		Host host = mHosts.get(name);
+		if (host == null) {
+			host = new Host();
+			mHosts.put(name, host);
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		if (host.backoff == 0) {
+			host.failures++;
+			if (host.failures >= FAILURE_THRESHOLD) {
+				host.backoff = MIN_BACKOFF;
+				host.openUntil = now + host.backoff;
+				Log.w(JamendoApplication.TAG, "CircuitBreaker " + name + " open for " + host.backoff + " ms after "
+						+ host.failures + " failures");
+			}
+		} else if (host.probeTime != 0) {
+			host.backoff = Math.min(host.backoff * 2, MAX_BACKOFF);
+			host.openUntil = now + host.backoff;
+			host.probeTime = 0;
+			Log.w(JamendoApplication.TAG, "CircuitBreaker " + name + " probe failed, open for " + host.backoff + " ms");
+		}
+		// otherwise a request made before the host opened, nothing new
+	}
+
+	/**
+	 * Reports a request given up before it could succeed or fail, a probe
+	 * it was lets the next request through
+	 *
+	 * @param url
+	 */
+	public synchronized void onCancel(String url) {
+		Host host = find(url);
+		if (host != null && host.probeTime != 0) {
+			host.probeTime = 0;
+		}
+	}
+
+	/**
+	 * @param url
+	 * @return true if requests to the host are refused or wait for a probe
+	 */
+	public synchronized boolean isOpen(String url) {
+		Host host = find(url);
+		return host != null && host.backoff != 0;
+	}
+
+	/**
+	 * @param url
+	 * @return time in ms until the next probe to the host, 0 if the host
+	 * is closed or a probe may be made
+	 */
+	public synchronized long getRetryDelay(String url) {
+		Host host = find(url);
+		if (host == null || host.backoff == 0) {
+			return 0;
+		}
+		return Math.max(host.openUntil - SystemClock.elapsedRealtime(), 0);
+	}
+
+	private Host find(String url) {
+		String name = hostOf(url);
+		return name == null ? null : mHosts.get(name);
+	}
+
+	/**
+	 * @param url
+	 * @return host of the url, null for urls without any, e.g. local files
+	 */
+	private static String hostOf(String url) {
+		if (url == null) {
+			return null;
+		}
+		try {
+			String host = new URL(url).getHost();
+			return host == null || host.length() == 0 ? null : host;
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+}
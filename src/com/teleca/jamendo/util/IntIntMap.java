@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map of int keys to int values, without boxing. Open addressing
+ * with linear probing, entries can be only added or cleared all at once.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class IntIntMap {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] mKeys;
+	private int[] mValues;
+	private boolean[] mUsed;
+	private int mSize;
+
+	public IntIntMap() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public IntIntMap(int expectedSize) {
+		int capacity = INITIAL_CAPACITY;
+		// keep load factor at most 0.5
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Gets value for a given key
+	 *
+	 * @param key
+	 * @param defaultValue returned if there is no such key
+	 * @return
+	 */
+	public int get(int key, int defaultValue) {
+		int mask = mKeys.length - 1;
+		for (int i = hash(key) & mask; mUsed[i]; i = (i + 1) & mask) {
+			if (mKeys[i] == key) {
+				return mValues[i];
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Puts value unless the key is already present
+	 *
+	 * @param key
+	 * @param value
+	 * @return true if the value was put
+	 */
+	public boolean putIfAbsent(int key, int value) {
+		int mask = mKeys.length - 1;
+		int i = hash(key) & mask;
+		for (; mUsed[i]; i = (i + 1) & mask) {
+			if (mKeys[i] == key) {
+				return false;
+			}
+		}
+		mUsed[i] = true;
+		mKeys[i] = key;
+		mValues[i] = value;
+		if (++mSize * 2 > mKeys.length) {
+			grow();
+		}
+		return true;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public void clear() {
+		Arrays.fill(mUsed, false);
+		mSize = 0;
+	}
+
+	private void allocate(int capacity) {
+		mKeys = new int[capacity];
+		mValues = new int[capacity];
+		mUsed = new boolean[capacity];
+		mSize = 0;
+	}
+
+	private void grow() {
+		int[] keys = mKeys;
+		int[] values = mValues;
+		boolean[] used = mUsed;
+		allocate(keys.length * 2);
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i]) {
+				putIfAbsent(keys[i], values[i]);
+			}
+		}
+	}
+
+	private static int hash(int key) {
+		// spread consecutive ids over the table
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2009 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * Passes objects between Activities and Services of this process without
+ * serializing them. Object is kept in the registry, only its handle goes
+ * through the <code>Intent</code>.
+ * <br><br>
+ * Recently registered objects are kept, so that an Activity recreated
+ * e.g. after rotation still finds its objects. If the process was restarted
+ * in the meantime the handle cannot be resolved and an ordinary extra
+ * of the same name (e.g. a <code>Parcelable</code> copy) is used instead,
+ * if the caller put one.
+ *
+ * @author Lukasz Wisniewski
+ */
+public class ObjectRegistry {
+
+	/**
+	 * Number of objects kept
+	 */
+	private static final int CAPACITY = 16;
+
+	private static final String HANDLE_SUFFIX = ".handle";
+
+	private static long sNextHandle = 1;
+
+	private static final LinkedHashMap<Long, Object> sObjects = new LinkedHashMap<Long, Object>(CAPACITY, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+
+	/**
+	 * Registers an object and puts its handle into the intent
+	 *
+	 * @param intent
+	 * @param name name of the extra
+	 * @param value
+	 */
+	public static synchronized void putExtra(Intent intent, String name, Object value) {
+		if (value == null) {
+			return;
+		}
+		long handle = sNextHandle++;
+		sObjects.put(handle, value);
+		intent.putExtra(name + HANDLE_SUFFIX, handle);
+	}
+
+	/**
+	 * Gets object passed with a given intent
+	 *
+	 * @param intent
+	 * @param name name of the extra
+	 * @return registered object, otherwise value of an ordinary extra
+	 * with the same name, null if there is none
+	 */
+	public static synchronized Object getExtra(Intent intent, String name) {
+		long handle = intent.getLongExtra(name + HANDLE_SUFFIX, 0);
+		Object value = sObjects.get(handle);
+		if (value == null) {
+			Bundle extras = intent.getExtras();
+			if (extras != null) {
+				value = extras.get(name);
+			}
+		}
+		return value;
+	}
+
+}
@@ -15,6 +15,7 @@ public class OnSeekToListenerImp implements OnTouchListener {
 	private static final int INIT_SEEK_TO_STEP = 500;
 	private static final int MILIS_IN_FUTURE = 50000;
 	private static final int COUNT_DOWN_INTERVAL = 200;
+	private static final int MAX_SEEK_TO_STEP = 5000;
 
 	PlayerEngine mPlayerEngine;
 	CountDownTimer mSeekTimer;
@@ -23,6 +24,13 @@ public class OnSeekToListenerImp implements OnTouchListener {
 	double mSeekAccelaration;
 	int stepOfSeekTo;
 
+	/**
+	 * Position in ms shown while the button is held, sought to on
+	 * release, -1 if not moved yet
+	 */
+	int mSeekPosition = -1;
+	int mDuration;
+
 	long startTime = 0;
 	long endTime = 0;
 
@@ -39,21 +47,30 @@ public class OnSeekToListenerImp implements OnTouchListener {
 			public void onTick(long millisUntilFinished) {
 				long time = MILIS_IN_FUTURE - millisUntilFinished;				
 				if (time > HOLD_BUTTON_THRESHOLD) {					
+					if (mSeekPosition == -1 && !startSeekPosition()) {
+						return;
+					}
+
+					// only the preview moves, the stream is sought on release
 					switch (mSeekToMode) {
 					case ERewind: {
-						mPlayerEngine.rewind(stepOfSeekTo);
+						mSeekPosition = Math.max(0, mSeekPosition - stepOfSeekTo);
 						break;
 					}
 
 					case EForward: {
-						mPlayerEngine.forward(stepOfSeekTo);
+						mSeekPosition = mSeekPosition + stepOfSeekTo;
+						if (mDuration > 0) {
+							mSeekPosition = Math.min(mDuration, mSeekPosition);
+						}
 						break;
 					}
 					default:
 						Log.e("Timer", "This shouldn't happen");
 					}
+					mPlayerActivity.onSeekToPreview(mSeekPosition);
 					
-					if( stepOfSeekTo < 5000 )
+					if( stepOfSeekTo < MAX_SEEK_TO_STEP )
 					{
 						stepOfSeekTo += 100;
 					}
@@ -71,6 +88,23 @@ public class OnSeekToListenerImp implements OnTouchListener {
 
 	}
 
+	/**
+	 * Takes position the preview starts from
+	 * 
+	 * @return false if the current song cannot be sought yet
+	 */
+	private boolean startSeekPosition() {
+		int position = mPlayerEngine.getCurrentPosition();
+		if (position < 0 || mPlayerEngine.getPlaylist() == null
+				|| mPlayerEngine.getPlaylist().getSelectedTrack() == null) {
+			return false;
+		}
+		mDuration = mPlayerEngine.getPlaylist().getSelectedTrack().getTrack().getDuration() * 1000;
+		// duration is unknown (0) for some tracks, do not clamp to it then
+		mSeekPosition = mDuration > 0 ? Math.min(position, mDuration) : position;
+		return true;
+	}
+
 	@Override
 	public boolean onTouch(View v, MotionEvent event) {
 
@@ -80,6 +114,7 @@ public class OnSeekToListenerImp implements OnTouchListener {
 			mPlayerEngine.pause();
 			mPlayerActivity.onStartSeekToProcess();
 			stepOfSeekTo = INIT_SEEK_TO_STEP;
+			mSeekPosition = -1;
 
 		} else if (event.getAction() == MotionEvent.ACTION_UP) {
 			mSeekTimer.cancel();
@@ -102,6 +137,9 @@ public class OnSeekToListenerImp implements OnTouchListener {
 				}
 
 			} else {
+				if (mSeekPosition != -1) {
+					mPlayerEngine.seekTo(mSeekPosition);
+				}
 				mPlayerEngine.play();
 			}
 
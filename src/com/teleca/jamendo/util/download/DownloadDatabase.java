@@ -17,6 +17,9 @@
 package com.teleca.jamendo.util.download;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import com.teleca.jamendo.api.PlaylistEntry;
 import com.teleca.jamendo.api.Track;
@@ -35,6 +38,13 @@ import com.teleca.jamendo.api.Track;
  */
 public interface DownloadDatabase {
 	
+	/**
+	 * Checks if the database could be opened, writes fail otherwise
+	 * 
+	 * @return
+	 */
+	public boolean isAvailable();
+	
 	/**
 	 * Adds a track to the playlist entry
 	 * 
@@ -43,6 +53,24 @@ public interface DownloadDatabase {
 	 */
 	public boolean addToLibrary(PlaylistEntry entry);
 	
+	/**
+	 * Adds multiple tracks to the library within a single transaction
+	 * 
+	 * @param entries
+	 * @return true if all entries were stored
+	 */
+	public boolean addToLibrary(Collection<PlaylistEntry> entries);
+	
+	/**
+	 * Adds multiple tracks to the library within a single transaction,
+	 * together with their download status
+	 * 
+	 * @param entries
+	 * @param downloaded true for tracks whose files are already present
+	 * @return true if all entries were stored
+	 */
+	public boolean addToLibrary(Collection<PlaylistEntry> entries, boolean downloaded);
+	
 	/**
 	 * Sets status of the track
 	 * 
@@ -70,4 +98,27 @@ public interface DownloadDatabase {
 	 */
 	public void remove(DownloadJob job);
 	
+	/**
+	 * Removes multiple jobs within a single transaction
+	 * 
+	 * @param jobs
+	 */
+	public void remove(Collection<DownloadJob> jobs);
+	
+	/**
+	 * Gets modification times and unmatched file counts of album
+	 * directories, as recorded by the last library scan
+	 * 
+	 * @return map of paths relative to the download directory
+	 */
+	public HashMap<String, LibraryScanner.ScannedDirectory> getScannedDirectories();
+	
+	/**
+	 * Records state of scanned album directories
+	 * 
+	 * @param directories scanned directories
+	 * @param removed directories which no longer exist
+	 */
+	public void setScannedDirectories(Map<String, LibraryScanner.ScannedDirectory> directories, Collection<String> removed);
+	
 }
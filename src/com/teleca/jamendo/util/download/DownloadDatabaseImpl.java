@@ -18,24 +18,31 @@ package com.teleca.jamendo.util.download;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.api.PlaylistEntry;
 import com.teleca.jamendo.api.Track;
 import com.teleca.jamendo.db.AlbumDatabaseBuilder;
+import com.teleca.jamendo.db.DatabaseBuilder;
 import com.teleca.jamendo.db.TrackDatabaseBuilder;
 
 /**
  * Database implementation
  * 
  * Version 1: 	Added album_track_num column to database describing track number.
+ * Version 2: 	Added indexes on downloaded, album_id and artist_name columns.
+ * Version 3: 	Added scanned_directories table used by the library scanner.
  * 
  * @author Lukasz Wisniewski, Bartosz Cichosz
  */
@@ -45,7 +52,17 @@ public class DownloadDatabaseImpl implements DownloadDatabase {
 
 	private static final String TABLE_LIBRARY = "library";
 
-	private static final int DB_VERSION = 1;
+	private static final String TABLE_SCANNED_DIRECTORIES = "scanned_directories";
+
+	private static final int DB_VERSION = 3;
+
+	/**
+	 * Columns of the library table, in statement binding order
+	 */
+	private static final String[] LIBRARY_COLUMNS = { "track_id", "downloaded",
+			"track_name", "track_duration", "track_url", "track_stream",
+			"track_rating", "album_id", "album_name", "album_image",
+			"album_rating", "artist_name", "album_track_num" };
 
 	private SQLiteDatabase mDb;
 
@@ -84,28 +101,59 @@ public class DownloadDatabaseImpl implements DownloadDatabase {
 		}
 	}
 
+	@Override
+	public boolean isAvailable() {
+		return mDb != null;
+	}
+
 	@Override
 	public boolean addToLibrary(PlaylistEntry entry) {
+		return addToLibrary(Collections.singletonList(entry));
+	}
+
+	@Override
+	public boolean addToLibrary(Collection<PlaylistEntry> entries) {
+		return addToLibrary(entries, false);
+	}
+
+	@Override
+	public boolean addToLibrary(Collection<PlaylistEntry> entries, boolean downloaded) {
 		if (mDb == null) {
 			// database was not created
 			return false;
 		}
-		// put playlistentry data the table
-		ContentValues values = new ContentValues();
+		long start = System.currentTimeMillis();
+		SQLiteStatement upsert = mDb.compileStatement(DatabaseBuilder
+				.upsertSql(TABLE_LIBRARY, LIBRARY_COLUMNS));
 
-		values.put("downloaded", 0);
-		values.putAll(new TrackDatabaseBuilder().deconstruct(entry.getTrack()));
-		values.putAll(new AlbumDatabaseBuilder().deconstruct(entry.getAlbum()));
+		TrackDatabaseBuilder trackBuilder = new TrackDatabaseBuilder();
+		AlbumDatabaseBuilder albumBuilder = new AlbumDatabaseBuilder();
 
-		String[] whereArgs = { "" + entry.getTrack().getId() };
-		long row_count = mDb.update(TABLE_LIBRARY, values, "track_id=?",
-				whereArgs);
-
-		if (row_count == 0) {
-			mDb.insert(TABLE_LIBRARY, null, values);
+		boolean success = false;
+		mDb.beginTransaction();
+		try {
+			for (PlaylistEntry entry : entries) {
+				// put playlistentry data the table
+				ContentValues values = trackBuilder.deconstruct(entry
+						.getTrack());
+				values.putAll(albumBuilder.deconstruct(entry.getAlbum()));
+				values.put("downloaded", downloaded ? 1 : 0);
+				DatabaseBuilder.bind(upsert, LIBRARY_COLUMNS, values);
+				upsert.executeInsert();
+			}
+			mDb.setTransactionSuccessful();
+			success = true;
+		} catch (SQLException e) {
+			Log.e(JamendoApplication.TAG, "Failed to add to " + TABLE_LIBRARY, e);
+		} finally {
+			mDb.endTransaction();
+			upsert.close();
 		}
 
-		return row_count != -1l;
+		Log.v(JamendoApplication.TAG, "Added " + entries.size()
+				+ " library entries in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return success;
 	}
 
 	@Override
@@ -169,75 +217,238 @@ public class DownloadDatabaseImpl implements DownloadDatabase {
 		mDb.delete(TABLE_LIBRARY, "track_id=?", whereArgs);
 	}
 
+	@Override
+	public void remove(Collection<DownloadJob> jobs) {
+		if (mDb == null || jobs.isEmpty()) {
+			return;
+		}
+		SQLiteStatement delete = mDb.compileStatement("DELETE FROM "
+				+ TABLE_LIBRARY + " WHERE track_id=?;");
+		mDb.beginTransaction();
+		try {
+			for (DownloadJob job : jobs) {
+				delete.bindLong(1, job.getPlaylistEntry().getTrack().getId());
+				delete.execute();
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+			delete.close();
+		}
+	}
+
+	@Override
+	public HashMap<String, LibraryScanner.ScannedDirectory> getScannedDirectories() {
+		HashMap<String, LibraryScanner.ScannedDirectory> directories = new HashMap<String, LibraryScanner.ScannedDirectory>();
+		if (mDb == null)
+			return directories;
+
+		Cursor query = mDb.query(TABLE_SCANNED_DIRECTORIES, null, null, null,
+				null, null, null);
+		int columnPath = query.getColumnIndex("path");
+		int columnModified = query.getColumnIndex("modified");
+		int columnUnmatched = query.getColumnIndex("unmatched");
+		while (query.moveToNext()) {
+			directories.put(query.getString(columnPath),
+					new LibraryScanner.ScannedDirectory(query
+							.getLong(columnModified), query
+							.getInt(columnUnmatched)));
+		}
+		query.close();
+		return directories;
+	}
+
+	@Override
+	public void setScannedDirectories(
+			Map<String, LibraryScanner.ScannedDirectory> directories,
+			Collection<String> removed) {
+		if (mDb == null) {
+			return;
+		}
+		SQLiteStatement upsert = mDb.compileStatement(DatabaseBuilder
+				.upsertSql(TABLE_SCANNED_DIRECTORIES, new String[] { "path",
+						"modified", "unmatched" }));
+		SQLiteStatement delete = mDb.compileStatement("DELETE FROM "
+				+ TABLE_SCANNED_DIRECTORIES + " WHERE path=?;");
+		mDb.beginTransaction();
+		try {
+			for (Map.Entry<String, LibraryScanner.ScannedDirectory> directory : directories
+					.entrySet()) {
+				upsert.bindString(1, directory.getKey());
+				upsert.bindLong(2, directory.getValue().modified);
+				upsert.bindLong(3, directory.getValue().unmatched);
+				upsert.executeInsert();
+			}
+			for (String path : removed) {
+				delete.bindString(1, path);
+				delete.execute();
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+			upsert.close();
+			delete.close();
+		}
+	}
+
 	protected void finalize(){
 		mDb.close();
 	}
 
 	/**
-	 * Updater from version 0 to 1.
+	 * Base of all updaters. Runs previous updaters first, then performs
+	 * its own migration and bumps the database version within a single
+	 * transaction, so each migration is applied exactly once and a failed
+	 * one leaves the data untouched.
 	 * 
-	 * Updates from previous version without copying data.
-	 * Creates database if it doesn't exist.
 	 * @author Bartosz Cichosz
 	 *
 	 */
-	private class DatabaseUpdaterV1 extends DatabaseUpdater {
+	private abstract class TransactionalUpdater extends DatabaseUpdater {
 
-		//TODO Add copying and updating data from previous db version
+		/**
+		 * Version the database has after this updater is applied
+		 * 
+		 * @return
+		 */
+		abstract int getVersion();
 
-		private static final int VERSION = 1;
-		public DatabaseUpdaterV1() {
-		}
-
-		public DatabaseUpdaterV1(DatabaseUpdater updater) {
-			setUpdater(updater);
-		}
+		/**
+		 * Migrates data from the previous version
+		 */
+		abstract void migrate();
 
 		@Override
-		public void update() {
+		void update() {
 			if (getUpdater() != null) {
 				getUpdater().update();
 			}
 
-			/*if(checkTableExistence()){
-				copyDataAndCreate();
-			} else {
-				createTables();
-			}*/
-			try{
-				mDb.execSQL("DROP TABLE " + TABLE_LIBRARY + ";");
-			} catch (SQLiteException e) {
-				Log.v(JamendoApplication.TAG, "Library table not existing");
+			if (mDb.getVersion() >= getVersion()) {
+				return;
+			}
+
+			mDb.beginTransaction();
+			try {
+				migrate();
+				mDb.setVersion(getVersion());
+				mDb.setTransactionSuccessful();
+				Log.i(JamendoApplication.TAG, "Download database updated to version " + getVersion());
+			} finally {
+				mDb.endTransaction();
 			}
-			createTables();
-			mDb.setVersion(VERSION);
 		}
 
-		/*private void copyDataAndCreate() {
-			ArrayList<DownloadJob> data = getAllDownloadJobs();
-			mDB.execSQL("DROP TABLE " + TABLE_LIBRARY + ";");
-			createTables();
-		}*/
+		/**
+		 * Checks if a given column exists in the library table
+		 * 
+		 * @param column
+		 * @return
+		 */
+		boolean hasColumn(String column) {
+			Cursor query = mDb.rawQuery("PRAGMA table_info(" + TABLE_LIBRARY + ");", null);
+			try {
+				int columnName = query.getColumnIndex("name");
+				while (query.moveToNext()) {
+					if (column.equals(query.getString(columnName))) {
+						return true;
+					}
+				}
+				return false;
+			} finally {
+				query.close();
+			}
+		}
+
+	}
+
+	/**
+	 * Updater from version 0 to 1.
+	 * 
+	 * Creates database if it doesn't exist, otherwise adds
+	 * album_track_num column keeping existing records.
+	 * @author Bartosz Cichosz
+	 *
+	 */
+	private class DatabaseUpdaterV1 extends TransactionalUpdater {
+
+		private static final int VERSION = 1;
 
-		private void createTables(){
+		@Override
+		int getVersion() {
+			return VERSION;
+		}
+
+		@Override
+		void migrate() {
 			mDb.execSQL("CREATE TABLE IF NOT EXISTS "
 					+ TABLE_LIBRARY
 					+ " (track_id INTEGER UNIQUE, downloaded INTEGER, track_name VARCHAR,"
 					+ " track_duration INTEGER, track_url VARCHAR, track_stream VARCHAR, track_rating REAL,"
 					+ " album_id INTEGER, album_name VARCHAR, album_image VARCHAR, album_rating REAL, artist_name VARCHAR, album_track_num INTEGER);");
-		}
 
-		/*private boolean checkTableExistence(){
-			try{
-				mDB.query(TABLE_LIBRARY, null, null, null, null, null, null);
-				return true;
-			} catch (SQLiteException e) {
-				return false;
+			// table from version 0 lacks the column, records are kept
+			if (!hasColumn("album_track_num")) {
+				mDb.execSQL("ALTER TABLE " + TABLE_LIBRARY
+						+ " ADD COLUMN album_track_num INTEGER;");
 			}
-		}*/
+		}
+
+	}
+
+	/**
+	 * Updater from version 1 to 2.
+	 * 
+	 * Adds indexes on columns used for lookups.
+	 *
+	 */
+	private class DatabaseUpdaterV2 extends TransactionalUpdater {
+
+		private static final int VERSION = 2;
+
+		@Override
+		int getVersion() {
+			return VERSION;
+		}
+
+		@Override
+		void migrate() {
+			mDb.execSQL("CREATE INDEX IF NOT EXISTS library_downloaded ON "
+					+ TABLE_LIBRARY + " (downloaded);");
+			mDb.execSQL("CREATE INDEX IF NOT EXISTS library_album_id ON "
+					+ TABLE_LIBRARY + " (album_id);");
+			mDb.execSQL("CREATE INDEX IF NOT EXISTS library_artist_name ON "
+					+ TABLE_LIBRARY + " (artist_name);");
+		}
+
+	}
+
+	/**
+	 * Updater from version 2 to 3.
+	 * 
+	 * Adds table keeping modification times and numbers of unmatched
+	 * files of scanned album directories.
+	 *
+	 */
+	private class DatabaseUpdaterV3 extends TransactionalUpdater {
+
+		private static final int VERSION = 3;
+
+		@Override
+		int getVersion() {
+			return VERSION;
+		}
+
+		@Override
+		void migrate() {
+			mDb.execSQL("CREATE TABLE IF NOT EXISTS "
+					+ TABLE_SCANNED_DIRECTORIES
+					+ " (path VARCHAR UNIQUE, modified INTEGER, unmatched INTEGER DEFAULT 0);");
+		}
 
 	}
 
+
 	/**
 	 * DatabaseUpdater Builder.
 	 * Builds an updater for updating database from its current version
@@ -254,6 +465,10 @@ public class DownloadDatabaseImpl implements DownloadDatabase {
 			DatabaseUpdater updater = null;
 
 			switch(version){
+			case 3: updater = new DatabaseUpdaterV3();
+				break;
+			case 2: updater = new DatabaseUpdaterV2();
+				break;
 			case 1: updater = new DatabaseUpdaterV1();
 				break;
 			case 0: updater = null;
@@ -16,6 +16,10 @@
 
 package com.teleca.jamendo.util.download;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
 import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.api.PlaylistEntry;
 
@@ -26,6 +30,18 @@ import com.teleca.jamendo.api.PlaylistEntry;
  */
 public class DownloadJob {
 
+	/**
+	 * Attempts of a failed download made before it is given up
+	 */
+	private static final int MAX_RETRIES = 3;
+
+	/**
+	 * Delay in ms before the download is retried, doubled by each attempt
+	 */
+	private static final long MIN_RETRY_DELAY = 5000;
+
+	private static final Handler sRetryHandler = new Handler(Looper.getMainLooper());
+
 	private PlaylistEntry mPlaylistEntry;
 	private String mDestination;
 
@@ -38,6 +54,15 @@ public class DownloadJob {
 
 	private int mStartId;
 
+	private int mRetries = 0;
+
+	private Runnable mRetryTask = new Runnable() {
+		@Override
+		public void run() {
+			start();
+		}
+	};
+
 	private String mFormat;
 
 	private DownloadManager mDownloadManager;
@@ -81,7 +106,10 @@ public class DownloadJob {
 	}
 
 	public void cancel(){
-		mDownloadTask.cancel(true);
+		sRetryHandler.removeCallbacks(mRetryTask);
+		if(mDownloadTask != null){
+			mDownloadTask.cancel(true);
+		}
 	}
 	
 	public void setListener(DownloadJobListener listener){
@@ -131,6 +159,30 @@ public class DownloadJob {
 		}
 	}
 
+	/**
+	 * Retries the download once its host may be asked again, after a few
+	 * attempts the failure is passed to the listener
+	 */
+	public void notifyDownloadFailed(){
+		if(mDownloadTask.isCancelled()){
+			return;
+		}
+		mProgress = 0;
+		mDownloadedSize = 0;
+		if(mRetries < MAX_RETRIES){
+			long delay = Math.max(MIN_RETRY_DELAY << mRetries, JamendoApplication.getInstance()
+					.getCircuitBreaker().getRetryDelay(mPlaylistEntry.getTrack().getStream()));
+			mRetries++;
+			Log.w(JamendoApplication.TAG, "Download of "+mPlaylistEntry.getTrack().getName()
+					+" failed, retry in "+delay+" ms");
+			sRetryHandler.postDelayed(mRetryTask, delay);
+			return;
+		}
+		mRetries = 0;
+		if(mListener != null)
+			mListener.downloadFailed(this);
+	}
+
 	public void setStartId(int mStartId) {
 		this.mStartId = mStartId;
 	}
@@ -26,6 +26,12 @@ public interface DownloadJobListener {
 	 */
 	public void downloadEnded(DownloadJob job);
 	
+	/**
+	 * Callback invoked when a download failed and was given up, the job
+	 * stays queued and is tried again on the next start
+	 */
+	public void downloadFailed(DownloadJob job);
+	
 	/**
 	 * Callback invoked when a download starts 
 	 */
@@ -36,7 +36,16 @@ public interface DownloadManager {
 	public abstract void download(PlaylistEntry playlistEntry);
 
 	/**
-	 * Returns path to downloaded track, or null if there is no such file.
+	 * Starts download of multiple tracks, e.g. a whole album, storing
+	 * them in the library in one go
+	 * 
+	 * @param playlistEntries
+	 */
+	public abstract void download(ArrayList<PlaylistEntry> playlistEntries);
+
+	/**
+	 * Returns path to downloaded track, or to the track cached completely
+	 * while streamed, or null if there is no such file.
 	 * 
 	 * @param playlistEntry
 	 * @return
@@ -97,4 +106,10 @@ public interface DownloadManager {
 	 */
 	public abstract void notifyObservers();
 
+	/**
+	 * Brings the download library in line with files present on the
+	 * sd-card, in the background.
+	 */
+	public abstract void reconcileLibrary();
+
 }
@@ -22,12 +22,14 @@ import java.util.ArrayList;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Environment;
+import android.os.Parcelable;
 import android.util.Log;
 
 import com.teleca.jamendo.JamendoApplication;
 import com.teleca.jamendo.api.JamendoGet2Api;
 import com.teleca.jamendo.api.PlaylistEntry;
 import com.teleca.jamendo.service.DownloadService;
+import com.teleca.jamendo.util.ObjectRegistry;
 
 /**
  * DownloadManager implementation. Using DownloadProviderDbImpl as DownloadJobs
@@ -46,12 +48,20 @@ public class DownloadManagerImpl implements DownloadManager {
 		mContext = context;
 		mObservers = new ArrayList<DownloadObserver>();
 		mProvider = new DownloadProviderDbImpl(this);
+		reconcileLibrary();
 	}
 
 	public void download(PlaylistEntry playlistEntry) {
 		Intent intent = new Intent(mContext, DownloadService.class);
 		intent.setAction(DownloadService.ACTION_ADD_TO_DOWNLOAD);
-		intent.putExtra(DownloadService.EXTRA_PLAYLIST_ENTRY, playlistEntry);
+		intent.putExtra(DownloadService.EXTRA_PLAYLIST_ENTRY, (Parcelable) playlistEntry);
+		mContext.startService(intent);
+	}
+
+	public void download(ArrayList<PlaylistEntry> playlistEntries) {
+		Intent intent = new Intent(mContext, DownloadService.class);
+		intent.setAction(DownloadService.ACTION_ADD_TO_DOWNLOAD);
+		ObjectRegistry.putExtra(intent, DownloadService.EXTRA_PLAYLIST_ENTRIES, playlistEntries);
 		mContext.startService(intent);
 	}
 
@@ -67,7 +77,7 @@ public class DownloadManagerImpl implements DownloadManager {
 			// we need to check the database to be sure whether file was
 			// downloaded completely
 			if (!mProvider.trackAvailable(playlistEntry.getTrack()))
-				return null;
+				return getCachedTrackPath(playlistEntry);
 		}
 
 		// now we may give a reference to this file after we check it really
@@ -95,7 +105,29 @@ public class DownloadManagerImpl implements DownloadManager {
 							+ fileOGG);
 			return path;
 		}
-		return null;
+		return getCachedTrackPath(playlistEntry);
+	}
+
+	/**
+	 * Returns path to the track if it was cached completely while streamed,
+	 * in the encoding streamed now or in the one the track was loaded with
+	 * 
+	 * @param playlistEntry
+	 * @return
+	 */
+	private String getCachedTrackPath(PlaylistEntry playlistEntry) {
+		JamendoApplication app = JamendoApplication.getInstance();
+		String url = playlistEntry.getTrack().getStream();
+		File file = app.getAudioCache().getCompleteFile(
+				app.getStreamQualityPolicy().adaptStreamUrl(url));
+		if (file == null) {
+			file = app.getAudioCache().getCompleteFile(url);
+		}
+		if (file == null) {
+			return null;
+		}
+		Log.i(JamendoApplication.TAG, "Playing from audio cache: " + file);
+		return file.getAbsolutePath();
 	}
 
 	@Override
@@ -160,4 +192,12 @@ public class DownloadManagerImpl implements DownloadManager {
 			observer.onDownloadChanged(this);
 		}
 	}
+
+	@Override
+	public void reconcileLibrary() {
+		if (Environment.getExternalStorageState().equals(
+				Environment.MEDIA_MOUNTED)) {
+			mProvider.reconcileLibrary();
+		}
+	}
 }
@@ -38,8 +38,22 @@ public interface DownloadProvider {
 
 	public abstract boolean queueDownload(DownloadJob downloadJob);
 
+	/**
+	 * Queues multiple jobs at once, storing them in a single transaction
+	 * 
+	 * @param downloadJobs
+	 * @return jobs that were actually queued
+	 */
+	public abstract ArrayList<DownloadJob> queueDownloads(ArrayList<DownloadJob> downloadJobs);
+
 	public abstract void removeDownload(DownloadJob job);
 
 	public abstract boolean trackAvailable(Track track);
 
+	/**
+	 * Reconciles stored jobs with files present in the download directory,
+	 * in the background
+	 */
+	public abstract void reconcileLibrary();
+
 }
\ No newline at end of file
@@ -17,12 +17,23 @@
 package com.teleca.jamendo.util.download;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+import com.teleca.jamendo.api.PlaylistEntry;
 import com.teleca.jamendo.api.Track;
+import com.teleca.jamendo.db.DatabaseWriter;
 
 /**
  * DownloadProvider implementations. Uses SqlLite database to store
- * DownloadJobs.
+ * DownloadJobs. In-memory job lists are the source of truth, database
+ * is updated in the background by the <code>DatabaseWriter</code>.
  * 
  * @author Bartosz Cichosz
  * 
@@ -35,6 +46,13 @@ public class DownloadProviderDbImpl implements DownloadProvider {
 
 	private DownloadDatabase mDb;
 
+	private DatabaseWriter mWriter;
+
+	/**
+	 * Failures of background writes are reported through it
+	 */
+	private Handler mMainHandler = new Handler(Looper.getMainLooper());
+
 	private static final String DB_PATH = "/jamendroid2.db";
 
 	public DownloadProviderDbImpl(DownloadManager downloadManager) {
@@ -43,6 +61,7 @@ public class DownloadProviderDbImpl implements DownloadProvider {
 		mQueuedJobs = new ArrayList<DownloadJob>();
 		mCompletedJobs = new ArrayList<DownloadJob>();
 
+		mWriter = JamendoApplication.getInstance().getDatabaseWriter();
 		mDb = new DownloadDatabaseImpl(DownloadHelper.getDownloadPath()
 				+ DB_PATH);
 		loadOldDownloads();
@@ -78,40 +97,121 @@ public class DownloadProviderDbImpl implements DownloadProvider {
 	public void downloadCompleted(DownloadJob job) {
 		mQueuedJobs.remove(job);
 		mCompletedJobs.add(job);
-		mDb.setStatus(job.getPlaylistEntry(), true);
+		final PlaylistEntry entry = job.getPlaylistEntry();
+		mWriter.enqueue("library_status_" + entry.getTrack().getId(),
+				new Runnable() {
+					@Override
+					public void run() {
+						mDb.setStatus(entry, true);
+					}
+				});
 		mDownloadManager.notifyObservers();
 	}
 
 	public boolean queueDownload(DownloadJob downloadJob) {
+		if (isKnown(downloadJob) || !mDb.isAvailable()) {
+			return false;
+		}
+
+		final PlaylistEntry entry = downloadJob.getPlaylistEntry();
+		final ArrayList<DownloadJob> jobs = new ArrayList<DownloadJob>();
+		jobs.add(downloadJob);
+		mWriter.enqueue(null, new Runnable() {
+			@Override
+			public void run() {
+				if (!mDb.addToLibrary(entry)) {
+					libraryWriteFailed(jobs);
+				}
+			}
+		});
+		mQueuedJobs.add(downloadJob);
+		mDownloadManager.notifyObservers();
+		return true;
+	}
+
+	public ArrayList<DownloadJob> queueDownloads(
+			ArrayList<DownloadJob> downloadJobs) {
+		ArrayList<DownloadJob> newJobs = new ArrayList<DownloadJob>();
+		final ArrayList<PlaylistEntry> newEntries = new ArrayList<PlaylistEntry>();
+		HashSet<Integer> newIds = new HashSet<Integer>();
+		for (DownloadJob downloadJob : downloadJobs) {
+			if (!isKnown(downloadJob)
+					&& newIds.add(downloadJob.getPlaylistEntry().getTrack()
+							.getId())) {
+				newJobs.add(downloadJob);
+				newEntries.add(downloadJob.getPlaylistEntry());
+			}
+		}
+
+		if (newJobs.isEmpty() || !mDb.isAvailable()) {
+			return new ArrayList<DownloadJob>();
+		}
+
+		final ArrayList<DownloadJob> jobs = new ArrayList<DownloadJob>(newJobs);
+		mWriter.enqueue(null, new Runnable() {
+			@Override
+			public void run() {
+				if (!mDb.addToLibrary(newEntries)) {
+					libraryWriteFailed(jobs);
+				}
+			}
+		});
+		mQueuedJobs.addAll(newJobs);
+		mDownloadManager.notifyObservers();
+		return newJobs;
+	}
+
+	/**
+	 * Called on the writer thread when jobs reported as queued could not
+	 * be recorded, they are dropped as they would not survive a restart
+	 * 
+	 * @param jobs
+	 */
+	private void libraryWriteFailed(final ArrayList<DownloadJob> jobs) {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				for (DownloadJob job : jobs) {
+					if (mQueuedJobs.remove(job)) {
+						job.cancel();
+						Log.e(JamendoApplication.TAG, "Download of "
+								+ job.getPlaylistEntry().getTrack().getName()
+								+ " dropped, library record not written");
+					}
+				}
+				mDownloadManager.notifyObservers();
+			}
+		});
+	}
+
+	private boolean isKnown(DownloadJob downloadJob) {
 		for (DownloadJob dJob : mCompletedJobs) {
 			if (dJob.getPlaylistEntry().getTrack().getId() == downloadJob
 					.getPlaylistEntry().getTrack().getId())
-				return false;
+				return true;
 		}
 
 		for (DownloadJob dJob : mQueuedJobs) {
 			if (dJob.getPlaylistEntry().getTrack().getId() == downloadJob
 					.getPlaylistEntry().getTrack().getId())
-				return false;
-		}
-
-		if (mDb.addToLibrary(downloadJob.getPlaylistEntry())) {
-			mQueuedJobs.add(downloadJob);
-			mDownloadManager.notifyObservers();
-			return true;
-		} else {
-			return false;
+				return true;
 		}
+		return false;
 	}
 
-	public void removeDownload(DownloadJob job) {
+	public void removeDownload(final DownloadJob job) {
 		if (job.getProgress() < 100) {
 			job.cancel();
 			mQueuedJobs.remove(job);
 		} else {
 			mCompletedJobs.remove(job);
 		}
-		mDb.remove(job);
+		mWriter.enqueue(null, new Runnable() {
+			@Override
+			public void run() {
+				mDb.remove(job);
+			}
+		});
 		mDownloadManager.notifyObservers();
 	}
 
@@ -124,4 +224,73 @@ public class DownloadProviderDbImpl implements DownloadProvider {
 		}
 		return false;
 	}
+
+	@Override
+	public void reconcileLibrary() {
+		new AsyncTask<Void, Void, LibraryScanner.Report>() {
+
+			@Override
+			protected LibraryScanner.Report doInBackground(Void... params) {
+				return new LibraryScanner(mDb, DownloadHelper
+						.getDownloadPath()).scan();
+			}
+
+			@Override
+			protected void onPostExecute(LibraryScanner.Report report) {
+				libraryReconciled(report);
+			}
+
+		}.execute();
+	}
+
+	/**
+	 * Applies scan results to the jobs and the database, skipping tracks
+	 * which were queued or removed while the scan was running
+	 * 
+	 * @param report
+	 */
+	private void libraryReconciled(LibraryScanner.Report report) {
+		final ArrayList<DownloadJob> pruned = new ArrayList<DownloadJob>();
+		for (DownloadJob job : report.pruned) {
+			Iterator<DownloadJob> completed = mCompletedJobs.iterator();
+			while (completed.hasNext()) {
+				if (completed.next().getPlaylistEntry().getTrack().getId() == job
+						.getPlaylistEntry().getTrack().getId()) {
+					completed.remove();
+					pruned.add(job);
+					break;
+				}
+			}
+		}
+
+		final ArrayList<PlaylistEntry> rebuilt = new ArrayList<PlaylistEntry>();
+		String format = JamendoApplication.getInstance().getDownloadFormat();
+		for (PlaylistEntry entry : report.rebuilt) {
+			DownloadJob job = new DownloadJob(entry, DownloadHelper
+					.getDownloadPath(), 0, format);
+			if (!isKnown(job)) {
+				job.setProgress(100);
+				mCompletedJobs.add(job);
+				rebuilt.add(entry);
+			}
+		}
+
+		final LibraryScanner.Report scanned = report;
+		mWriter.enqueue(null, new Runnable() {
+			@Override
+			public void run() {
+				// files are on disk, a record not yet marked downloaded
+				// would queue them again
+				mDb.addToLibrary(rebuilt, true);
+				mDb.remove(pruned);
+				mDb.setScannedDirectories(scanned.directories,
+						scanned.removedDirectories);
+			}
+		});
+
+		Log.i(JamendoApplication.TAG, "Library reconciled: " + report);
+		if (!pruned.isEmpty() || !rebuilt.isEmpty()) {
+			mDownloadManager.notifyObservers();
+		}
+	}
 }
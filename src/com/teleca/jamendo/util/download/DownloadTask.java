@@ -34,6 +34,7 @@ import com.teleca.jamendo.api.PlaylistEntry;
 import com.teleca.jamendo.api.Track;
 import com.teleca.jamendo.api.WSError;
 import com.teleca.jamendo.api.impl.JamendoGet2ApiImpl;
+import com.teleca.jamendo.util.CircuitBreaker;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -91,7 +92,11 @@ public class DownloadTask extends AsyncTask<Void, Integer, Boolean>{
 
 	@Override
 	public void onPostExecute(Boolean result) {
-		mJob.notifyDownloadEnded();
+		if(result){
+			mJob.notifyDownloadEnded();
+		} else {
+			mJob.notifyDownloadFailed();
+		}
 		super.onPostExecute(result);
 	}
 
@@ -102,50 +107,100 @@ public class DownloadTask extends AsyncTask<Void, Integer, Boolean>{
 		PlaylistEntry mPlaylistEntry = job.getPlaylistEntry();
 		String mDestination = job.getDestination();
 		
-		URL u = new URL(mPlaylistEntry.getTrack().getStream());
-		HttpURLConnection c = (HttpURLConnection) u.openConnection();
-		c.setRequestMethod("GET");
-		c.setDoOutput(true);
-		c.connect();
-		job.setTotalSize(c.getContentLength());
-
-		Log.i(JamendoApplication.TAG, "creating file");
+		String url = mPlaylistEntry.getTrack().getStream();
+		CircuitBreaker circuitBreaker = JamendoApplication.getInstance().getCircuitBreaker();
+		if(!circuitBreaker.allowRequest(url)){
+			Log.w(JamendoApplication.TAG, "Download host unavailable, retry in "+circuitBreaker.getRetryDelay(url)+" ms");
+			return false;
+		}
 		
-		String path = DownloadHelper.getAbsolutePath(mPlaylistEntry, mDestination);
-		String fileName = DownloadHelper.getFileName(mPlaylistEntry, job.getFormat());
+		// the request may be the probe of its host, it has to be reported
+		// back whichever way it ends
+		boolean reported = false;
+		try {
+			URL u = new URL(url);
+			HttpURLConnection c = (HttpURLConnection) u.openConnection();
+			c.setRequestMethod("GET");
+			c.setDoOutput(true);
+			int status;
+			try {
+				c.connect();
+				status = c.getResponseCode();
+			} catch (IOException e) {
+				circuitBreaker.onFailure(url);
+				reported = true;
+				throw e;
+			}
+			if(status >= HttpURLConnection.HTTP_INTERNAL_ERROR){
+				circuitBreaker.onFailure(url);
+				reported = true;
+				c.disconnect();
+				return false;
+			}
+			if(status >= HttpURLConnection.HTTP_BAD_REQUEST){
+				Log.w(JamendoApplication.TAG, "Download refused, response "+status);
+				c.disconnect();
+				return false;
+			}
+			job.setTotalSize(c.getContentLength());
 
+			Log.i(JamendoApplication.TAG, "creating file");
+			
+			String path = DownloadHelper.getAbsolutePath(mPlaylistEntry, mDestination);
+			String fileName = DownloadHelper.getFileName(mPlaylistEntry, job.getFormat());
 
-		try{
-			// Create multiple directory
-			boolean success = (new File(path)).mkdirs();
-			if (success) {
-				Log.i(JamendoApplication.TAG, "Directory: " + path + " created");
-			}    
 
-		}catch (Exception e){//Catch exception if any
-			Log.e(JamendoApplication.TAG, "Error creating folder", e);
-			return false;
-		}
+			try{
+				// Create multiple directory
+				boolean success = (new File(path)).mkdirs();
+				if (success) {
+					Log.i(JamendoApplication.TAG, "Directory: " + path + " created");
+				}    
 
-		FileOutputStream f = new FileOutputStream(new File(path, fileName));
+			}catch (Exception e){//Catch exception if any
+				Log.e(JamendoApplication.TAG, "Error creating folder", e);
+				return false;
+			}
 
+			File file = new File(path, fileName);
+			FileOutputStream f = new FileOutputStream(file);
 
-		InputStream in = c.getInputStream();
 
-		if(in == null){
-			// When InputStream is a NULL
-			f.close();
-			return false;
-		}
+			InputStream in = c.getInputStream();
 
-		byte[] buffer = new byte[1024];
-		int lenght = 0;
-		while ( (lenght = in.read(buffer)) > 0 ) {
-			f.write(buffer,0, lenght);
-			job.setDownloadedSize(job.getDownloadedSize()+lenght);
-		}
+			if(in == null){
+				// When InputStream is a NULL
+				f.close();
+				file.delete();
+				return false;
+			}
+			in = JamendoApplication.getInstance().getBandwidthMeter().meter(in);
+
+			byte[] buffer = new byte[1024];
+			int lenght = 0;
+			try {
+				while ( (lenght = in.read(buffer)) > 0 ) {
+					f.write(buffer,0, lenght);
+					job.setDownloadedSize(job.getDownloadedSize()+lenght);
+				}
+			} catch (IOException e) {
+				circuitBreaker.onFailure(url);
+				reported = true;
+				f.close();
+				// no partial file to be taken for a downloaded one
+				file.delete();
+				throw e;
+			}
+			circuitBreaker.onSuccess(url);
+			reported = true;
 
-		f.close();
+			f.close();
+			in.close();
+		} finally {
+			if(!reported){
+				circuitBreaker.onCancel(url);
+			}
+		}
 		
 		downloadCover(job);
 		return true;
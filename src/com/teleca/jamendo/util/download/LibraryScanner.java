@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2011 Teleca Poland Sp. z o.o. <android@teleca.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teleca.jamendo.util.download;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.JSONException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.wifi.WifiManager;
+import android.preference.PreferenceManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.teleca.jamendo.JamendoApplication;
+import com.teleca.jamendo.api.Album;
+import com.teleca.jamendo.api.JamendoGet2Api;
+import com.teleca.jamendo.api.PlaylistEntry;
+import com.teleca.jamendo.api.Track;
+import com.teleca.jamendo.api.WSError;
+import com.teleca.jamendo.api.impl.JamendoGet2ApiImpl;
+
+/**
+ * Compares the download library with files actually present in the download
+ * directory, e.g. after the database was lost or files were removed by hand.
+ * <br><br>
+ * Album directories are matched with library records using
+ * <code>DownloadHelper.getRelativePath</code> and
+ * <code>DownloadHelper.getFileName</code> conventions. Records of downloaded
+ * tracks without a file are pruned, files without a record are looked up
+ * through the API so that their records can be rebuilt. Directories which
+ * did not change since the last scan are skipped, even if some of their
+ * files could not be matched. The API is not used if wifi only mode or
+ * roaming protection forbids it, such directories are left for a later scan.
+ * <br><br>
+ * Scanner only reads, changes it finds are returned as a <code>Report</code>.
+ *
+ * @author Bartosz Cichosz
+ */
+public class LibraryScanner {
+
+	/**
+	 * Number of threads walking artist directories
+	 */
+	private static final int SCAN_THREADS = 3;
+
+	/**
+	 * State of an album directory recorded by the last scan
+	 */
+	public static class ScannedDirectory {
+
+		/**
+		 * Modification time of the directory when it was scanned
+		 */
+		public long modified;
+
+		/**
+		 * Number of files which could not be matched with any track
+		 */
+		public int unmatched;
+
+		public ScannedDirectory(long modified, int unmatched) {
+			this.modified = modified;
+			this.unmatched = unmatched;
+		}
+	}
+
+	/**
+	 * Result of the scan
+	 */
+	public static class Report {
+
+		/**
+		 * Tracks found on disk which had no library record
+		 */
+		public ArrayList<PlaylistEntry> rebuilt = new ArrayList<PlaylistEntry>();
+
+		/**
+		 * Downloaded tracks whose files are gone
+		 */
+		public ArrayList<DownloadJob> pruned = new ArrayList<DownloadJob>();
+
+		/**
+		 * Directories that were reconciled, as far as the API could tell
+		 */
+		public HashMap<String, ScannedDirectory> directories = new HashMap<String, ScannedDirectory>();
+
+		/**
+		 * Previously scanned directories which no longer exist
+		 */
+		public ArrayList<String> removedDirectories = new ArrayList<String>();
+
+		/**
+		 * Number of files which could not be matched with any track,
+		 * including the ones in skipped directories
+		 */
+		public int unmatched;
+
+		public int scannedDirectories;
+
+		public int skippedDirectories;
+
+		@Override
+		public String toString() {
+			return "rebuilt " + rebuilt.size() + ", pruned " + pruned.size()
+					+ ", unmatched " + unmatched + ", scanned "
+					+ scannedDirectories + " and skipped "
+					+ skippedDirectories + " directories";
+		}
+	}
+
+	/**
+	 * Single album directory found on disk
+	 */
+	private static class AlbumDirectory {
+		String relativePath;
+		String artistName;
+		String albumName;
+		long modified;
+
+		/**
+		 * State recorded by the last scan, null if there was none
+		 */
+		ScannedDirectory scanned;
+
+		/**
+		 * Audio file names, null if directory was skipped
+		 */
+		HashSet<String> files;
+	}
+
+	private DownloadDatabase mDb;
+
+	private File mRoot;
+
+	private JamendoGet2Api mApi;
+
+	/**
+	 * Whether unmatched files may be looked up through the API
+	 */
+	private boolean mLookupAllowed;
+
+	/**
+	 * Albums of already looked up artists
+	 */
+	private HashMap<String, Album[]> mArtistAlbums = new HashMap<String, Album[]>();
+
+	public LibraryScanner(DownloadDatabase db, String root) {
+		mDb = db;
+		mRoot = new File(root);
+		mApi = new JamendoGet2ApiImpl();
+	}
+
+	/**
+	 * Performs the scan, should be called from a background thread
+	 *
+	 * @return report, empty if download directory could not be read
+	 */
+	public Report scan() {
+		Report report = new Report();
+		mLookupAllowed = isLookupAllowed();
+
+		HashMap<String, ScannedDirectory> scanned = mDb.getScannedDirectories();
+		ArrayList<AlbumDirectory> directories = walk(scanned);
+		if (directories == null) {
+			// better do nothing than prune records of an unreadable card
+			return report;
+		}
+
+		// group library records by album directory
+		HashMap<String, ArrayList<DownloadJob>> records = new HashMap<String, ArrayList<DownloadJob>>();
+		for (DownloadJob job : mDb.getAllDownloadJobs()) {
+			String path = DownloadHelper.getRelativePath(job.getPlaylistEntry());
+			ArrayList<DownloadJob> albumRecords = records.get(path);
+			if (albumRecords == null) {
+				albumRecords = new ArrayList<DownloadJob>();
+				records.put(path, albumRecords);
+			}
+			albumRecords.add(job);
+		}
+
+		HashSet<String> existing = new HashSet<String>();
+		for (AlbumDirectory directory : directories) {
+			existing.add(directory.relativePath);
+			if (directory.files == null) {
+				report.skippedDirectories++;
+				report.unmatched += directory.scanned.unmatched;
+				continue;
+			}
+			report.scannedDirectories++;
+
+			HashSet<String> unmatched = directory.files;
+			ArrayList<DownloadJob> albumRecords = records.get(directory.relativePath);
+			if (albumRecords != null) {
+				for (DownloadJob job : albumRecords) {
+					boolean present = unmatched.remove(DownloadHelper.getFileName(
+							job.getPlaylistEntry(), JamendoGet2Api.ENCODING_MP3));
+					present |= unmatched.remove(DownloadHelper.getFileName(
+							job.getPlaylistEntry(), JamendoGet2Api.ENCODING_OGG));
+
+					// not yet downloaded tracks are left to the download queue
+					if (!present && job.getProgress() == 100) {
+						report.pruned.add(job);
+					}
+				}
+			}
+
+			boolean resolved = unmatched.isEmpty() || rebuild(directory, unmatched, report);
+			report.unmatched += unmatched.size();
+
+			// files the API could not be asked about are retried next time
+			if (resolved) {
+				report.directories.put(directory.relativePath,
+						new ScannedDirectory(directory.modified, unmatched.size()));
+			}
+		}
+
+		// records of albums whose directory is gone altogether
+		for (Map.Entry<String, ArrayList<DownloadJob>> albumRecords : records.entrySet()) {
+			if (!existing.contains(albumRecords.getKey())) {
+				for (DownloadJob job : albumRecords.getValue()) {
+					if (job.getProgress() == 100) {
+						report.pruned.add(job);
+					}
+				}
+			}
+		}
+		for (String path : scanned.keySet()) {
+			if (!existing.contains(path)) {
+				report.removedDirectories.add(path);
+			}
+		}
+
+		return report;
+	}
+
+	/**
+	 * Lists album directories, each artist directory by a separate task
+	 *
+	 * @param scanned
+	 * @return album directories or null if listing failed
+	 */
+	private ArrayList<AlbumDirectory> walk(final HashMap<String, ScannedDirectory> scanned) {
+		File[] artists = mRoot.listFiles();
+		if (artists == null) {
+			Log.w(JamendoApplication.TAG, "Cannot list " + mRoot);
+			return null;
+		}
+
+		ArrayList<Future<ArrayList<AlbumDirectory>>> results = new ArrayList<Future<ArrayList<AlbumDirectory>>>();
+		ExecutorService executor = Executors.newFixedThreadPool(SCAN_THREADS);
+		try {
+			for (final File artist : artists) {
+				if (!artist.isDirectory()) {
+					continue;
+				}
+				results.add(executor.submit(new Callable<ArrayList<AlbumDirectory>>() {
+					@Override
+					public ArrayList<AlbumDirectory> call() {
+						return walkArtist(artist, scanned);
+					}
+				}));
+			}
+
+			ArrayList<AlbumDirectory> directories = new ArrayList<AlbumDirectory>();
+			for (Future<ArrayList<AlbumDirectory>> result : results) {
+				directories.addAll(result.get());
+			}
+			return directories;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Log.e(JamendoApplication.TAG, "Library scan failed", e);
+			return null;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private ArrayList<AlbumDirectory> walkArtist(File artist, HashMap<String, ScannedDirectory> scanned) {
+		ArrayList<AlbumDirectory> directories = new ArrayList<AlbumDirectory>();
+		File[] albums = artist.listFiles();
+		if (albums == null) {
+			return directories;
+		}
+
+		for (File album : albums) {
+			if (!album.isDirectory()) {
+				continue;
+			}
+			AlbumDirectory directory = new AlbumDirectory();
+			directory.artistName = artist.getName();
+			directory.albumName = album.getName();
+			directory.relativePath = String.format("/%s/%s", directory.artistName, directory.albumName);
+			directory.modified = album.lastModified();
+
+			directory.scanned = scanned.get(directory.relativePath);
+			if (directory.scanned == null || directory.scanned.modified != directory.modified) {
+				directory.files = new HashSet<String>();
+				String[] names = album.list();
+				if (names != null) {
+					for (String name : names) {
+						if (name.endsWith(".mp3") || name.endsWith(".ogg")) {
+							directory.files.add(name);
+						}
+					}
+				}
+			}
+			directories.add(directory);
+		}
+		return directories;
+	}
+
+	/**
+	 * Looks up tracks of unmatched files, matched files are removed from
+	 * the set and added to the report
+	 *
+	 * @param directory
+	 * @param unmatched
+	 * @param report
+	 * @return false if the API could not be asked, files left unmatched
+	 * are not known to be foreign then
+	 */
+	private boolean rebuild(AlbumDirectory directory, HashSet<String> unmatched, Report report) {
+		if (!mLookupAllowed) {
+			return false;
+		}
+
+		Album[] albums;
+		try {
+			albums = findAlbums(directory.artistName);
+		} catch (JSONException e) {
+			Log.w(JamendoApplication.TAG, "Cannot look up albums of " + directory.artistName);
+			return false;
+		} catch (WSError e) {
+			Log.w(JamendoApplication.TAG, "Cannot look up albums of " + directory.artistName);
+			return false;
+		}
+		Album album = findAlbum(albums, directory.artistName, directory.albumName);
+		if (album == null) {
+			return true;
+		}
+
+		Track[] tracks;
+		try {
+			tracks = mApi.getAlbumTracks(album, JamendoApplication.getInstance().getStreamEncoding());
+		} catch (JSONException e) {
+			Log.w(JamendoApplication.TAG, "Cannot get tracks of " + directory.relativePath);
+			return false;
+		} catch (WSError e) {
+			Log.w(JamendoApplication.TAG, "Cannot get tracks of " + directory.relativePath);
+			return false;
+		}
+		if (tracks == null) {
+			return true;
+		}
+
+		for (Track track : tracks) {
+			PlaylistEntry entry = new PlaylistEntry();
+			entry.setAlbum(album);
+			entry.setTrack(track);
+
+			boolean present = unmatched.remove(DownloadHelper.getFileName(entry, JamendoGet2Api.ENCODING_MP3));
+			present |= unmatched.remove(DownloadHelper.getFileName(entry, JamendoGet2Api.ENCODING_OGG));
+			if (present) {
+				report.rebuilt.add(entry);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param artistName
+	 * @return albums of the artist, looked up once per scan
+	 * @throws JSONException
+	 * @throws WSError
+	 */
+	private Album[] findAlbums(String artistName) throws JSONException, WSError {
+		if (!mArtistAlbums.containsKey(artistName)) {
+			mArtistAlbums.put(artistName, mApi.searchForAlbumsByArtistName(artistName));
+		}
+		return mArtistAlbums.get(artistName);
+	}
+
+	private static Album findAlbum(Album[] albums, String artistName, String albumName) {
+		if (albums != null) {
+			for (Album album : albums) {
+				if (albumName.equals(album.getName())
+						&& artistName.equals(album.getArtistName())) {
+					return album;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks wifi only mode and roaming protection settings against
+	 * the current network
+	 *
+	 * @return true if the API may be used
+	 */
+	private static boolean isLookupAllowed() {
+		Context context = JamendoApplication.getInstance();
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+		if (wifiManager.isWifiEnabled()) {
+			return true;
+		}
+		if (preferences.getBoolean("wifi_only", false)) {
+			return false;
+		}
+		TelephonyManager telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+		return !(preferences.getBoolean("roaming_protection", true) && telephonyManager.isNetworkRoaming());
+	}
+
+}
@@ -163,7 +163,13 @@ public class RemoteImageView extends ImageView{
 			String dir = getDirectory(fileName);
 			String pathFileName = dir + "/" + fileName;						
 			Bitmap tbmp = BitmapFactory.decodeFile(pathFileName);
-			if (tbmp == null) {
+			Bitmap prefetched = JamendoApplication.getInstance().getImageCache().get(url);
+			if (tbmp == null && prefetched != null) {
+				Log.i(JamendoApplication.TAG, "Loading prefetched image");
+				this.setImageBitmap(prefetched);
+				mCurrentlyGrabbedUrl = url;
+				saveBmpToSd(prefetched, url);
+			} else if (tbmp == null) {
 				Log.d(JamendoApplication.TAG, "Image is not present, try to download");
 				try{
 					new DownloadTask().execute(url);